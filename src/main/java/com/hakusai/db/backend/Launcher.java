@@ -1,9 +1,13 @@
 package com.hakusai.db.backend;
 
 import com.hakusai.db.backend.dm.DataManager;
+import com.hakusai.db.backend.dm.Recover;
+import com.hakusai.db.backend.dm.pageCache.PageCache;
 import com.hakusai.db.backend.server.Server;
 import com.hakusai.db.backend.tbm.TableManager;
+import com.hakusai.db.backend.tbm.Vacuum;
 import com.hakusai.db.backend.tm.TransactionManager;
+import com.hakusai.db.backend.tm.TransactionManagerImpl;
 import com.hakusai.db.backend.utils.Panic;
 import com.hakusai.db.backend.vm.VersionManager;
 import com.hakusai.db.backend.vm.VersionManagerImpl;
@@ -18,12 +22,22 @@ import org.apache.commons.cli.ParseException;
  * Launcher 类，则是服务器的启动入口。这个类解析了命令行参数。
  * 很重要的参数就是 -open 或者 -create。
  * Launcher 根据两个参数，来决定是创建数据库文件，还是启动一个已有的数据库。
+ * -pagesize 只在 -create 时有效，指定页面大小（4KB ~ 32KB，2 的幂），默认 8KB。
+ * -pagecache 指定数据库文件的读写方式：channel（默认）使用 FileChannel 读写，mmap 将文件映射到内存，适合读多的场景。
+ * -redothreads 只在 -open 时有效，指定崩溃恢复时重做日志的线程数，默认为 CPU 核数。
+ * -asyncinterval 只在 -open 时有效，指定 begin async 开始的事务提交后，最多多少毫秒之内落盘，默认 10。
+ * -vacuuminterval、-vacuumbatch、-vacuumdelay 只在 -open 时有效，分别指定后台回收死版本的间隔（毫秒，0 表示不回收，默认 10000）、
+ * 每一批检查的版本链数（默认 256）和每一批之后停顿的毫秒数（默认 10），见 Vacuum。
+ * -statusinterval 只在 -open 时有效，每隔多少毫秒打印一行运行状态（0 表示不打印，默认 60000），
+ * 包括还没有写入 XID 文件的异步提交个数和其中最早一个的延迟（见 TransactionManager.getAsyncCommitLag()），
+ * 以及缓存的命中、未命中、驱逐和预读次数（见 PageCache.getHits() 等）。
  */
 public class Launcher {
 
     public static final int port = 9999;
 
     public static final long DEFALUT_MEM = (1<<20)*64;
+    public static final long DEFAULT_STATUS_INTERVAL = 60 * 1000;
     public static final long KB = 1 << 10;
 	public static final long MB = 1 << 20;
 	public static final long GB = 1 << 30;
@@ -33,37 +47,196 @@ public class Launcher {
         options.addOption("open", true, "-open DBPath");
         options.addOption("create", true, "-create DBPath");
         options.addOption("mem", true, "-mem 64MB");
+        options.addOption("pagecache", true, "-pagecache channel|mmap");
+        options.addOption("pagesize", true, "-pagesize 8KB");
+        options.addOption("redothreads", true, "-redothreads 4");
+        options.addOption("asyncinterval", true, "-asyncinterval 10");
+        options.addOption("vacuuminterval", true, "-vacuuminterval 10000");
+        options.addOption("vacuumbatch", true, "-vacuumbatch 256");
+        options.addOption("vacuumdelay", true, "-vacuumdelay 10");
+        options.addOption("statusinterval", true, "-statusinterval 60000");
         CommandLineParser parser = new DefaultParser();
         CommandLine cmd = parser.parse(options,args);
 
+        boolean mmap = parsePageCache(cmd.getOptionValue("pagecache"));
         if(cmd.hasOption("open")) {
-            openDB(cmd.getOptionValue("open"), parseMem(cmd.getOptionValue("mem")));
+            openDB(cmd.getOptionValue("open"), parseMem(cmd.getOptionValue("mem")), mmap,
+                parseRedoThreads(cmd.getOptionValue("redothreads")), parseAsyncInterval(cmd.getOptionValue("asyncinterval")),
+                parseVacuumInterval(cmd.getOptionValue("vacuuminterval")), parseVacuumBatch(cmd.getOptionValue("vacuumbatch")),
+                parseVacuumDelay(cmd.getOptionValue("vacuumdelay")), parseStatusInterval(cmd.getOptionValue("statusinterval")));
             return;
         }
         if(cmd.hasOption("create")) {
-            createDB(cmd.getOptionValue("create"));
+            createDB(cmd.getOptionValue("create"), parsePageSize(cmd.getOptionValue("pagesize")), mmap);
             return;
         }
         System.out.println("Usage: launcher (open|create) DBPath");
     }
 
-    private static void createDB(String path) {
+    private static void createDB(String path, int pageSize, boolean mmap) {
         TransactionManager tm = TransactionManager.create(path);
-        DataManager dm = DataManager.create(path, DEFALUT_MEM, tm);
+        DataManager dm = DataManager.create(path, DEFALUT_MEM, pageSize, mmap, tm);
         VersionManager vm = new VersionManagerImpl(tm, dm);
         TableManager.create(path, vm, dm);
         tm.close();
         dm.close();
     }
 
-    private static void openDB(String path, long mem) {
-        TransactionManager tm = TransactionManager.open(path);
-        DataManager dm = DataManager.open(path, mem, tm);
+    private static void openDB(String path, long mem, boolean mmap, int redoThreads, long asyncInterval,
+                               long vacuumInterval, int vacuumBatch, long vacuumDelay, long statusInterval) {
+        TransactionManagerImpl tm = TransactionManager.open(path);
+        tm.setAsyncInterval(asyncInterval);
+        DataManager dm = DataManager.open(path, mem, mmap, redoThreads, tm);
         VersionManager vm = new VersionManagerImpl(tm, dm);
         TableManager tbm = TableManager.open(path, vm, dm);
+        if(vacuumInterval > 0) {
+            Vacuum vacuum = new Vacuum(tbm);
+            vacuum.setInterval(vacuumInterval);
+            vacuum.setBatchSize(vacuumBatch);
+            vacuum.setDelay(vacuumDelay);
+            vacuum.start();
+        }
+        if(statusInterval > 0) {
+            startStatusReporter(tm, dm.getPageCache(), statusInterval);
+        }
         new Server(port, tbm).start();
     }
 
+    private static void startStatusReporter(TransactionManager tm, PageCache pc, long interval) {
+        Thread t = new Thread(() -> {
+            while(true) {
+                try {
+                    Thread.sleep(interval);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                System.out.println("Status: " + tm.getPendingCommits() + " pending async commits, lag "
+                    + tm.getAsyncCommitLag() + "ms; page cache " + pc.getHits() + " hits, " + pc.getMisses()
+                    + " misses, " + pc.getEvictions() + " evictions, " + pc.getPrefetches() + " prefetches");
+            }
+        }, "status");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private static boolean parsePageCache(String mode) {
+        if(mode == null || "".equals(mode) || "channel".equals(mode)) {
+            return false;
+        }
+        if("mmap".equals(mode)) {
+            return true;
+        }
+        Panic.panic(Error.InvalidPageCacheException);
+        return false;
+    }
+
+    private static int parseRedoThreads(String threadsStr) {
+        if(threadsStr == null || "".equals(threadsStr)) {
+            return Recover.DEFAULT_REDO_THREADS;
+        }
+        int threads = 0;
+        try {
+            threads = Integer.parseInt(threadsStr);
+        } catch (NumberFormatException e) {
+            Panic.panic(Error.InvalidRedoThreadsException);
+        }
+        if(threads < 1) {
+            Panic.panic(Error.InvalidRedoThreadsException);
+        }
+        return threads;
+    }
+
+    private static long parseAsyncInterval(String intervalStr) {
+        if(intervalStr == null || "".equals(intervalStr)) {
+            return TransactionManagerImpl.DEFAULT_ASYNC_INTERVAL;
+        }
+        long interval = 0;
+        try {
+            interval = Long.parseLong(intervalStr);
+        } catch (NumberFormatException e) {
+            Panic.panic(Error.InvalidAsyncIntervalException);
+        }
+        if(interval < 1) {
+            Panic.panic(Error.InvalidAsyncIntervalException);
+        }
+        return interval;
+    }
+
+    private static long parseVacuumInterval(String intervalStr) {
+        if(intervalStr == null || "".equals(intervalStr)) {
+            return Vacuum.DEFAULT_INTERVAL;
+        }
+        long interval = 0;
+        try {
+            interval = Long.parseLong(intervalStr);
+        } catch (NumberFormatException e) {
+            Panic.panic(Error.InvalidVacuumIntervalException);
+        }
+        if(interval < 0) {
+            Panic.panic(Error.InvalidVacuumIntervalException);
+        }
+        return interval;
+    }
+
+    private static int parseVacuumBatch(String batchStr) {
+        if(batchStr == null || "".equals(batchStr)) {
+            return Vacuum.DEFAULT_BATCH_SIZE;
+        }
+        int batch = 0;
+        try {
+            batch = Integer.parseInt(batchStr);
+        } catch (NumberFormatException e) {
+            Panic.panic(Error.InvalidVacuumBatchException);
+        }
+        if(batch < 1) {
+            Panic.panic(Error.InvalidVacuumBatchException);
+        }
+        return batch;
+    }
+
+    private static long parseVacuumDelay(String delayStr) {
+        if(delayStr == null || "".equals(delayStr)) {
+            return Vacuum.DEFAULT_DELAY;
+        }
+        long delay = 0;
+        try {
+            delay = Long.parseLong(delayStr);
+        } catch (NumberFormatException e) {
+            Panic.panic(Error.InvalidVacuumDelayException);
+        }
+        if(delay < 0) {
+            Panic.panic(Error.InvalidVacuumDelayException);
+        }
+        return delay;
+    }
+
+    private static long parseStatusInterval(String intervalStr) {
+        if(intervalStr == null || "".equals(intervalStr)) {
+            return DEFAULT_STATUS_INTERVAL;
+        }
+        long interval = 0;
+        try {
+            interval = Long.parseLong(intervalStr);
+        } catch (NumberFormatException e) {
+            Panic.panic(Error.InvalidStatusIntervalException);
+        }
+        if(interval < 0) {
+            Panic.panic(Error.InvalidStatusIntervalException);
+        }
+        return interval;
+    }
+
+    private static int parsePageSize(String sizeStr) {
+        if(sizeStr == null || "".equals(sizeStr)) {
+            return PageCache.PAGE_SIZE;
+        }
+        long pageSize = parseMem(sizeStr);
+        if(!PageCache.isValidPageSize(pageSize)) {
+            Panic.panic(Error.InvalidPageSizeException);
+        }
+        return (int)pageSize;
+    }
+
     private static long parseMem(String memStr) {
         if(memStr == null || "".equals(memStr)) {
             return DEFALUT_MEM;
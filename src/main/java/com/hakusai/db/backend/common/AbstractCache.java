@@ -1,7 +1,8 @@
 package com.hakusai.db.backend.common;
 
-import java.util.HashMap;
-import java.util.Set;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -11,46 +12,100 @@ import com.hakusai.db.common.Error;
  * AbstractCache 实现了一个引用计数策略的缓存
  * 问题的根源还是，LRU 策略中，资源驱逐不可控，上层模块无法感知。
  * 而引用计数策略正好解决了这个问题，只有上层模块主动释放引用，缓存在确保没有模块在使用这个资源了，才会去驱逐资源。
+ *
+ * 所有页面、DataItem 和 Entry 的访问都会经过缓存，如果整个缓存只有一把锁，所有连接的访问都会被串行化。
+ * 于是缓存按 key 的哈希被划分成若干个段（Segment），每个段有自己的锁、引用计数和 getting 表，
+ * 不同段上的访问互不阻塞。只有缓存的资源总数是全局的，用一个原子变量维护。
  */
 public abstract class AbstractCache<T> {
+
+    // 默认的段数，必须是 2 的幂
+    public static final int DEFAULT_SEGMENTS = 16;
+
     /**
      * 引用计数嘛，除了普通的缓存功能，还需要另外维护一个计数。
      * 除此以外，为了应对多线程场景，还需要记录哪些资源正在从数据源获取中（从数据源获取资源是一个相对费时的操作）
+     * 每个正在获取的资源对应一个 latch，同一个 key 的其他请求者阻塞在这个 latch 上，获取结束（成功或失败）后立即被唤醒。
      */
-    private HashMap<Long, T> cache;                     // 实际缓存的数据
-    private HashMap<Long, Integer> references;          // 元素的引用个数
-    private HashMap<Long, Boolean> getting;             // 正在获取某资源的线程
+    private static class Segment<T> {
+        LongHashMap<T> cache = new LongHashMap<>();                       // 实际缓存的数据
+        LongIntHashMap references = new LongIntHashMap();                 // 元素的引用个数
+        LongHashMap<CountDownLatch> getting = new LongHashMap<>();        // 正在获取中的资源，等待者阻塞在对应的 latch 上
+        Lock lock = new ReentrantLock();
+    }
+
+    private Segment<T>[] segments;
+    private int segmentShift;
 
     private int maxResource;                            // 缓存的最大缓存资源数
-    private int count = 0;                              // 缓存中元素的个数
-    private Lock lock;
+    private AtomicInteger count;                        // 缓存中元素的个数
 
     public AbstractCache(int maxResource) {
+        this(maxResource, DEFAULT_SEGMENTS);
+    }
+
+    /**
+     * @param maxResource 缓存的最大资源数，0 表示不限制
+     * @param noSegments 段数，会被向上取整到 2 的幂，1 即退化为单锁缓存
+     */
+    @SuppressWarnings("unchecked")
+    public AbstractCache(int maxResource, int noSegments) {
+        int n = 1;
+        while(n < noSegments) {
+            n <<= 1;
+        }
         this.maxResource = maxResource;
-        cache = new HashMap<>();
-        references = new HashMap<>();
-        getting = new HashMap<>();
-        lock = new ReentrantLock();
+        this.count = new AtomicInteger(0);
+        this.segments = new Segment[n];
+        for(int i = 0; i < n; i ++) {
+            segments[i] = new Segment<>();
+        }
+        this.segmentShift = 64 - Integer.numberOfTrailingZeros(n);
+    }
+
+    // uid 的低位是页内偏移，高位是页号，乘一个奇数常量把高低位都混进段号里
+    private Segment<T> segmentFor(long key) {
+        if(segments.length == 1) {
+            return segments[0];
+        }
+        return segments[(int)((key * 0x9E3779B97F4A7C15L) >>> segmentShift)];
+    }
+
+    // 为一个新资源占用一个名额，缓存满时返回 false
+    private boolean tryReserve() {
+        while(true) {
+            int c = count.get();
+            if(maxResource > 0 && c >= maxResource) {
+                return false;
+            }
+            if(count.compareAndSet(c, c+1)) {
+                return true;
+            }
+        }
     }
 
     /**
      * 于是，在通过 get() 方法获取资源时，首先进入一个死循环，来无限尝试从缓存里获取。
-     * 首先就需要检查这个时候是否有其他线程正在从数据源获取这个资源，如果有，就过会再来看看（
+     * 首先就需要检查这个时候是否有其他线程正在从数据源获取这个资源，如果有，就阻塞在该资源的 latch 上，
+     * 等获取它的线程完成（或失败）后被唤醒，再重新检查一遍缓存。
+     * 整个过程只持有 key 所在段的锁。
      * @param key
      * @return
      * @throws Exception
      */
     protected T get(long key) throws Exception {
+        Segment<T> seg = segmentFor(key);
+        CountDownLatch loading;
         while(true) {
-            lock.lock();
-            if(getting.containsKey(key)) {
+            seg.lock.lock();
+            CountDownLatch inFlight = seg.getting.get(key);
+            if(inFlight != null) {
                 // 请求的资源正在被其他线程获取
-                lock.unlock();
+                seg.lock.unlock();
                 try {
-                    Thread.sleep(1);
+                    inFlight.await();
                 } catch (InterruptedException e) {
                     e.printStackTrace();
-                    continue;
                 }
                 continue;
             }
@@ -59,45 +114,48 @@ public abstract class AbstractCache<T> {
              * 当然如果资源在缓存中，就可以直接获取并返回了，记得要给资源的引用数 +1。
              * 否则，如果缓存没满的话，就在 getting 中注册一下，该线程准备从数据源获取资源了。
              */
-            if(cache.containsKey(key)) {
+            T cached = seg.cache.get(key);
+            if(cached != null) {
                 // 资源在缓存中，直接返回
-                T obj = cache.get(key);
-                references.put(key, references.get(key) + 1);
-                lock.unlock();
-                return obj;
+                seg.references.addTo(key, 1);
+                seg.lock.unlock();
+                return cached;
             }
 
             // 尝试获取该资源
-            if(maxResource > 0 && count == maxResource) {
-                lock.unlock();
+            if(!tryReserve()) {
+                seg.lock.unlock();
                 throw Error.CacheFullException;
             }
-            count ++;
-            getting.put(key, true);
-            lock.unlock();
+            loading = new CountDownLatch(1);
+            seg.getting.put(key, loading);
+            seg.lock.unlock();
             break;
         }
 
         /**
-         * 从数据源获取资源就比较简单了，直接调用那个抽象方法即可，获取完成记得从 getting 中删除 key。
+         * 从数据源获取资源就比较简单了，直接调用那个抽象方法即可，获取完成记得从 getting 中删除 key，
+         * 并打开 latch 唤醒所有等待该资源的线程。
          */
         T obj = null;
         try {
             obj = getForCache(key);
         } catch(Exception e) {
-            lock.lock();
-            count --;
-            getting.remove(key);
-            lock.unlock();
+            seg.lock.lock();
+            count.decrementAndGet();
+            seg.getting.remove(key);
+            seg.lock.unlock();
+            loading.countDown();
             throw e;
         }
 
-        lock.lock();
-        getting.remove(key);
-        cache.put(key, obj);
-        references.put(key, 1);
-        lock.unlock();
-        
+        seg.lock.lock();
+        seg.getting.remove(key);
+        seg.cache.put(key, obj);
+        seg.references.put(key, 1);
+        seg.lock.unlock();
+        loading.countDown();
+
         return obj;
     }
 
@@ -111,20 +169,19 @@ public abstract class AbstractCache<T> {
      * 如果已经减到 0 了，就可以回源，并且删除缓存中所有相关的结构了：
      */
     protected void release(long key) {
-        lock.lock();
+        Segment<T> seg = segmentFor(key);
+        seg.lock.lock();
         try {
-            int ref = references.get(key)-1;
+            int ref = seg.references.addTo(key, -1);
             if(ref == 0) {
-                T obj = cache.get(key);
+                T obj = seg.cache.get(key);
                 releaseForCache(obj);
-                references.remove(key);
-                cache.remove(key);
-                count --;
-            } else {
-                references.put(key, ref);
+                seg.references.remove(key);
+                seg.cache.remove(key);
+                count.decrementAndGet();
             }
         } finally {
-            lock.unlock();
+            seg.lock.unlock();
         }
     }
 
@@ -134,16 +191,19 @@ public abstract class AbstractCache<T> {
      * 关闭缓存，写回所有资源
      */
     protected void close() {
-        lock.lock();
-        try {
-            Set<Long> keys = cache.keySet();
-            for (long key : keys) {
-                release(key);
-                references.remove(key);
-                cache.remove(key);
+        for(Segment<T> seg : segments) {
+            seg.lock.lock();
+            try {
+                List<T> objs = seg.cache.values();
+                for(T obj : objs) {
+                    releaseForCache(obj);
+                }
+                count.addAndGet(-objs.size());
+                seg.references.clear();
+                seg.cache.clear();
+            } finally {
+                seg.lock.unlock();
             }
-        } finally {
-            lock.unlock();
         }
     }
 
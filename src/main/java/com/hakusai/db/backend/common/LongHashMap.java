@@ -0,0 +1,227 @@
+package com.hakusai.db.backend.common;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 以 long 为 key 的开放寻址哈希表（线性探测），用在缓存、锁表这类热点路径上，
+ * 避免 HashMap<Long, V> 每次 get/put 都要装箱 key、为每个元素分配 Node。
+ *
+ * keys 中 0 表示空槽，key 为 0 的元素单独存放；删除时使用 backward shift，不留墓碑。
+ * value 不允许为 null。非线程安全，由调用方加锁。
+ */
+public class LongHashMap<V> {
+
+    static final float LOAD_FACTOR = 0.5f;
+    static final long PHI = 0x9E3779B97F4A7C15L;
+
+    private long[] keys;
+    private Object[] values;
+    private boolean hasZeroKey;
+    private Object zeroValue;
+    private int size;
+    private int mask;
+    private int shift;
+    private int resizeAt;
+
+    public LongHashMap() {
+        this(16);
+    }
+
+    public LongHashMap(int expected) {
+        allocate(tableSizeFor((int)(Math.max(expected, 4) / LOAD_FACTOR)));
+    }
+
+    static int tableSizeFor(int n) {
+        int cap = 1;
+        while(cap < n) {
+            cap <<= 1;
+        }
+        return cap;
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+        shift = 64 - Integer.numberOfTrailingZeros(capacity);
+        resizeAt = (int)(capacity * LOAD_FACTOR);
+    }
+
+    private int slot(long key) {
+        return (int)((key * PHI) >>> shift);
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        if(key == 0) {
+            return hasZeroKey ? (V)zeroValue : null;
+        }
+        int i = slot(key);
+        while(true) {
+            long k = keys[i];
+            if(k == 0) {
+                return null;
+            }
+            if(k == key) {
+                return (V)values[i];
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    public boolean containsKey(long key) {
+        if(key == 0) {
+            return hasZeroKey;
+        }
+        return get(key) != null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value) {
+        if(key == 0) {
+            V old = hasZeroKey ? (V)zeroValue : null;
+            if(!hasZeroKey) {
+                hasZeroKey = true;
+                size ++;
+            }
+            zeroValue = value;
+            return old;
+        }
+        int i = slot(key);
+        while(true) {
+            long k = keys[i];
+            if(k == 0) {
+                keys[i] = key;
+                values[i] = value;
+                if(++ size >= resizeAt) {
+                    rehash();
+                }
+                return null;
+            }
+            if(k == key) {
+                V old = (V)values[i];
+                values[i] = value;
+                return old;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        if(key == 0) {
+            if(!hasZeroKey) {
+                return null;
+            }
+            V old = (V)zeroValue;
+            hasZeroKey = false;
+            zeroValue = null;
+            size --;
+            return old;
+        }
+        int i = slot(key);
+        while(true) {
+            long k = keys[i];
+            if(k == 0) {
+                return null;
+            }
+            if(k == key) {
+                V old = (V)values[i];
+                size --;
+                shiftKeys(i);
+                return old;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    // 删除 pos 处的元素后，把后面探测链上的元素往前挪，保证查找不会提前遇到空槽
+    private void shiftKeys(int pos) {
+        while(true) {
+            int last = pos;
+            pos = (pos + 1) & mask;
+            long k;
+            while(true) {
+                k = keys[pos];
+                if(k == 0) {
+                    keys[last] = 0;
+                    values[last] = null;
+                    return;
+                }
+                int home = slot(k);
+                if(last <= pos ? (last >= home || home > pos) : (last >= home && home > pos)) {
+                    break;
+                }
+                pos = (pos + 1) & mask;
+            }
+            keys[last] = k;
+            values[last] = values[pos];
+        }
+    }
+
+    private void rehash() {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        allocate(keys.length << 1);
+        for(int j = 0; j < oldKeys.length; j ++) {
+            long k = oldKeys[j];
+            if(k == 0) {
+                continue;
+            }
+            int i = slot(k);
+            while(keys[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = k;
+            values[i] = oldValues[j];
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, 0);
+        Arrays.fill(values, null);
+        hasZeroKey = false;
+        zeroValue = null;
+        size = 0;
+    }
+
+    // 以数组的形式返回所有 key 的拷贝
+    public long[] keys() {
+        long[] res = new long[size];
+        int n = 0;
+        if(hasZeroKey) {
+            res[n ++] = 0;
+        }
+        for(long k : keys) {
+            if(k != 0) {
+                res[n ++] = k;
+            }
+        }
+        return res;
+    }
+
+    // 以列表的形式返回所有 value 的拷贝
+    @SuppressWarnings("unchecked")
+    public List<V> values() {
+        List<V> res = new ArrayList<>(size);
+        if(hasZeroKey) {
+            res.add((V)zeroValue);
+        }
+        for(int i = 0; i < keys.length; i ++) {
+            if(keys[i] != 0) {
+                res.add((V)values[i]);
+            }
+        }
+        return res;
+    }
+}
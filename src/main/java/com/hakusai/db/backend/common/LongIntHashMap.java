@@ -0,0 +1,174 @@
+package com.hakusai.db.backend.common;
+
+import java.util.Arrays;
+
+/**
+ * 以 long 为 key、int 为 value 的开放寻址哈希表，key 和 value 都不装箱，用于引用计数这类计数器。
+ * 实现方式和 LongHashMap 相同：keys 中 0 表示空槽，key 为 0 的元素单独存放。非线程安全。
+ */
+public class LongIntHashMap {
+
+    private long[] keys;
+    private int[] values;
+    private boolean hasZeroKey;
+    private int zeroValue;
+    private int size;
+    private int mask;
+    private int shift;
+    private int resizeAt;
+
+    public LongIntHashMap() {
+        this(16);
+    }
+
+    public LongIntHashMap(int expected) {
+        allocate(LongHashMap.tableSizeFor((int)(Math.max(expected, 4) / LongHashMap.LOAD_FACTOR)));
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new int[capacity];
+        mask = capacity - 1;
+        shift = 64 - Integer.numberOfTrailingZeros(capacity);
+        resizeAt = (int)(capacity * LongHashMap.LOAD_FACTOR);
+    }
+
+    private int slot(long key) {
+        return (int)((key * LongHashMap.PHI) >>> shift);
+    }
+
+    // 返回 key 所在的槽位，不存在时返回 -1
+    private int indexOf(long key) {
+        int i = slot(key);
+        while(true) {
+            long k = keys[i];
+            if(k == 0) {
+                return -1;
+            }
+            if(k == key) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    public int getOrDefault(long key, int defaultValue) {
+        if(key == 0) {
+            return hasZeroKey ? zeroValue : defaultValue;
+        }
+        int i = indexOf(key);
+        return i < 0 ? defaultValue : values[i];
+    }
+
+    public boolean containsKey(long key) {
+        if(key == 0) {
+            return hasZeroKey;
+        }
+        return indexOf(key) >= 0;
+    }
+
+    public void put(long key, int value) {
+        if(key == 0) {
+            if(!hasZeroKey) {
+                hasZeroKey = true;
+                size ++;
+            }
+            zeroValue = value;
+            return;
+        }
+        int i = slot(key);
+        while(true) {
+            long k = keys[i];
+            if(k == 0) {
+                keys[i] = key;
+                values[i] = value;
+                if(++ size >= resizeAt) {
+                    rehash();
+                }
+                return;
+            }
+            if(k == key) {
+                values[i] = value;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    // 给 key 对应的值加上 delta（不存在视为 0），返回相加后的值
+    public int addTo(long key, int delta) {
+        int v = getOrDefault(key, 0) + delta;
+        put(key, v);
+        return v;
+    }
+
+    public void remove(long key) {
+        if(key == 0) {
+            if(hasZeroKey) {
+                hasZeroKey = false;
+                zeroValue = 0;
+                size --;
+            }
+            return;
+        }
+        int i = indexOf(key);
+        if(i < 0) {
+            return;
+        }
+        size --;
+        shiftKeys(i);
+    }
+
+    private void shiftKeys(int pos) {
+        while(true) {
+            int last = pos;
+            pos = (pos + 1) & mask;
+            long k;
+            while(true) {
+                k = keys[pos];
+                if(k == 0) {
+                    keys[last] = 0;
+                    values[last] = 0;
+                    return;
+                }
+                int home = slot(k);
+                if(last <= pos ? (last >= home || home > pos) : (last >= home && home > pos)) {
+                    break;
+                }
+                pos = (pos + 1) & mask;
+            }
+            keys[last] = k;
+            values[last] = values[pos];
+        }
+    }
+
+    private void rehash() {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        allocate(keys.length << 1);
+        for(int j = 0; j < oldKeys.length; j ++) {
+            long k = oldKeys[j];
+            if(k == 0) {
+                continue;
+            }
+            int i = slot(k);
+            while(keys[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = k;
+            values[i] = oldValues[j];
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, 0);
+        Arrays.fill(values, 0);
+        hasZeroKey = false;
+        zeroValue = 0;
+        size = 0;
+    }
+}
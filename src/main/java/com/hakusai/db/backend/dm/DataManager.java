@@ -18,6 +18,15 @@ import com.hakusai.db.backend.tm.TransactionManager;
 public interface DataManager {
     DataItem read(long uid) throws Exception;
     long insert(long xid, byte[] data) throws Exception;
+    // 释放不再被任何地方引用的 DataItem，页面末尾的空间归还给 PageIndex，见 DataManagerImpl
+    void free(long uid) throws Exception;
+    // 提示 uid 所在的页面马上会被访问，可以在后台预读
+    void prefetch(long uid);
+    int getPageSize();
+    // 下面的 PageCache，用来读它的统计，见 PageCache.getHits() 等
+    PageCache getPageCache();
+    // 等待目前已经写下的所有日志落盘
+    void flushLog();
     void close();
 
     /**
@@ -30,24 +39,51 @@ public interface DataManager {
      * @return
      */
     static DataManager create(String path, long mem, TransactionManager tm) {
-        PageCache pc = PageCache.create(path, mem);
+        return create(path, mem, false, tm);
+    }
+
+    static DataManager open(String path, long mem, TransactionManager tm) {
+        return open(path, mem, false, tm);
+    }
+
+    /**
+     * @param mmap 数据库文件是否以内存映射的方式读写，见 PageCache.create()
+     */
+    static DataManager create(String path, long mem, boolean mmap, TransactionManager tm) {
+        return create(path, mem, PageCache.PAGE_SIZE, mmap, tm);
+    }
+
+    /**
+     * @param pageSize 页面大小，只能在创建时指定，之后打开时从文件中读出
+     */
+    static DataManager create(String path, long mem, int pageSize, boolean mmap, TransactionManager tm) {
+        PageCache pc = PageCache.create(path, mem, pageSize, mmap);
         Logger lg = Logger.create(path);
 
         DataManagerImpl dm = new DataManagerImpl(pc, lg, tm);
         dm.initPageOne();
+        dm.startCheckpoint();
         return dm;
     }
 
-    static DataManager open(String path, long mem, TransactionManager tm) {
-        PageCache pc = PageCache.open(path, mem);
+    static DataManager open(String path, long mem, boolean mmap, TransactionManager tm) {
+        return open(path, mem, mmap, Recover.DEFAULT_REDO_THREADS, tm);
+    }
+
+    /**
+     * @param redoThreads 上一次没有正常关闭时，恢复中重做日志使用的线程数
+     */
+    static DataManager open(String path, long mem, boolean mmap, int redoThreads, TransactionManager tm) {
+        PageCache pc = PageCache.open(path, mem, mmap);
         Logger lg = Logger.open(path);
         DataManagerImpl dm = new DataManagerImpl(pc, lg, tm);
         if(!dm.loadCheckPageOne()) {
-            Recover.recover(tm, lg, pc);
+            Recover.recover(tm, lg, pc, redoThreads);
         }
         dm.fillPageIndex();
         PageOne.setVcOpen(dm.pageOne);
         dm.pc.flushPage(dm.pageOne);
+        dm.startCheckpoint();
 
         return dm;
     }
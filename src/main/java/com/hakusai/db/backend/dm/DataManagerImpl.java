@@ -1,6 +1,13 @@
 package com.hakusai.db.backend.dm;
 
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
 import com.hakusai.db.backend.common.AbstractCache;
+import com.hakusai.db.backend.common.LongHashMap;
 import com.hakusai.db.backend.dm.dataItem.DataItem;
 import com.hakusai.db.backend.dm.dataItem.DataItemImpl;
 import com.hakusai.db.backend.dm.logger.Logger;
@@ -11,24 +18,51 @@ import com.hakusai.db.backend.dm.pageCache.PageCache;
 import com.hakusai.db.backend.dm.pageIndex.PageIndex;
 import com.hakusai.db.backend.dm.pageIndex.PageInfo;
 import com.hakusai.db.backend.tm.TransactionManager;
+import com.hakusai.db.backend.tm.TransactionManagerImpl;
 import com.hakusai.db.backend.utils.Panic;
 import com.hakusai.db.backend.utils.Types;
 import com.hakusai.db.common.Error;
 
 public class DataManagerImpl extends AbstractCache<DataItem> implements DataManager {
 
+    // 两次检查点之间的间隔（毫秒）
+    public static final long CHECKPOINT_INTERVAL = 30 * 1000;
+    // 做检查点时等待正在进行的修改结束的最长时间（毫秒），超时则跳过这一次检查点
+    private static final long CHECKPOINT_WAIT = 1000;
+
     TransactionManager tm;
     PageCache pc;
     Logger logger;
     PageIndex pIndex;
     Page pageOne;
 
+    /**
+     * 所有对页面的修改（insert 和 DataItem 的 before/after）都持有读锁，检查点持有写锁，
+     * 这样检查点写回页面时，不会有修改进行到一半。
+     */
+    private ReadWriteLock checkpointLock;
+    private boolean closed;
+
+    /**
+     * 每个事务写下的第一条和最后一条日志的 LSN。
+     * 最后一条日志的 LSN 作为下一条日志的 PrevLSN，恢复时顺着它撤销事务；
+     * 检查点之后删除日志段时，不能删掉仍然活跃的事务的日志，否则崩溃后就无法撤销它们了。
+     * 已经结束的事务在检查点时才从这里清理。SUPER_XID 的日志永远不会被撤销，不记录。
+     */
+    private LongHashMap<long[]> xidLSNs;
+    private Lock xidLSNLock;
+
     public DataManagerImpl(PageCache pc, Logger logger, TransactionManager tm) {
         super(0);
         this.pc = pc;
         this.logger = logger;
         this.tm = tm;
-        this.pIndex = new PageIndex();
+        this.pIndex = new PageIndex(pc.getPageSize());
+        this.checkpointLock = new ReentrantReadWriteLock();
+        this.xidLSNs = new LongHashMap<>();
+        this.xidLSNLock = new ReentrantLock();
+        pc.setLogFlusher(logger::flush);
+        tm.setLogFlusher(this::flushLog);
     }
 
     /**
@@ -61,7 +95,8 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
     @Override
     public long insert(long xid, byte[] data) throws Exception {
         byte[] raw = DataItem.wrapDataItemRaw(data);
-        if(raw.length > PageX.MAX_FREE_SPACE) {
+        int maxFreeSpace = PageX.maxFreeSpace(pc.getPageSize());
+        if(raw.length > maxFreeSpace) {
             throw Error.DataTooLargeException;
         }
 
@@ -71,8 +106,8 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
             if (pi != null) {
                 break;
             } else {
-                int newPgno = pc.newPage(PageX.initRaw());
-                pIndex.add(newPgno, PageX.MAX_FREE_SPACE);
+                int newPgno = pc.newPage(PageX.initRaw(pc.getPageSize()));
+                pIndex.add(newPgno, maxFreeSpace);
             }
         }
         if(pi == null) {
@@ -83,45 +118,236 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
         int freeSpace = 0;
         try {
             pg = pc.getPage(pi.pgno);
-            byte[] log = Recover.insertLog(xid, pg, raw);
-            logger.log(log);
+            short offset;
+            beginModify();
+            try {
+                byte[] log = Recover.insertLog(xid, lastLSN(xid), pg, raw);
+                long lsn = log(xid, log);
+                noteLSN(xid, lsn);
 
-            short offset = PageX.insert(pg, raw);
+                offset = PageX.insert(pg, raw);
+                PageX.setPageLSN(pg, lsn);
+            } finally {
+                endModify();
+            }
 
-            pg.release();
             return Types.addressToUid(pi.pgno, offset);
 
         } finally {
-            // 将取出的pg重新插入pIndex
+            // 将取出的pg重新插入pIndex，页面 release 之后就可能被换成别的页面，要先取出空闲空间再 release
             if(pg != null) {
-                pIndex.add(pi.pgno, PageX.getFreeSpace(pg));
-            } else {
-                pIndex.add(pi.pgno, freeSpace);
+                freeSpace = PageX.getFreeSpace(pg);
+                pg.release();
+            }
+            pIndex.add(pi.pgno, freeSpace);
+        }
+    }
+
+    /**
+     * free() 用于回收 VM 中不再可见、也不再被引用的版本：先把有效位设为已释放，逻辑删除 DataItem，修改照常写日志。
+     * 随后检查它所在的页面，DataItem 的位置就是 UID，不能挪动，只有页面末尾连续的已释放 DataItem 占用的空间可以收回，
+     * 把 FSO 退回到最后一个没有释放的 DataItem 之后，写一条 freeLog，再把页面连同新的空闲空间放回 pageIndex。
+     *
+     * 收回 FSO 的过程中不能有插入在使用这个页面，所以和 insert() 一样先把页面从 pageIndex 中取出；
+     * 取不到说明正有插入在使用它，这次就不收回，页面末尾已释放的 DataItem 留到下一次 free() 同一页面时再收回。
+     * 调用者要保证 uid 不会再被读到，缓存中也没有它的引用，否则收回的空间被新的插入覆盖之后，旧的引用就会读到别的数据。
+     */
+    @Override
+    public void free(long uid) throws Exception {
+        DataItem di = read(uid);
+        if(di == null) {
+            return;
+        }
+        try {
+            di.before();
+            DataItem.setDataItemRawFreed(di.getRaw());
+            di.after(TransactionManagerImpl.SUPER_XID);
+        } finally {
+            di.release();
+        }
+
+        int pgno = (int)(uid >>> 32);
+        PageInfo pi = pIndex.remove(pgno);
+        if(pi == null) {
+            return;
+        }
+        Page pg = null;
+        int freeSpace = pi.freeSpace;
+        try {
+            pg = pc.getPage(pgno);
+            int end = PageX.getUsedEnd(pg);
+            if(end < pg.getData().length - PageX.getFreeSpace(pg)) {
+                beginModify();
+                try {
+                    long lsn = log(TransactionManagerImpl.SUPER_XID, Recover.freeLog(pgno, end));
+                    PageX.truncate(pg, end);
+                    PageX.setPageLSN(pg, lsn);
+                } finally {
+                    endModify();
+                }
             }
+            freeSpace = PageX.getFreeSpace(pg);
+        } finally {
+            if(pg != null) {
+                pg.release();
+            }
+            pIndex.add(pgno, freeSpace);
         }
     }
 
+    @Override
+    public int getPageSize() {
+        return pc.getPageSize();
+    }
+
+    @Override
+    public PageCache getPageCache() {
+        return pc;
+    }
+
+    @Override
+    public void prefetch(long uid) {
+        pc.prefetch((int)(uid >>> 32), 1);
+    }
+
     //DataManager 正常关闭时，需要执行缓存和日志的关闭流程，不要忘了设置第一页的字节校验：
     @Override
     public void close() {
+        checkpointLock.writeLock().lock();
+        closed = true;
+        checkpointLock.writeLock().unlock();
+
         super.close();
-        logger.close();
 
         PageOne.setVcClose(pageOne);
         pageOne.release();
+        // 写回页面时可能还要等待日志落盘，日志最后关闭
         pc.close();
+        logger.close();
     }
 
-    // 为xid生成update日志
-    public void logDataItem(long xid, DataItem di) {
-        byte[] log = Recover.updateLog(xid, di);
-        logger.log(log);
+    // 为xid生成update日志，返回日志的 LSN
+    public long logDataItem(long xid, DataItem di) {
+        byte[] log = Recover.updateLog(xid, lastLSN(xid), di);
+        long lsn = log(xid, log);
+        noteLSN(xid, lsn);
+        return lsn;
+    }
+
+    /**
+     * 异步提交的事务只追加日志，不等待落盘，它提交之后由 TM 的后台线程统一刷盘，见 TransactionManagerImpl。
+     * 有异步事务时，SUPER_XID 的日志（索引等结构的修改）也不等待落盘，否则异步事务每插入一行都要等一次索引日志的 fsync。
+     * 这些日志不属于任何事务、也不会被撤销，日志的顺序保证了它们在前面的日志之后落盘：
+     * 同步的日志、同步事务的提交、TM 的后台线程和检查点都会把日志刷到末尾。没有异步事务时仍然同步写入。
+     */
+    private long log(long xid, byte[] log) {
+        boolean lazy = xid == TransactionManagerImpl.SUPER_XID ? tm.hasAsync() : tm.isAsync(xid);
+        return lazy ? logger.append(log) : logger.log(log);
+    }
+
+    // 把目前所有的日志刷盘
+    @Override
+    public void flushLog() {
+        logger.flush(Long.MAX_VALUE);
+    }
+
+    /**
+     * 同一个事务的操作是由一个线程依次进行的，读出 PrevLSN、写日志、记下新的 LSN 之间不需要一直持有锁。
+     */
+    private long lastLSN(long xid) {
+        xidLSNLock.lock();
+        try {
+            long[] lsns = xidLSNs.get(xid);
+            return lsns == null ? Recover.NO_LSN : lsns[1];
+        } finally {
+            xidLSNLock.unlock();
+        }
+    }
+
+    private void noteLSN(long xid, long lsn) {
+        if(xid == TransactionManagerImpl.SUPER_XID) {
+            return;
+        }
+        xidLSNLock.lock();
+        try {
+            long[] lsns = xidLSNs.get(xid);
+            if(lsns == null) {
+                xidLSNs.put(xid, new long[] {lsn, lsn});
+            } else {
+                lsns[1] = lsn;
+            }
+        } finally {
+            xidLSNLock.unlock();
+        }
+    }
+
+    /**
+     * 清理已经结束的事务，返回仍然活跃的事务中最早的一条日志的 LSN。
+     * 已经异步提交、但状态还没有落盘的事务，崩溃后仍然是 active，要当作活跃的事务保留它的日志。
+     */
+    private long oldestActiveLSN() {
+        xidLSNLock.lock();
+        try {
+            long oldest = Long.MAX_VALUE;
+            for(long xid : xidLSNs.keys()) {
+                if(!tm.isActive(xid) && !tm.isCommitPending(xid)) {
+                    xidLSNs.remove(xid);
+                    continue;
+                }
+                oldest = Math.min(oldest, xidLSNs.get(xid)[0]);
+            }
+            return oldest;
+        } finally {
+            xidLSNLock.unlock();
+        }
     }
 
     public void releaseDataItem(DataItem di) {
         super.release(di.getUid());
     }
 
+    // 修改页面前后调用，和检查点互斥
+    public void beginModify() {
+        checkpointLock.readLock().lock();
+    }
+
+    public void endModify() {
+        checkpointLock.readLock().unlock();
+    }
+
+    /**
+     * 检查点：等待正在进行的修改结束，把所有脏页面写回并 fsync，再记录一条检查点日志。
+     * 检查点日志之前的所有日志对应的修改，此时都已经在数据文件中了。
+     * 随后删除检查点之前的日志段，但仍然活跃的事务的日志要留着，崩溃后撤销它们时还要用到。
+     *
+     * 这里用带超时的 tryLock：如果某个修改者持有读锁却在等待缓冲池的空闲帧，而空闲帧又被等在读锁上的线程 pin 住，
+     * 无限等待写锁就会死锁，超时后放弃这次检查点即可。
+     */
+    public void checkpoint() {
+        try {
+            if(!checkpointLock.writeLock().tryLock(CHECKPOINT_WAIT, TimeUnit.MILLISECONDS)) {
+                return;
+            }
+        } catch (InterruptedException e) {
+            return;
+        }
+        try {
+            if(closed) {
+                return;
+            }
+            pc.flushAll();
+            long lsn = logger.log(Recover.checkpointLog(pc.getPageNumber()));
+            logger.removeBefore(Math.min(lsn, oldestActiveLSN()));
+        } finally {
+            checkpointLock.writeLock().unlock();
+        }
+    }
+
+    // 由 PageCache 的刷脏线程定期调用 checkpoint()
+    void startCheckpoint() {
+        pc.setCheckpointer(this::checkpoint, CHECKPOINT_INTERVAL);
+    }
+
 
     /**
      * DataManager 是 DM 层直接对外提供方法的类，同时，也实现成 DataItem 对象的缓存。
@@ -151,7 +377,7 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
      * 其中，初始化第一页，和校验第一页，基本都是调用 PageOne 类中的方法实现的：
      */
     void initPageOne() {
-        int pgno = pc.newPage(PageOne.InitRaw());
+        int pgno = pc.newPage(PageOne.InitRaw(pc.getPageSize()));
         assert pgno == 1;
         try {
             pageOne = pc.getPage(pgno);
@@ -177,6 +403,8 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
      */
     void fillPageIndex() {
         int pageNumber = pc.getPageNumber();
+        // 顺序扫描所有页面，先给出预读提示，后面的窗口由 PageCache 识别顺序访问后自动预读
+        pc.prefetch(2, pageNumber - 1);
         for(int i = 2; i <= pageNumber; i ++) {
             Page pg = null;
             try {
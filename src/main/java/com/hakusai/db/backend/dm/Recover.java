@@ -2,22 +2,27 @@ package com.hakusai.db.backend.dm;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
+import java.util.PriorityQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 import com.google.common.primitives.Bytes;
 
+import com.hakusai.db.backend.common.LongHashMap;
 import com.hakusai.db.backend.common.SubArray;
 import com.hakusai.db.backend.dm.dataItem.DataItem;
+import com.hakusai.db.backend.dm.logger.LogReader;
 import com.hakusai.db.backend.dm.logger.Logger;
 import com.hakusai.db.backend.dm.page.Page;
 import com.hakusai.db.backend.dm.page.PageX;
 import com.hakusai.db.backend.dm.pageCache.PageCache;
 import com.hakusai.db.backend.tm.TransactionManager;
+import com.hakusai.db.backend.tm.TransactionManagerImpl;
 import com.hakusai.db.backend.utils.Panic;
 import com.hakusai.db.backend.utils.Parser;
+import com.hakusai.db.common.Error;
 
 /**
  * DM 为上层模块，提供了两种操作，分别是插入新数据（I）和更新现有数据（U）。
@@ -99,197 +104,453 @@ public class Recover {
     private static final byte LOG_TYPE_INSERT = 0;
     //update
     private static final byte LOG_TYPE_UPDATE = 1;
+    //checkpoint
+    private static final byte LOG_TYPE_CHECKPOINT = 2;
+    //update，只记录修改了的一段
+    private static final byte LOG_TYPE_DELTA = 3;
+    //回收页面末尾的空间
+    private static final byte LOG_TYPE_FREE = 4;
     //redolog
     private static final int REDO = 0;
     //undolog
     private static final int UNDO = 1;
 
+    // 事务的第一条日志的 PrevLSN，日志的 LSN 不会是 0
+    public static final long NO_LSN = 0;
+
+    // 恢复时重做的默认并行度
+    public static final int DEFAULT_REDO_THREADS = Runtime.getRuntime().availableProcessors();
+
     /**
-     * updateLog:
-     * [LogType] [XID] [UID] [OldRaw] [NewRaw]
+     * insertLog:
+     * [LogType] [XID] [PrevLSN] [Pgno] [Offset] [Raw]
      *
+     * PrevLSN 是同一个事务上一条日志的 LSN，撤销时顺着它往回走，不需要把事务的日志都缓存起来。
      */
     static class InsertLogInfo {
         long xid;
+        long prevLSN;
         int pgno;
         short offset;
-        byte[] raw;
+        SubArray raw;
     }
 
     /**
-     * insertLog:
-     * [LogType] [XID] [Pgno] [Offset] [Raw]
+     * updateLog:
+     * [LogType] [XID] [PrevLSN] [UID] [OldRaw] [NewRaw]
+     *
+     * deltaLog:
+     * [LogType] [XID] [PrevLSN] [UID] [Offset] [OldRaw] [NewRaw]
+     * 只记录 DataItem 中前后不同的那一段，Offset 是这一段在 DataItem 中的偏移，OldRaw 和 NewRaw 等长，长度由日志长度得到。
+     * 设置 XMAX 只改了 8 个字节，B+ 树节点插入一个键也只挪动了插入位置之后的部分，
+     * 整个 DataItem 的前后像里大部分都是重复的。两种日志解析出的 UpdateLogInfo 相同，重做和撤销不做区分。
+     *
+     * checkpointLog:
+     * [LogType] [PageNumber]
+     * 检查点日志之前的日志对应的修改都已经写回了数据文件，恢复时只需要从最后一个检查点开始 redo。
+     * 检查点之前的段文件会被删除，删除后日志中不一定能看到所有页面，所以检查点记下了当时的页数，
+     * 恢复时不会把这些页面截掉。
+     *
+     * freeLog:
+     * [LogType] [Pgno] [FSO]
+     * 页面末尾的 DataItem 都失效之后，把页面的 FreeSpaceOffset 退回到 FSO，回收这部分空间，见 DataManagerImpl.free()。
+     * 它不属于任何事务，只重做、不撤销。
      */
     static class UpdateLogInfo {
         long xid;
+        long prevLSN;
         int pgno;
         short offset;
-        byte[] oldRaw;
-        byte[] newRaw;
+        SubArray oldRaw;
+        SubArray newRaw;
     }
 
     /**
-     * 和原理中描述的类似，recover 例程主要也是两步：重做所有已完成事务，撤销所有未完成事务
+     * 恢复参考 ARIES，分为三步：
+     * 分析：顺序扫描一遍日志，得到脏页表（页号 -> 最后一个检查点之后第一条修改它的日志的 LSN，即 recLSN）
+     *      和事务表（XID -> 最后一条日志的 LSN），以及需要保留的页数。
+     * 重做：从最小的 recLSN 开始重放历史，不论事务是否完成，每个页面只重放它 recLSN 之后、
+     *      且 LSN 大于页面上 PageLSN 的日志，已经写回的修改不会重做第二遍。
+     * 撤销：崩溃时仍然活跃的事务是 loser，总是先撤销所有 loser 中 LSN 最大的那条日志，
+     *      再顺着它的 PrevLSN 找到这个事务的上一条日志，直到所有 loser 都撤销完。
+     *
+     * 日志只扫描两遍，撤销时按 LSN 直接读取需要的日志，不再把活跃事务的日志都缓存在内存里。
      * @param tm
      * @param lg
      * @param pc
      */
     public static void recover(TransactionManager tm, Logger lg, PageCache pc) {
+        recover(tm, lg, pc, DEFAULT_REDO_THREADS);
+    }
+
+    /**
+     * @param redoThreads 重做的并行度，为 1 时在读日志的线程中直接重做
+     */
+    public static void recover(TransactionManager tm, Logger lg, PageCache pc, int redoThreads) {
         System.out.println("Recovering...");
 
-        lg.rewind();
-        int maxPgno = 0;
-        while(true) {
-            byte[] log = lg.next();
-            if(log == null) break;
-            int pgno;
-            if(isInsertLog(log)) {
-                InsertLogInfo li = parseInsertLog(log);
-                pgno = li.pgno;
-            } else {
-                UpdateLogInfo li = parseUpdateLog(log);
-                pgno = li.pgno;
-            }
-            if(pgno > maxPgno) {
-                maxPgno = pgno;
-            }
-        }
-        if(maxPgno == 0) {
-            maxPgno = 1;
-        }
+        LogReader reader = lg.reader();
+        LongHashMap<Long> dirtyPages = new LongHashMap<>();
+        LongHashMap<long[]> lastLSNs = new LongHashMap<>();
+        int maxPgno = analyze(reader, dirtyPages, lastLSNs);
         pc.truncateByBgno(maxPgno);
         System.out.println("Truncate to " + maxPgno + " pages.");
 
-        redoTranscations(tm, lg, pc);
-        System.out.println("Redo Transactions Over.");
+        long begin = System.currentTimeMillis();
+        long redone = redo(reader, pc, dirtyPages, redoThreads);
+        System.out.println("Redo Transactions Over. " + redone + " logs, " + redoThreads + " threads, "
+            + (System.currentTimeMillis() - begin) + " ms.");
 
-        undoTranscations(tm, lg, pc);
+        undo(tm, reader, pc, lastLSNs);
         System.out.println("Undo Transactions Over.");
 
         System.out.println("Recovery Over.");
     }
 
     /**
-     *
-     * @param tm
-     * @param lg
-     * @param pc
+     * 分析：检查点时所有页面都已经写回，遇到检查点日志就清空脏页表。
+     * @return 恢复后需要保留的页数
      */
-    private static void redoTranscations(TransactionManager tm, Logger lg, PageCache pc) {
-        lg.rewind();
+    private static int analyze(LogReader reader, LongHashMap<Long> dirtyPages, LongHashMap<long[]> lastLSNs) {
+        int maxPgno = 0;
         while(true) {
-            byte[] log = lg.next();
+            SubArray log = reader.next();
             if(log == null) break;
-            if(isInsertLog(log)) {
-                InsertLogInfo li = parseInsertLog(log);
-                long xid = li.xid;
-                if(!tm.isActive(xid)) {
-                    doInsertLog(pc, log, REDO);
-                }
+            long lsn = reader.getLastLSN();
+            if(isCheckpointLog(log)) {
+                dirtyPages.clear();
+                maxPgno = Math.max(maxPgno, parseCheckpointLog(log));
+                continue;
+            }
+            int pgno = parsePgno(log);
+            maxPgno = Math.max(maxPgno, pgno);
+            if(!dirtyPages.containsKey(pgno)) {
+                dirtyPages.put(pgno, lsn);
+            }
+            if(isFreeLog(log)) {
+                continue;
+            }
+            long xid = parseXid(log);
+            if(xid == TransactionManagerImpl.SUPER_XID) {
+                continue;
+            }
+            long[] last = lastLSNs.get(xid);
+            if(last == null) {
+                lastLSNs.put(xid, new long[] {lsn});
             } else {
-                UpdateLogInfo xi = parseUpdateLog(log);
-                long xid = xi.xid;
-                if(!tm.isActive(xid)) {
-                    doUpdateLog(pc, log, REDO);
-                }
+                last[0] = lsn;
             }
         }
+        return Math.max(maxPgno, 1);
     }
 
-    private static void undoTranscations(TransactionManager tm, Logger lg, PageCache pc) {
-        Map<Long, List<byte[]>> logCache = new HashMap<>();
-        lg.rewind();
+    /**
+     * 重做：重放历史，包括 loser 的日志，随后的撤销会把 loser 的修改去掉。
+     * 不同页面的重做互不依赖，threads 大于 1 时按页号把日志分给多个重做线程，见 RedoWorker。
+     * @return 重做的日志条数（包括因为 PageLSN 而跳过的）
+     */
+    private static long redo(LogReader reader, PageCache pc, LongHashMap<Long> dirtyPages, int threads) {
+        long redoStart = Long.MAX_VALUE;
+        for(Long recLSN : dirtyPages.values()) {
+            redoStart = Math.min(redoStart, recLSN);
+        }
+        if(redoStart == Long.MAX_VALUE) {
+            return 0;
+        }
+        RedoWorker[] workers = null;
+        if(threads > 1) {
+            workers = new RedoWorker[threads];
+            for(int i = 0; i < threads; i ++) {
+                workers[i] = new RedoWorker(pc, i);
+                workers[i].start();
+            }
+        }
+
+        long n = 0;
+        reader.seek(redoStart);
         while(true) {
-            byte[] log = lg.next();
+            SubArray log = reader.next();
             if(log == null) break;
-            if(isInsertLog(log)) {
-                InsertLogInfo li = parseInsertLog(log);
-                long xid = li.xid;
-                if(tm.isActive(xid)) {
-                    if(!logCache.containsKey(xid)) {
-                        logCache.put(xid, new ArrayList<>());
-                    }
-                    logCache.get(xid).add(log);
-                }
+            if(isCheckpointLog(log)) continue;
+            int pgno = parsePgno(log);
+            Long recLSN = dirtyPages.get(pgno);
+            if(recLSN == null || reader.getLastLSN() < recLSN) {
+                continue;
+            }
+            n ++;
+            if(workers == null) {
+                redoLog(pc, log, reader.getLastLSN());
             } else {
-                UpdateLogInfo xi = parseUpdateLog(log);
-                long xid = xi.xid;
-                if(tm.isActive(xid)) {
-                    if(!logCache.containsKey(xid)) {
-                        logCache.put(xid, new ArrayList<>());
-                    }
-                    logCache.get(xid).add(log);
+                workers[pgno % threads].add(log, reader.getLastLSN());
+            }
+        }
+
+        if(workers != null) {
+            for(RedoWorker w : workers) {
+                w.finish();
+            }
+            try {
+                for(RedoWorker w : workers) {
+                    w.join();
                 }
+            } catch (InterruptedException e) {
+                Panic.panic(e);
             }
         }
+        return n;
+    }
 
-        // 对所有active log进行倒序undo
-        for(Entry<Long, List<byte[]>> entry : logCache.entrySet()) {
-            List<byte[]> logs = entry.getValue();
-            for (int i = logs.size()-1; i >= 0; i --) {
-                byte[] log = logs.get(i);
-                if(isInsertLog(log)) {
-                    doInsertLog(pc, log, UNDO);
-                } else {
-                    doUpdateLog(pc, log, UNDO);
+    private static void redoLog(PageCache pc, SubArray log, long lsn) {
+        if(isInsertLog(log)) {
+            doInsertLog(pc, parseInsertLog(log), lsn, REDO);
+        } else if(isFreeLog(log)) {
+            doFreeLog(pc, log, lsn);
+        } else {
+            doUpdateLog(pc, parseUpdateLog(log), lsn, REDO);
+        }
+    }
+
+    // 分给一个重做线程的一批日志的大小，以及每个重做线程最多积压的批数
+    private static final int REDO_BATCH_SIZE = 64 << 10;
+    private static final int REDO_QUEUE_LENGTH = 16;
+
+    /**
+     * 重做线程。同一个页面的日志总是分给同一个线程，并按 LSN 的顺序进入它的队列，每个页面上的重做顺序不变。
+     * LogReader 返回的视图读下一条日志时就失效了，所以读日志的线程把日志拷贝进一批中，
+     * 攒够 REDO_BATCH_SIZE 再交给重做线程，而不是每条日志都进出一次队列。
+     */
+    private static class RedoWorker extends Thread {
+        private static final RedoBatch END = new RedoBatch();
+
+        private PageCache pc;
+        private BlockingQueue<RedoBatch> queue;
+        private RedoBatch batch;        // 正在攒的一批，只由读日志的线程访问
+
+        RedoWorker(PageCache pc, int id) {
+            super("redo-" + id);
+            this.pc = pc;
+            this.queue = new ArrayBlockingQueue<>(REDO_QUEUE_LENGTH);
+            this.batch = new RedoBatch();
+        }
+
+        void add(SubArray log, long lsn) {
+            batch.add(log, lsn);
+            if(batch.len >= REDO_BATCH_SIZE) {
+                put(batch);
+                batch = new RedoBatch();
+            }
+        }
+
+        void finish() {
+            put(batch);
+            put(END);
+        }
+
+        private void put(RedoBatch b) {
+            try {
+                queue.put(b);
+            } catch (InterruptedException e) {
+                Panic.panic(e);
+            }
+        }
+
+        @Override
+        public void run() {
+            while(true) {
+                RedoBatch b = null;
+                try {
+                    b = queue.take();
+                } catch (InterruptedException e) {
+                    Panic.panic(e);
+                }
+                if(b == END) {
+                    return;
+                }
+                for(int i = 0; i < b.count; i ++) {
+                    redoLog(pc, new SubArray(b.raw, b.starts[i], b.ends[i]), b.lsns[i]);
                 }
             }
-            tm.abort(entry.getKey());
         }
     }
 
-    private static boolean isInsertLog(byte[] log) {
-        return log[0] == LOG_TYPE_INSERT;
+    // 拷贝在一起的一批日志，第 i 条日志是 raw[starts[i], ends[i])，LSN 为 lsns[i]
+    private static class RedoBatch {
+        byte[] raw = new byte[REDO_BATCH_SIZE];
+        int len;
+        long[] lsns = new long[64];
+        int[] starts = new int[64];
+        int[] ends = new int[64];
+        int count;
+
+        void add(SubArray log, long lsn) {
+            int size = log.end - log.start;
+            if(len + size > raw.length) {
+                raw = Arrays.copyOf(raw, Math.max(raw.length * 2, len + size));
+            }
+            if(count == lsns.length) {
+                lsns = Arrays.copyOf(lsns, count * 2);
+                starts = Arrays.copyOf(starts, count * 2);
+                ends = Arrays.copyOf(ends, count * 2);
+            }
+            System.arraycopy(log.raw, log.start, raw, len, size);
+            lsns[count] = lsn;
+            starts[count] = len;
+            ends[count] = len + size;
+            len += size;
+            count ++;
+        }
     }
 
-    // [LogType] [XID] [UID] [OldRaw] [NewRaw]
+    /**
+     * 撤销：用一个大顶堆按 LSN 从大到小撤销所有 loser 的日志。
+     */
+    private static void undo(TransactionManager tm, LogReader reader, PageCache pc, LongHashMap<long[]> lastLSNs) {
+        PriorityQueue<Long> toUndo = new PriorityQueue<>(Collections.reverseOrder());
+        List<Long> losers = new ArrayList<>();
+        for(long xid : lastLSNs.keys()) {
+            if(tm.isActive(xid)) {
+                losers.add(xid);
+                toUndo.add(lastLSNs.get(xid)[0]);
+            }
+        }
+
+        while(!toUndo.isEmpty()) {
+            long lsn = toUndo.poll();
+            SubArray log = reader.read(lsn);
+            if(log == null) {
+                Panic.panic(Error.BadLogFileException);
+            }
+            long prevLSN;
+            if(isInsertLog(log)) {
+                InsertLogInfo li = parseInsertLog(log);
+                doInsertLog(pc, li, lsn, UNDO);
+                prevLSN = li.prevLSN;
+            } else {
+                UpdateLogInfo xi = parseUpdateLog(log);
+                doUpdateLog(pc, xi, lsn, UNDO);
+                prevLSN = xi.prevLSN;
+            }
+            if(prevLSN != NO_LSN) {
+                toUndo.add(prevLSN);
+            }
+        }
+
+        for(long xid : losers) {
+            tm.abort(xid);
+        }
+    }
+
+    private static boolean isInsertLog(SubArray log) {
+        return log.raw[log.start] == LOG_TYPE_INSERT;
+    }
+
+    private static boolean isCheckpointLog(SubArray log) {
+        return log.raw[log.start] == LOG_TYPE_CHECKPOINT;
+    }
+
+    private static boolean isFreeLog(SubArray log) {
+        return log.raw[log.start] == LOG_TYPE_FREE;
+    }
+
+    public static byte[] checkpointLog(int pageNumber) {
+        return Bytes.concat(new byte[] {LOG_TYPE_CHECKPOINT}, Parser.int2Byte(pageNumber));
+    }
+
+    private static int parseCheckpointLog(SubArray log) {
+        return Parser.parseInt(log.raw, log.start+1);
+    }
+
+    // 插入和更新日志共同的部分：[LogType] [XID] [PrevLSN]
     private static final int OF_TYPE = 0;
     private static final int OF_XID = OF_TYPE+1;
-    private static final int OF_UPDATE_UID = OF_XID+8;
+    private static final int OF_PREV_LSN = OF_XID+8;
+
+    private static long parseXid(SubArray log) {
+        return Parser.parseLong(log.raw, log.start+OF_XID);
+    }
+
+    // 插入、更新和回收日志修改的页号
+    private static int parsePgno(SubArray log) {
+        if(isInsertLog(log)) {
+            return Parser.parseInt(log.raw, log.start+OF_INSERT_PGNO);
+        }
+        if(isFreeLog(log)) {
+            return Parser.parseInt(log.raw, log.start+OF_FREE_PGNO);
+        }
+        return (int)(Parser.parseLong(log.raw, log.start+OF_UPDATE_UID) >>> 32);
+    }
+
+    // [LogType] [XID] [PrevLSN] [UID] [OldRaw] [NewRaw]
+    private static final int OF_UPDATE_UID = OF_PREV_LSN+8;
     private static final int OF_UPDATE_RAW = OF_UPDATE_UID+8;
+    // [LogType] [XID] [PrevLSN] [UID] [Offset] [OldRaw] [NewRaw]
+    private static final int OF_DELTA_OFFSET = OF_UPDATE_UID+8;
+    private static final int OF_DELTA_RAW = OF_DELTA_OFFSET+2;
 
-    public static byte[] updateLog(long xid, DataItem di) {
-        byte[] logType = {LOG_TYPE_UPDATE};
-        byte[] xidRaw = Parser.long2Byte(xid);
-        byte[] uidRaw = Parser.long2Byte(di.getUid());
+    /**
+     * 比较 DataItem 修改前后的内容，只有 [from, to) 这一段不同。
+     * 只记这一段比记录整个前后像更短时写 deltaLog，否则写 updateLog。
+     */
+    public static byte[] updateLog(long xid, long prevLSN, DataItem di) {
         byte[] oldRaw = di.getOldRaw();
         SubArray raw = di.getRaw();
+        int length = raw.end - raw.start;
+        int from = 0;
+        while(from < length && oldRaw[from] == raw.raw[raw.start+from]) {
+            from ++;
+        }
+        int to = length;
+        while(to > from && oldRaw[to-1] == raw.raw[raw.start+to-1]) {
+            to --;
+        }
+
+        byte[] xidRaw = Parser.long2Byte(xid);
+        byte[] prevRaw = Parser.long2Byte(prevLSN);
+        byte[] uidRaw = Parser.long2Byte(di.getUid());
+        if(2 + (to - from) * 2 < length * 2) {
+            return Bytes.concat(new byte[] {LOG_TYPE_DELTA}, xidRaw, prevRaw, uidRaw, Parser.short2Byte((short)from),
+                Arrays.copyOfRange(oldRaw, from, to), Arrays.copyOfRange(raw.raw, raw.start+from, raw.start+to));
+        }
         byte[] newRaw = Arrays.copyOfRange(raw.raw, raw.start, raw.end);
-        return Bytes.concat(logType, xidRaw, uidRaw, oldRaw, newRaw);
+        return Bytes.concat(new byte[] {LOG_TYPE_UPDATE}, xidRaw, prevRaw, uidRaw, oldRaw, newRaw);
     }
 
-    private static UpdateLogInfo parseUpdateLog(byte[] log) {
+    // 解析 updateLog 和 deltaLog，解析出的 oldRaw 和 newRaw 都是 log 上的视图，不做拷贝
+    private static UpdateLogInfo parseUpdateLog(SubArray log) {
         UpdateLogInfo li = new UpdateLogInfo();
-        li.xid = Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_UPDATE_UID));
-        long uid = Parser.parseLong(Arrays.copyOfRange(log, OF_UPDATE_UID, OF_UPDATE_RAW));
+        li.xid = Parser.parseLong(log.raw, log.start+OF_XID);
+        li.prevLSN = Parser.parseLong(log.raw, log.start+OF_PREV_LSN);
+        long uid = Parser.parseLong(log.raw, log.start+OF_UPDATE_UID);
         li.offset = (short)(uid & ((1L << 16) - 1));
         uid >>>= 32;
         li.pgno = (int)(uid & ((1L << 32) - 1));
-        int length = (log.length - OF_UPDATE_RAW) / 2;
-        li.oldRaw = Arrays.copyOfRange(log, OF_UPDATE_RAW, OF_UPDATE_RAW+length);
-        li.newRaw = Arrays.copyOfRange(log, OF_UPDATE_RAW+length, OF_UPDATE_RAW+length*2);
+        int rawStart = log.start + OF_UPDATE_RAW;
+        if(log.raw[log.start] == LOG_TYPE_DELTA) {
+            li.offset += Parser.parseShort(log.raw, log.start+OF_DELTA_OFFSET);
+            rawStart = log.start + OF_DELTA_RAW;
+        }
+        int length = (log.end - rawStart) / 2;
+        li.oldRaw = new SubArray(log.raw, rawStart, rawStart+length);
+        li.newRaw = new SubArray(log.raw, rawStart+length, rawStart+length*2);
         return li;
     }
 
     /**
      * updateLog 和 insertLog 的重做和撤销处理，分别合并成一个方法来实现：
+     * 重做时，页面的 PageLSN 不小于日志的 LSN，说明这条日志的修改已经随页面写回了，直接跳过；
+     * 否则重做之后把 PageLSN 推进到这条日志。撤销不写日志，也不改动 PageLSN。
      * @param pc
      * @param log
+     * @param lsn 日志的 LSN
      * @param flag
      */
-    private static void doUpdateLog(PageCache pc, byte[] log, int flag) {
-        int pgno;
-        short offset;
-        byte[] raw;
+    private static void doUpdateLog(PageCache pc, UpdateLogInfo xi, long lsn, int flag) {
+        int pgno = xi.pgno;
+        short offset = xi.offset;
+        SubArray raw;
         if(flag == REDO) {
-            UpdateLogInfo xi = parseUpdateLog(log);
-            pgno = xi.pgno;
-            offset = xi.offset;
             raw = xi.newRaw;
         } else {
-            UpdateLogInfo xi = parseUpdateLog(log);
-            pgno = xi.pgno;
-            offset = xi.offset;
             raw = xi.oldRaw;
         }
         Page pg = null;
@@ -299,36 +560,43 @@ public class Recover {
             Panic.panic(e);
         }
         try {
+            if(flag == REDO && PageX.getPageLSN(pg) >= lsn) {
+                return;
+            }
             PageX.recoverUpdate(pg, raw, offset);
+            if(flag == REDO) {
+                PageX.setPageLSN(pg, lsn);
+            }
         } finally {
             pg.release();
         }
     }
 
-    // [LogType] [XID] [Pgno] [Offset] [Raw]
-    private static final int OF_INSERT_PGNO = OF_XID+8;
+    // [LogType] [XID] [PrevLSN] [Pgno] [Offset] [Raw]
+    private static final int OF_INSERT_PGNO = OF_PREV_LSN+8;
     private static final int OF_INSERT_OFFSET = OF_INSERT_PGNO+4;
     private static final int OF_INSERT_RAW = OF_INSERT_OFFSET+2;
 
-    public static byte[] insertLog(long xid, Page pg, byte[] raw) {
+    public static byte[] insertLog(long xid, long prevLSN, Page pg, byte[] raw) {
         byte[] logTypeRaw = {LOG_TYPE_INSERT};
         byte[] xidRaw = Parser.long2Byte(xid);
+        byte[] prevRaw = Parser.long2Byte(prevLSN);
         byte[] pgnoRaw = Parser.int2Byte(pg.getPageNumber());
         byte[] offsetRaw = Parser.short2Byte(PageX.getFSO(pg));
-        return Bytes.concat(logTypeRaw, xidRaw, pgnoRaw, offsetRaw, raw);
+        return Bytes.concat(logTypeRaw, xidRaw, prevRaw, pgnoRaw, offsetRaw, raw);
     }
 
-    private static InsertLogInfo parseInsertLog(byte[] log) {
+    private static InsertLogInfo parseInsertLog(SubArray log) {
         InsertLogInfo li = new InsertLogInfo();
-        li.xid = Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_INSERT_PGNO));
-        li.pgno = Parser.parseInt(Arrays.copyOfRange(log, OF_INSERT_PGNO, OF_INSERT_OFFSET));
-        li.offset = Parser.parseShort(Arrays.copyOfRange(log, OF_INSERT_OFFSET, OF_INSERT_RAW));
-        li.raw = Arrays.copyOfRange(log, OF_INSERT_RAW, log.length);
+        li.xid = Parser.parseLong(log.raw, log.start+OF_XID);
+        li.prevLSN = Parser.parseLong(log.raw, log.start+OF_PREV_LSN);
+        li.pgno = Parser.parseInt(log.raw, log.start+OF_INSERT_PGNO);
+        li.offset = Parser.parseShort(log.raw, log.start+OF_INSERT_OFFSET);
+        li.raw = new SubArray(log.raw, log.start+OF_INSERT_RAW, log.end);
         return li;
     }
 
-    private static void doInsertLog(PageCache pc, byte[] log, int flag) {
-        InsertLogInfo li = parseInsertLog(log);
+    private static void doInsertLog(PageCache pc, InsertLogInfo li, long lsn, int flag) {
         Page pg = null;
         try {
             pg = pc.getPage(li.pgno);
@@ -336,14 +604,48 @@ public class Recover {
             Panic.panic(e);
         }
         try {
+            if(flag == REDO && PageX.getPageLSN(pg) >= lsn) {
+                return;
+            }
             /**
-             * 注意，doInsertLog() 方法中的删除，使用的是 DataItem.setDataItemRawInvalid(li.raw);
+             * 注意，doInsertLog() 方法中的删除，使用的是 DataItem.setDataItemRawInvalid();
              * 大致的作用，就是将该条 DataItem 的有效位设置为无效，来进行逻辑删除。
+             * li.raw 是 LogReader 缓冲区上的视图，所以写入页面之后再在页面上设置有效位。
              */
+            PageX.recoverInsert(pg, li.raw, li.offset);
             if(flag == UNDO) {
-                DataItem.setDataItemRawInvalid(li.raw);
+                DataItem.setDataItemRawInvalid(new SubArray(pg.getData(), li.offset, li.offset + li.raw.end - li.raw.start));
+            } else {
+                PageX.setPageLSN(pg, lsn);
             }
-            PageX.recoverInsert(pg, li.raw, li.offset);
+        } finally {
+            pg.release();
+        }
+    }
+
+    // [LogType] [Pgno] [FSO]
+    private static final int OF_FREE_PGNO = OF_TYPE+1;
+    private static final int OF_FREE_FSO = OF_FREE_PGNO+4;
+
+    public static byte[] freeLog(int pgno, int fso) {
+        return Bytes.concat(new byte[] {LOG_TYPE_FREE}, Parser.int2Byte(pgno), Parser.int2Byte(fso));
+    }
+
+    private static void doFreeLog(PageCache pc, SubArray log, long lsn) {
+        int pgno = Parser.parseInt(log.raw, log.start+OF_FREE_PGNO);
+        int fso = Parser.parseInt(log.raw, log.start+OF_FREE_FSO);
+        Page pg = null;
+        try {
+            pg = pc.getPage(pgno);
+        } catch(Exception e) {
+            Panic.panic(e);
+        }
+        try {
+            if(PageX.getPageLSN(pg) >= lsn) {
+                return;
+            }
+            PageX.truncate(pg, fso);
+            PageX.setPageLSN(pg, lsn);
         } finally {
             pg.release();
         }
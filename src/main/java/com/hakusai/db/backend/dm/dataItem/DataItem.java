@@ -46,7 +46,26 @@ public interface DataItem {
         return new DataItemImpl(new SubArray(raw, offset, offset+length), new byte[length], pg, uid, dm);
     }
 
+    // 页面 raw 中 offset 处的 DataItem 是否已经被 DataManager.free() 释放
+    public static boolean isDataItemRawFreed(byte[] raw, int offset) {
+        return raw[offset+DataItemImpl.OF_VALID] == DataItemImpl.FREED;
+    }
+
+    // 页面 raw 中 offset 处的 DataItem 的总长度，包括 ValidFlag 和 DataSize
+    public static int getDataItemRawLength(byte[] raw, int offset) {
+        return (Parser.parseShort(Arrays.copyOfRange(raw, offset+DataItemImpl.OF_SIZE, offset+DataItemImpl.OF_DATA)) & 0xFFFF)
+            + DataItemImpl.OF_DATA;
+    }
+
     public static void setDataItemRawInvalid(byte[] raw) {
         raw[DataItemImpl.OF_VALID] = (byte)1;
     }
+
+    public static void setDataItemRawInvalid(SubArray raw) {
+        raw.raw[raw.start + DataItemImpl.OF_VALID] = (byte)1;
+    }
+
+    public static void setDataItemRawFreed(SubArray raw) {
+        raw.raw[raw.start + DataItemImpl.OF_VALID] = DataItemImpl.FREED;
+    }
 }
@@ -5,6 +5,7 @@ import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import com.hakusai.db.backend.dm.page.Page;
+import com.hakusai.db.backend.dm.page.PageX;
 import com.hakusai.db.backend.common.SubArray;
 import com.hakusai.db.backend.dm.DataManagerImpl;
 
@@ -13,11 +14,13 @@ import com.hakusai.db.backend.dm.DataManagerImpl;
  *
  * dataItem 结构如下：
  * [ValidFlag] [DataSize] [Data]
- * ValidFlag 1字节，0为合法，1为非法
+ * ValidFlag 1字节，0为合法，1为非法，2为已经释放（同样非法）
  * DataSize  2字节，标识Data的长度
  *
  * 其中 ValidFlag 占用 1 字节，标识了该 DataItem 是否有效。
  * 删除一个 DataItem，只需要简单地将其有效位设置为 0。
+ * 撤销插入留下的非法 DataItem 可能仍然被索引指向，它的空间不能收回；
+ * 只有上层确认不再被引用、通过 DataManager.free() 释放的 DataItem 才标记为 2，它占用的空间可以被收回。
  * DataSize 占用 2 字节，标识了后面 Data 的长度。
  *
  * 上层模块在获取到 DataItem 后，可以通过 data() 方法，
@@ -29,6 +32,8 @@ public class DataItemImpl implements DataItem {
     static final int OF_SIZE = 1;
     static final int OF_DATA = 3;
 
+    static final byte FREED = 2;
+
     private SubArray raw;
     private byte[] oldRaw;
     private Lock rLock;
@@ -72,6 +77,7 @@ public class DataItemImpl implements DataItem {
      */
     @Override
     public void before() {
+        dm.beginModify();
         wLock.lock();
         pg.setDirty(true);
         System.arraycopy(raw.raw, raw.start, oldRaw, 0, oldRaw.length);
@@ -81,13 +87,16 @@ public class DataItemImpl implements DataItem {
     public void unBefore() {
         System.arraycopy(oldRaw, 0, raw.raw, raw.start, oldRaw.length);
         wLock.unlock();
+        dm.endModify();
     }
 
-    //after() 方法，主要就是调用 dm 中的一个方法，对修改操作落日志。
+    //after() 方法，主要就是调用 dm 中的一个方法，对修改操作落日志，并把日志的 LSN 记到页面上。
     @Override
     public void after(long xid) {
-        dm.logDataItem(xid, this);
+        long lsn = dm.logDataItem(xid, this);
+        PageX.setPageLSN(pg, lsn);
         wLock.unlock();
+        dm.endModify();
     }
 
     /**
@@ -0,0 +1,230 @@
+package com.hakusai.db.backend.dm.logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import com.hakusai.db.backend.common.SubArray;
+import com.hakusai.db.backend.utils.Panic;
+import com.hakusai.db.common.Error;
+
+/**
+ * 顺序读取日志的迭代器，恢复和打开日志时使用。
+ *
+ * Logger.next() 每条日志要读两次文件（先读日志头，再读 Data），还要为每条日志分配新的数组，
+ * 日志很大时，恢复的时间基本都花在系统调用和内存分配上了。
+ * LogReader 每次从段文件中读入一大块（默认 1MB）到同一个缓冲区，日志就在缓冲区中解析和校验，
+ * next() 返回的是 Data 在缓冲区中的 SubArray 视图，不做拷贝。
+ * 缓冲区读完时，把没解析完的半条日志挪到缓冲区开头再接着读；单条日志比缓冲区大时扩大缓冲区。
+ *
+ * 注意 next() 返回的视图只在下一次调用 next() 之前有效，需要保留的日志要自己拷贝出来。
+ * 读取期间不能删除段文件（Logger.removeBefore()）。
+ *
+ * 压缩过的日志校验通过后解压到另一个缓冲区 inflated 中，返回的是它上面的视图，有效期同上。
+ */
+public class LogReader {
+
+    static final int BUFFER_SIZE = 1 << 20;
+
+    private FileChannel[] channels;
+    private long[] bases;
+    private long[] ends;        // 每个段可读的范围是 [base + HEADER_SIZE, end)
+
+    private int segment;        // 当前所在的段
+    private long position;      // 下一条要读的日志的 LSN
+    private long lastLSN;
+
+    private byte[] buf;
+    private ByteBuffer view;
+    private long bufLSN;        // buf[0] 对应的 LSN
+    private int bufLen;         // buf 中有效的字节数
+
+    private boolean sequential; // 顺序读时每次读入一整块，按 LSN 随机读时只读需要的字节
+
+    private CRC32 crc;
+    private byte[] lsnRaw;
+
+    private Inflater inflater;  // 用到时才创建
+    private byte[] inflated;
+
+    LogReader(FileChannel[] channels, long[] bases, long[] ends) {
+        this.channels = channels;
+        this.bases = bases;
+        this.ends = ends;
+        this.buf = new byte[BUFFER_SIZE];
+        this.view = ByteBuffer.wrap(buf);
+        this.crc = new CRC32();
+        this.lsnRaw = new byte[8];
+        rewind();
+    }
+
+    public void rewind() {
+        seek(bases[0] + LoggerImpl.HEADER_SIZE);
+    }
+
+    /**
+     * 从 lsn 处开始顺序读取，lsn 必须是某条日志的 LSN。lsn 已经在缓冲区中时不会重新读文件。
+     */
+    public void seek(long lsn) {
+        int seg = bases.length - 1;
+        while(seg > 0 && bases[seg] > lsn) {
+            seg --;
+        }
+        if(seg != segment || lsn < bufLSN || lsn > bufLSN + bufLen) {
+            bufLSN = lsn;
+            bufLen = 0;
+        }
+        segment = seg;
+        position = lsn;
+        sequential = true;
+    }
+
+    /**
+     * 读取 LSN 为 lsn 的日志，撤销时顺着 PrevLSN 往回读使用。
+     * 返回的视图同样只在下一次读取之前有效，之后的 next() 从这条日志之后继续。
+     */
+    public SubArray read(long lsn) {
+        seek(lsn);
+        sequential = false;
+        return readRecord();
+    }
+
+    /**
+     * 返回下一条日志的 Data，没有下一条或者遇到 BadTail 时返回 null。
+     * 读完一个段后，只有当这个段一直有效到末尾、且下一个段恰好从这里开始时，才继续读下一个段。
+     */
+    public SubArray next() {
+        while(true) {
+            SubArray data = readRecord();
+            if(data != null) {
+                return data;
+            }
+            if(segment + 1 >= bases.length || position != ends[segment] || bases[segment + 1] != position) {
+                return null;
+            }
+            seek(bases[segment + 1] + LoggerImpl.HEADER_SIZE);
+        }
+    }
+
+    // next() 上一次返回的日志的 LSN
+    public long getLastLSN() {
+        return lastLSN;
+    }
+
+    // 下一条要读的日志的 LSN，遇到 BadTail 后即为有效日志的末尾
+    public long getPosition() {
+        return position;
+    }
+
+    private SubArray readRecord() {
+        if(position + LoggerImpl.OF_DATA > ends[segment] || !fill(LoggerImpl.OF_DATA)) {
+            return null;
+        }
+        int off = (int)(position - bufLSN);
+        int sizeField = view.getInt(off + LoggerImpl.OF_SIZE);
+        boolean compressed = (sizeField & LoggerImpl.COMPRESSED) != 0;
+        int size = sizeField & ~LoggerImpl.COMPRESSED;
+        if(compressed && size < LoggerImpl.OF_RAW_SIZE || position + LoggerImpl.OF_DATA + size > ends[segment]) {
+            return null;
+        }
+        if(view.getLong(off + LoggerImpl.OF_LSN) != position) {
+            return null;
+        }
+        if(!fill(LoggerImpl.OF_DATA + size)) {
+            return null;
+        }
+        // fill() 可能挪动了缓冲区
+        off = (int)(position - bufLSN);
+        int checksum = view.getInt(off + LoggerImpl.OF_CHECKSUM);
+        int start = off + LoggerImpl.OF_DATA;
+
+        crc.reset();
+        crc.update(buf, start, size);
+        for(int i = 0; i < 8; i ++) {
+            lsnRaw[i] = (byte)(position >>> (56 - 8 * i));
+        }
+        crc.update(lsnRaw);
+        if((int)crc.getValue() != checksum) {
+            return null;
+        }
+
+        lastLSN = position;
+        position += LoggerImpl.OF_DATA + size;
+        if(compressed) {
+            return inflate(start, size);
+        }
+        return new SubArray(buf, start, start + size);
+    }
+
+    /**
+     * 解压 buf 中从 start 开始、长度为 size 的压缩 Data。
+     * 校验和已经通过，解压失败或长度不对只可能是写入的一方出了问题，直接 panic。
+     */
+    private SubArray inflate(int start, int size) {
+        int rawSize = view.getInt(start);
+        if(rawSize < 0) {
+            Panic.panic(Error.BadLogFileException);
+        }
+        if(inflater == null) {
+            inflater = new Inflater();
+            inflated = new byte[BUFFER_SIZE];
+        }
+        if(inflated.length < rawSize) {
+            inflated = new byte[Math.max(inflated.length * 2, rawSize)];
+        }
+        inflater.reset();
+        inflater.setInput(buf, start + LoggerImpl.OF_RAW_SIZE, size - LoggerImpl.OF_RAW_SIZE);
+        int n = 0;
+        try {
+            n = inflater.inflate(inflated, 0, rawSize);
+        } catch (DataFormatException e) {
+            Panic.panic(Error.BadLogFileException);
+        }
+        if(n != rawSize || !inflater.finished()) {
+            Panic.panic(Error.BadLogFileException);
+        }
+        return new SubArray(inflated, 0, rawSize);
+    }
+
+    /**
+     * 保证从 position 开始的 n 个字节都在缓冲区中，段文件不够 n 个字节时返回 false。
+     */
+    private boolean fill(int n) {
+        int off = (int)(position - bufLSN);
+        if(off + n <= bufLen) {
+            return true;
+        }
+        // 把还没解析的部分挪到缓冲区开头
+        System.arraycopy(buf, off, buf, 0, bufLen - off);
+        bufLen -= off;
+        bufLSN = position;
+        if(n > buf.length) {
+            int cap = buf.length;
+            while(cap < n) {
+                cap <<= 1;
+            }
+            buf = Arrays.copyOf(buf, cap);
+            view = ByteBuffer.wrap(buf);
+        }
+
+        long fileEnd = ends[segment] - bases[segment];
+        long readFrom = bufLSN + bufLen - bases[segment];
+        int toRead = (int)Math.min(sequential ? buf.length - bufLen : n - bufLen, fileEnd - readFrom);
+        ByteBuffer dst = ByteBuffer.wrap(buf, bufLen, Math.max(toRead, 0));
+        try {
+            while(dst.hasRemaining()) {
+                if(channels[segment].read(dst, readFrom + dst.position() - bufLen) < 0) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        bufLen = dst.position();
+        return n <= bufLen;
+    }
+}
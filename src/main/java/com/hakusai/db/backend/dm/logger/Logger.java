@@ -1,13 +1,12 @@
 package com.hakusai.db.backend.dm.logger;
 
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
 
-import com.hakusai.db.backend.utils.Parser;
+import com.hakusai.db.backend.dm.logger.LoggerImpl.Segment;
 import com.hakusai.db.backend.utils.Panic;
 import com.hakusai.db.common.Error;
 
@@ -16,14 +15,35 @@ import com.hakusai.db.common.Error;
  * 在数据库奔溃之后，再次启动时，可以根据日志的内容，恢复数据文件，保证其一致性。
  */
 public interface Logger {
-    void log(byte[] data);
+    // 写入一条日志并等待其落盘，返回这条日志的 LSN
+    long log(byte[] data);
+    // 追加一条日志，不等待落盘，返回这条日志的 LSN
+    long append(byte[] data);
+    // 等待 LSN 为 lsn 的日志落盘
+    void flush(long lsn);
     void truncate(long x) throws Exception;
+    // 删除所有日志都在 lsn 之前的段文件
+    void removeBefore(long lsn);
     byte[] next();
+    // next() 上一次返回的日志的 LSN
+    long getLastLSN();
+    // 顺序读取所有已落盘日志的 LogReader，恢复时使用
+    LogReader reader();
     void rewind();
     void close();
 
     public static Logger create(String path) {
-        File f = new File(path+LoggerImpl.LOG_SUFFIX);
+        return create(path, LoggerImpl.DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * @param segmentSize 每个段文件的大小
+     */
+    public static Logger create(String path, long segmentSize) {
+        if(!LoggerImpl.listSegments(path).isEmpty()) {
+            Panic.panic(Error.FileExistsException);
+        }
+        File f = LoggerImpl.segmentFile(path, 0);
         try {
             if(!f.createNewFile()) {
                 Panic.panic(Error.FileExistsException);
@@ -31,52 +51,44 @@ public interface Logger {
         } catch (Exception e) {
             Panic.panic(e);
         }
-        if(!f.canRead() || !f.canWrite()) {
-            Panic.panic(Error.FileCannotRWException);
-        }
 
-        FileChannel fc = null;
-        RandomAccessFile raf = null;
+        Segment seg = LoggerImpl.openSegment(f, 0);
+        ByteBuffer buf = ByteBuffer.wrap(LoggerImpl.segmentHeader(0));
         try {
-            raf = new RandomAccessFile(f, "rw");
-            fc = raf.getChannel();
-        } catch (FileNotFoundException e) {
-           Panic.panic(e);
-        }
-
-        ByteBuffer buf = ByteBuffer.wrap(Parser.int2Byte(0));
-        try {
-            fc.position(0);
-            fc.write(buf);
-            fc.force(false);
+            while(buf.hasRemaining()) {
+                seg.fc.write(buf, buf.position());
+            }
+            seg.fc.force(false);
         } catch (IOException e) {
             Panic.panic(e);
         }
+        seg.size = LoggerImpl.HEADER_SIZE;
 
-        return new LoggerImpl(raf, fc, 0);
+        List<Segment> segments = new ArrayList<>();
+        segments.add(seg);
+        return new LoggerImpl(path, segmentSize, segments);
     }
 
     public static Logger open(String path) {
-        File f = new File(path+LoggerImpl.LOG_SUFFIX);
-        if(!f.exists()) {
-            Panic.panic(Error.FileNotExistsException);
-        }
-        if(!f.canRead() || !f.canWrite()) {
-            Panic.panic(Error.FileCannotRWException);
-        }
+        return open(path, LoggerImpl.DEFAULT_SEGMENT_SIZE);
+    }
 
-        FileChannel fc = null;
-        RandomAccessFile raf = null;
-        try {
-            raf = new RandomAccessFile(f, "rw");
-            fc = raf.getChannel();
-        } catch (FileNotFoundException e) {
-           Panic.panic(e);
+    public static Logger open(String path, long segmentSize) {
+        List<Long> bases = LoggerImpl.listSegments(path);
+        if(bases.isEmpty()) {
+            Panic.panic(Error.FileNotExistsException);
         }
 
-        LoggerImpl lg = new LoggerImpl(raf, fc);
-        lg.init();
+        LoggerImpl lg = new LoggerImpl(path, segmentSize, new ArrayList<>());
+        lg.init(bases);
 
         return lg;
     }
+
+    // 删除 path 下的所有段文件
+    public static void remove(String path) {
+        for(long base : LoggerImpl.listSegments(path)) {
+            LoggerImpl.segmentFile(path, base).delete();
+        }
+    }
 }
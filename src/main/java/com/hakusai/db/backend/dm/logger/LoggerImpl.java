@@ -1,249 +1,601 @@
 package com.hakusai.db.backend.dm.logger;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 
 import com.google.common.primitives.Bytes;
 
+import com.hakusai.db.backend.common.SubArray;
 import com.hakusai.db.backend.utils.Panic;
 import com.hakusai.db.backend.utils.Parser;
 import com.hakusai.db.common.Error;
 
 /**
  * 日志文件读写
- * 
- * 日志文件标准格式为：
- * [XChecksum] [Log1] [Log2] ... [LogN] [BadTail]
- * XChecksum 为后续所有日志计算的Checksum，int类型
  *
- * 其中 XChecksum 是一个四字节的整数，是对后续所有日志计算的校验和。
+ * 日志被切分成若干个段文件，文件名为 [path].log.[BaseLSN]，BaseLSN 以 16 位十六进制表示。
+ * 所有段文件按 BaseLSN 首尾相接，构成一个连续的日志空间，段文件中偏移为 off 的字节，其 LSN 为 BaseLSN + off。
+ * 当前段写满 segmentSize 后，下一条日志写入新的段文件，新段的 BaseLSN 即当前段的末尾。
+ * 检查点之后，完全位于检查点之前的段文件就可以删除了（见 removeBefore()），日志不会无限增长。
+ *
+ * 每个段文件的格式为：
+ * [Magic] [BaseLSN] [Log1] [Log2] ... [LogN] [BadTail]
+ * Magic 为 4 字节的文件标识，BaseLSN 为 8 字节，段文件头只在创建时写入一次。
  * Log1 ~ LogN 是常规的日志数据，
- * BadTail 是在数据库崩溃时，没有来得及写完的日志数据，这个 BadTail 不一定存在。
+ * BadTail 是在数据库崩溃时，没有来得及写完的日志数据，这个 BadTail 只可能出现在最后一个有效的段中。
  *
  * 每条正确日志的格式为：
- * [Size] [Checksum] [Data]
- * Size 4字节int 标识Data长度
- * Checksum 4字节int
+ * [Size] [Checksum] [LSN] [Data]
+ * Size 4字节int 标识Data长度，最高位为压缩标记
+ * Checksum 4字节int，对 Data 和 LSN 计算的 CRC32
+ * LSN 8字节long，日志序列号，即这条日志在日志空间中的起始位置，随写入单调递增
+ *
+ * 以前的格式在文件头维护一个对所有日志滚动计算的 XChecksum，每写一条日志都要回到文件头改写它，
+ * 打开日志时还要把整个文件重新算一遍校验和。现在每条日志自带校验和与 LSN，
+ * 打开时从头扫描，遇到长度越界、校验和不对或 LSN 与所在位置不符的日志即认为到达 BadTail。
+ * LSN 一并参与校验，文件中残留的旧数据即使校验和碰巧正确，也会因为 LSN 不符被识别出来。
+ *
+ * 组提交：
+ * log() 必须等日志落盘才能返回，如果每条日志都单独 fsync，并发写日志的吞吐就被 fsync 的延迟卡死了。
+ * 于是 log() 只是把日志追加到内存中的 buffer 里，然后等待。没有线程在刷盘时，当前线程成为 leader，
+ * 把 buffer 中积攒的所有日志一次写入文件并 fsync，然后唤醒这一批的所有 follower；
+ * leader 刷盘期间新到的日志继续积攒在 buffer 中，由下一个 leader 一起写入。
+ * 切换段文件时，新段的文件头也追加到 buffer 中，这样 buffer 中的字节和日志空间始终一一对应。
+ * append() 只追加不等待，异步提交的事务使用它，这些日志随下一批被刷盘，或者由 flush() 主动刷盘。
+ *
+ * 压缩：
+ * 插入日志带着整个 DataItem，宽的字符串行会让日志和数据文件一样大。
+ * Data 不短于 compressThreshold 时，在锁外用 Deflater（BEST_SPEED）压缩，压缩后确实更短才写压缩的版本，
+ * 此时 Size 的最高位置 1，Data 变成 [RawSize 4B] [Deflated]，校验和对压缩后的字节计算。
+ * 读取时由 LogReader 解压，上层拿到的仍然是原始的 Data，看不出日志是否压缩过。
  */
 public class LoggerImpl implements Logger {
 
-    private static final int SEED = 13331;
+    static final int MAGIC = 0x4D4C4F47;
+    // 段文件头：[Magic 4B] [BaseLSN 8B]
+    static final int HEADER_SIZE = 12;
+
+    static final int OF_SIZE = 0;
+    static final int OF_CHECKSUM = OF_SIZE + 4;
+    static final int OF_LSN = OF_CHECKSUM + 4;
+    static final int OF_DATA = OF_LSN + 8;
+
+    // Size 的最高位，标记 Data 是压缩过的
+    static final int COMPRESSED = 0x80000000;
+    // 压缩后的 Data 开头记录的原始长度
+    static final int OF_RAW_SIZE = 4;
 
-    private static final int OF_SIZE = 0;
-    private static final int OF_CHECKSUM = OF_SIZE + 4;
-    private static final int OF_DATA = OF_CHECKSUM + 4;
-    
     public static final String LOG_SUFFIX = ".log";
+    // 默认的段文件大小，超过这个大小的单条日志独占一个段
+    public static final long DEFAULT_SEGMENT_SIZE = 16L << 20;
+    // 默认只压缩不短于 1KB 的日志，更短的日志压缩省下的空间不值得花的 CPU
+    public static final int DEFAULT_COMPRESS_THRESHOLD = 1024;
+
+    // Deflater 创建和释放的代价都不小，每个写日志的线程复用自己的一个
+    private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
 
-    private RandomAccessFile file;
-    private FileChannel fc;
+    /**
+     * 一个段文件。段是由写入它的第一批日志的 leader 创建的，在此之前 fc 为 null。
+     */
+    static class Segment {
+        long base;
+        File file;
+        RandomAccessFile raf;
+        FileChannel fc;
+        long size;      // 打开日志时段文件的长度，next() 只读这个范围
+    }
+
+    private String path;
+    private long segmentSize;
     private Lock lock;
+    private List<Segment> segments;     // 按 base 递增排列，由 lock 保护
+
+    private LogReader iterator;     // next() 使用的 LogReader
+    private volatile int compressThreshold;
 
-    private long position;  // 当前日志指针的位置
-    private long fileSize;  // 初始化时记录，log操作不更新
-    private int xChecksum;
+    // 以下字段由 lock 保护，用于组提交
+    private Condition flushed;
+    private byte[] buffer;          // 等待写入的日志
+    private int bufferLen;
+    private byte[] flushBuffer;     // leader 正在写入的那一批日志，和 buffer 轮换使用
+    private long nextLSN;           // 下一条日志的 LSN，也就是 buffer 末尾在日志空间中的位置
+    private long durableLSN;        // 在此之前的日志都已落盘，也是下一批日志写入的位置
+    private boolean flushing;       // 是否有 leader 正在刷盘
+    private long syncs;             // fsync 的次数
 
-    LoggerImpl(RandomAccessFile raf, FileChannel fc) {
-        this.file = raf;
-        this.fc = fc;
+    LoggerImpl(String path, long segmentSize, List<Segment> segments) {
+        this.path = path;
+        this.segmentSize = segmentSize;
+        this.segments = segments;
+        this.compressThreshold = DEFAULT_COMPRESS_THRESHOLD;
         lock = new ReentrantLock();
+        flushed = lock.newCondition();
+        buffer = new byte[4096];
+        flushBuffer = new byte[4096];
+        if(!segments.isEmpty()) {
+            Segment last = segments.get(segments.size() - 1);
+            nextLSN = last.base + last.size;
+            durableLSN = nextLSN;
+            rewind();
+        }
     }
 
-    LoggerImpl(RandomAccessFile raf, FileChannel fc, int xChecksum) {
-        this.file = raf;
-        this.fc = fc;
-        this.xChecksum = xChecksum;
-        lock = new ReentrantLock();
+    static File segmentFile(String path, long base) {
+        return new File(String.format("%s%s.%016x", path, LOG_SUFFIX, base));
     }
 
-    void init() {
-        long size = 0;
+    // 列出 path 下已有的所有段文件的 BaseLSN，按从小到大排列
+    static List<Long> listSegments(String path) {
+        File prefixFile = new File(path + LOG_SUFFIX).getAbsoluteFile();
+        String prefix = prefixFile.getName() + ".";
+        String[] names = prefixFile.getParentFile().list();
+        List<Long> bases = new ArrayList<>();
+        if(names == null) {
+            return bases;
+        }
+        for(String name : names) {
+            if(name.length() != prefix.length() + 16 || !name.startsWith(prefix)) {
+                continue;
+            }
+            try {
+                bases.add(Long.parseUnsignedLong(name.substring(prefix.length()), 16));
+            } catch (NumberFormatException e) {
+                // 不是段文件
+            }
+        }
+        Collections.sort(bases);
+        return bases;
+    }
+
+    static byte[] segmentHeader(long base) {
+        return Bytes.concat(Parser.int2Byte(MAGIC), Parser.long2Byte(base));
+    }
+
+    static Segment openSegment(File f, long base) {
+        if(!f.canRead() || !f.canWrite()) {
+            Panic.panic(Error.FileCannotRWException);
+        }
+        Segment seg = new Segment();
+        seg.base = base;
+        seg.file = f;
         try {
-            size = file.length();
+            seg.raf = new RandomAccessFile(f, "rw");
+            seg.fc = seg.raf.getChannel();
+            seg.size = seg.raf.length();
         } catch (IOException e) {
             Panic.panic(e);
         }
-        if(size < 4) {
-            Panic.panic(Error.BadLogFileException);
+        return seg;
+    }
+
+    private static boolean checkHeader(Segment seg) {
+        if(seg.size < HEADER_SIZE) {
+            return false;
         }
+        ByteBuffer raw = ByteBuffer.allocate(HEADER_SIZE);
+        try {
+            while(raw.hasRemaining()) {
+                if(seg.fc.read(raw, raw.position()) < 0) {
+                    return false;
+                }
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        return raw.getInt(0) == MAGIC && raw.getLong(4) == seg.base;
+    }
 
-        ByteBuffer raw = ByteBuffer.allocate(4);
+    private static void closeSegment(Segment seg) {
+        if(seg.fc == null) {
+            return;
+        }
         try {
-            fc.position(0);
-            fc.read(raw);
+            seg.fc.close();
+            seg.raf.close();
         } catch (IOException e) {
             Panic.panic(e);
         }
-        int xChecksum = Parser.parseInt(raw.array());
-        this.fileSize = size;
-        this.xChecksum = xChecksum;
+    }
 
+    /**
+     * 打开已有的段文件。文件头损坏的段（创建它的那一批日志没有写完）和它之后的段都直接删除，
+     * 再从头扫描日志找到 BadTail，截掉 BadTail 及其之后的所有内容。
+     */
+    void init(List<Long> bases) {
+        boolean broken = false;
+        for(long base : bases) {
+            File f = segmentFile(path, base);
+            if(broken) {
+                f.delete();
+                continue;
+            }
+            Segment seg = openSegment(f, base);
+            if(!checkHeader(seg)) {
+                if(segments.isEmpty()) {
+                    Panic.panic(Error.BadLogFileException);
+                }
+                closeSegment(seg);
+                f.delete();
+                broken = true;
+                continue;
+            }
+            segments.add(seg);
+        }
+        rewind();
         checkAndRemoveTail();
     }
 
     /**
-     * 在打开一个日志文件时，需要首先校验日志文件的 XChecksum，并移除文件尾部可能存在的 BadTail，
-     * 由于  该条日志尚未写入BadTail完成，文件的校验和也就不会包含该日志的校验和，
-     * 去掉 BadTail 即可保证日志文件的一致性。
+     * 在打开日志时，需要移除尾部可能存在的 BadTail。
+     * 逐条读取日志，第一条校验不通过的日志及其之后的内容都是没有写完的，截掉即可保证日志的一致性。
      */
     private void checkAndRemoveTail() {
-        rewind();
-
-        int xCheck = 0;
-        while(true) {
-            byte[] log = internNext();
-            if(log == null) break;
-            xCheck = calChecksum(xCheck, log);
-        }
-        if(xCheck != xChecksum) {
-            Panic.panic(Error.BadLogFileException);
+        LogReader reader = openedReader();
+        while(reader.next() != null) {
         }
-
         try {
-            truncate(position);
+            truncate(reader.getPosition());
         } catch (Exception e) {
             Panic.panic(e);
         }
-        try {
-            file.seek(position);
-        } catch (IOException e) {
-            Panic.panic(e);
-        }
         rewind();
     }
 
     /**
-     * 单条日志的校验和，其实就是通过一个指定的种子实现的：
-     * 这样，对所有日志求出校验和，求和就能得到日志文件的校验和了。
-     * @param xCheck
-     * @param log
-     * @return
+     * 向日志文件写入日志时，首先在锁外对 Data 计算校验和，随后在锁内分配 LSN、
+     * 把 LSN 也计入校验和，并将包裹好的日志追加到 buffer 中，
+     * 最后等待它所在的那一批日志被某个 leader 写入文件并刷盘，保证返回时日志已经写入磁盘。
+     * @param data
+     * @return 这条日志的 LSN
      */
-    private int calChecksum(int xCheck, byte[] log) {
-        for (byte b : log) {
-            xCheck = xCheck * SEED + b;
-        }
-        return xCheck;
+    @Override
+    public long log(byte[] data) {
+        return append(data, true);
     }
 
     /**
-     * 向日志文件写入日志时，也是首先将数据包裹成日志格式，
-     * 写入文件后，再更新文件的校验和，更新校验和时，会刷新缓冲区，保证内容写入磁盘。
-     * @param data
+     * 只把日志追加到 buffer 中，不等待落盘，由之后的 log()、flush() 或刷脏线程写入文件。
      */
     @Override
-    public void log(byte[] data) {
-        byte[] log = wrapLog(data);
-        ByteBuffer buf = ByteBuffer.wrap(log);
+    public long append(byte[] data) {
+        return append(data, false);
+    }
+
+    private long append(byte[] data, boolean sync) {
+        int size = data.length;
+        int threshold = compressThreshold;
+        if(threshold > 0 && data.length >= threshold) {
+            byte[] compressed = compress(data);
+            if(compressed != null) {
+                data = compressed;
+                size = data.length | COMPRESSED;
+            }
+        }
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        int len = OF_DATA + data.length;
         lock.lock();
         try {
-            fc.position(fc.size());
-            fc.write(buf);
-        } catch(IOException e) {
-            Panic.panic(e);
+            Segment tail = segments.get(segments.size() - 1);
+            long used = nextLSN - tail.base;
+            if(used > HEADER_SIZE && used + len > segmentSize) {
+                rotate();
+            }
+
+            long lsn = nextLSN;
+            byte[] lsnRaw = Parser.long2Byte(lsn);
+            crc.update(lsnRaw);
+            ensureBuffer(len);
+            System.arraycopy(Parser.int2Byte(size), 0, buffer, bufferLen + OF_SIZE, 4);
+            System.arraycopy(Parser.int2Byte((int)crc.getValue()), 0, buffer, bufferLen + OF_CHECKSUM, 4);
+            System.arraycopy(lsnRaw, 0, buffer, bufferLen + OF_LSN, 8);
+            System.arraycopy(data, 0, buffer, bufferLen + OF_DATA, data.length);
+            bufferLen += len;
+            nextLSN += len;
+
+            if(sync) {
+                waitDurable(lsn);
+            }
+            return lsn;
         } finally {
             lock.unlock();
         }
-        updateXChecksum(log);
     }
 
-    private void updateXChecksum(byte[] log) {
-        this.xChecksum = calChecksum(this.xChecksum, log);
-        try {
-            fc.position(0);
-            fc.write(ByteBuffer.wrap(Parser.int2Byte(xChecksum)));
-            fc.force(false);
-        } catch(IOException e) {
-            Panic.panic(e);
+    /**
+     * 压缩 data，返回 [RawSize] [Deflated]，压缩后不比原来短时返回 null。
+     */
+    private static byte[] compress(byte[] data) {
+        Deflater deflater = DEFLATER.get();
+        deflater.reset();
+        deflater.setInput(data);
+        deflater.finish();
+        byte[] out = new byte[data.length];
+        int n = deflater.deflate(out, OF_RAW_SIZE, out.length - OF_RAW_SIZE);
+        if(!deflater.finished()) {
+            return null;
         }
+        System.arraycopy(Parser.int2Byte(data.length), 0, out, 0, OF_RAW_SIZE);
+        return Arrays.copyOf(out, OF_RAW_SIZE + n);
     }
 
-    private byte[] wrapLog(byte[] data) {
-        byte[] checksum = Parser.int2Byte(calChecksum(0, data));
-        byte[] size = Parser.int2Byte(data.length);
-        return Bytes.concat(size, checksum, data);
+    /**
+     * 设置压缩的阈值，Data 不短于 threshold 字节的日志会被压缩，threshold 不大于 0 时不压缩。
+     * 只影响之后写入的日志，已经写下的压缩日志照常读取。
+     */
+    public void setCompressThreshold(int threshold) {
+        compressThreshold = threshold;
     }
 
+    /**
+     * 等待 LSN 为 lsn 的日志（及其之前的所有日志）落盘，刷脏线程写回页面之前调用。
+     */
     @Override
-    public void truncate(long x) throws Exception {
+    public void flush(long lsn) {
         lock.lock();
         try {
-            fc.truncate(x);
+            waitDurable(Math.min(lsn, nextLSN - 1));
         } finally {
             lock.unlock();
         }
     }
 
+    // 调用时必须持有 lock
+    private void waitDurable(long lsn) {
+        while(durableLSN <= lsn) {
+            if(flushing) {
+                flushed.awaitUninterruptibly();
+                continue;
+            }
+            flushBatch();
+        }
+    }
+
+    private void ensureBuffer(int len) {
+        if(bufferLen + len > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, bufferLen + len));
+        }
+    }
+
+    // 开始一个新的段，它的文件头和后面的日志一起由 leader 写出
+    private void rotate() {
+        Segment seg = new Segment();
+        seg.base = nextLSN;
+        seg.file = segmentFile(path, seg.base);
+        segments.add(seg);
+
+        ensureBuffer(HEADER_SIZE);
+        System.arraycopy(segmentHeader(seg.base), 0, buffer, bufferLen, HEADER_SIZE);
+        bufferLen += HEADER_SIZE;
+        nextLSN += HEADER_SIZE;
+    }
+
     /**
-     * Logger 被实现成迭代器模式，通过 next() 方法，不断地从文件中读取下一条日志，
-     * 并将其中的 Data 解析出来并返回。next() 方法的实现主要依靠 internNext()，
-     * 大致如下，其中 position 是当前日志文件读到的位置偏移：
-     * @return
+     * 作为 leader 写入 buffer 中积攒的一批日志。调用时持有 lock，写文件和 fsync 期间释放 lock，
+     * 其他线程可以继续往（换下来的）buffer 中追加日志。
+     * 一批日志可能跨越多个段，按段的边界拆开分别写入，并对涉及的每个段 fsync。
      */
-    private byte[] internNext() {
-        if(position + OF_DATA >= fileSize) {
-            return null;
+    private void flushBatch() {
+        flushing = true;
+        byte[] batch = buffer;
+        int len = bufferLen;
+        long offset = durableLSN;
+        int first = segments.size() - 1;
+        while(segments.get(first).base > offset) {
+            first --;
         }
-        ByteBuffer tmp = ByteBuffer.allocate(4);
+        List<Segment> targets = new ArrayList<>(segments.subList(first, segments.size()));
+        buffer = flushBuffer;
+        bufferLen = 0;
+        lock.unlock();
         try {
-            fc.position(position);
-            fc.read(tmp);
+            long end = offset + len;
+            for(int i = 0; i < targets.size(); i ++) {
+                Segment seg = targets.get(i);
+                long from = Math.max(offset, seg.base);
+                long to = i + 1 < targets.size() ? Math.min(end, targets.get(i + 1).base) : end;
+                if(from >= to) {
+                    continue;
+                }
+                if(seg.fc == null) {
+                    createSegmentFile(seg);
+                }
+                write(seg.fc, ByteBuffer.wrap(batch, (int)(from - offset), (int)(to - from)), from - seg.base);
+                seg.fc.force(false);
+            }
         } catch(IOException e) {
             Panic.panic(e);
+        } finally {
+            lock.lock();
         }
-        int size = Parser.parseInt(tmp.array());
-        if(position + size + OF_DATA > fileSize) {
-            return null;
+        flushBuffer = batch;
+        durableLSN = offset + len;
+        syncs ++;
+        flushing = false;
+        flushed.signalAll();
+    }
+
+    // 新建段文件，并 fsync 所在目录，保证崩溃后这个文件还在
+    private void createSegmentFile(Segment seg) throws IOException {
+        seg.raf = new RandomAccessFile(seg.file, "rw");
+        seg.fc = seg.raf.getChannel();
+        File dir = seg.file.getAbsoluteFile().getParentFile();
+        try(FileChannel dirChannel = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+            dirChannel.force(true);
+        } catch (IOException e) {
+            // 有的平台不支持对目录 fsync
         }
+    }
 
-        ByteBuffer buf = ByteBuffer.allocate(OF_DATA + size);
+    private static void write(FileChannel fc, ByteBuffer buf, long offset) throws IOException {
+        long start = offset - buf.position();
+        while(buf.hasRemaining()) {
+            fc.write(buf, start + buf.position());
+        }
+    }
+
+    // fsync 的次数，用于观察组提交的效果
+    public long getSyncs() {
+        lock.lock();
         try {
-            fc.position(position);
-            fc.read(buf);
-        } catch(IOException e) {
-            Panic.panic(e);
+            return syncs;
+        } finally {
+            lock.unlock();
         }
+    }
 
-        byte[] log = buf.array();
-        int checkSum1 = calChecksum(0, Arrays.copyOfRange(log, OF_DATA, log.length));
-        int checkSum2 = Parser.parseInt(Arrays.copyOfRange(log, OF_CHECKSUM, OF_DATA));
-        if(checkSum1 != checkSum2) {
-            return null;
+    // 当前段文件的个数
+    public int getSegmentNumber() {
+        lock.lock();
+        try {
+            return segments.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 把日志截断到 x，x 之后的段文件全部删除。只在打开日志、没有并发写入时调用。
+     */
+    @Override
+    public void truncate(long x) throws Exception {
+        lock.lock();
+        try {
+            while(segments.size() > 1 && segments.get(segments.size() - 1).base >= x) {
+                Segment seg = segments.remove(segments.size() - 1);
+                closeSegment(seg);
+                seg.file.delete();
+            }
+            Segment last = segments.get(segments.size() - 1);
+            last.fc.truncate(x - last.base);
+            last.size = x - last.base;
+            nextLSN = x;
+            durableLSN = x;
+        } finally {
+            lock.unlock();
         }
-        position += log.length;
-        return log;
     }
 
+    /**
+     * 删除所有日志都在 lsn 之前的段文件，当前正在写入的段不会被删除。
+     * 检查点之后调用，lsn 之前的日志恢复时都不再需要了。
+     */
+    @Override
+    public void removeBefore(long lsn) {
+        lock.lock();
+        try {
+            int n = 0;
+            while(n + 1 < segments.size() && segments.get(n + 1).base <= Math.min(lsn, durableLSN)) {
+                n ++;
+            }
+            for(int i = 0; i < n; i ++) {
+                Segment seg = segments.get(i);
+                closeSegment(seg);
+                seg.file.delete();
+            }
+            segments.subList(0, n).clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Logger 被实现成迭代器模式，通过 next() 方法，不断地读取下一条日志，并将其中的 Data 拷贝出来返回。
+     * 实际的读取和校验由 LogReader 完成，next() 只能读到打开日志时已经存在的日志。
+     * @return
+     */
     @Override
     public byte[] next() {
         lock.lock();
         try {
-            byte[] log = internNext();
-            if(log == null) return null;
-            return Arrays.copyOfRange(log, OF_DATA, log.length);
+            SubArray data = iterator.next();
+            if(data == null) {
+                return null;
+            }
+            return Arrays.copyOfRange(data.raw, data.start, data.end);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 返回一个读取所有已落盘日志的 LogReader。
+     */
+    @Override
+    public LogReader reader() {
+        lock.lock();
+        try {
+            int n = segments.size();
+            FileChannel[] channels = new FileChannel[n];
+            long[] bases = new long[n];
+            long[] ends = new long[n];
+            for(int i = 0; i < n; i ++) {
+                Segment seg = segments.get(i);
+                channels[i] = seg.fc;
+                bases[i] = seg.base;
+                ends[i] = i + 1 < n ? segments.get(i + 1).base : durableLSN;
+            }
+            return new LogReader(channels, bases, ends);
         } finally {
             lock.unlock();
         }
     }
 
+    // 按打开时各个段文件的长度创建 LogReader，用于 next() 和查找 BadTail
+    private LogReader openedReader() {
+        int n = segments.size();
+        FileChannel[] channels = new FileChannel[n];
+        long[] bases = new long[n];
+        long[] ends = new long[n];
+        for(int i = 0; i < n; i ++) {
+            Segment seg = segments.get(i);
+            channels[i] = seg.fc;
+            bases[i] = seg.base;
+            ends[i] = seg.base + seg.size;
+        }
+        return new LogReader(channels, bases, ends);
+    }
+
+    @Override
+    public long getLastLSN() {
+        return iterator.getLastLSN();
+    }
+
     @Override
     public void rewind() {
-        position = 4;
+        lock.lock();
+        try {
+            iterator = openedReader();
+        } finally {
+            lock.unlock();
+        }
     }
 
     @Override
     public void close() {
+        lock.lock();
         try {
-            fc.close();
-            file.close();
-        } catch(IOException e) {
-            Panic.panic(e);
+            // append() 追加的日志可能还在 buffer 中
+            waitDurable(nextLSN - 1);
+            for(Segment seg : segments) {
+                closeSegment(seg);
+            }
+        } finally {
+            lock.unlock();
         }
     }
-    
+
 }
@@ -9,12 +9,13 @@ import com.hakusai.db.backend.dm.pageCache.PageCache;
  * 其中，pageNumber 是这个页面的页号，该页号从 1 开始。
  * data 就是这个页实际包含的字节数据。
  * dirty 标志着这个页面是否是脏页面，在缓存驱逐的时候，脏页面需要被写回磁盘。
+ * 后台刷脏线程会在不持有页面的情况下读写这个标志，所以它是 volatile 的。
  * 这里保存了一个 PageCache（还未定义）的引用，用来方便在拿到 Page 的引用时可以快速对这个页面的缓存进行释放操作。
  */
 public class PageImpl implements Page {
     private int pageNumber;
     private byte[] data;
-    private boolean dirty;
+    private volatile boolean dirty;
     private Lock lock;
     
     private PageCache pc;
@@ -34,6 +35,14 @@ public class PageImpl implements Page {
         lock.unlock();
     }
 
+    /**
+     * 缓冲池的帧换入新页面时复用同一个 PageImpl 和 data，只更新页号、清除脏标志。
+     */
+    public void reset(int pageNumber) {
+        this.pageNumber = pageNumber;
+        this.dirty = false;
+    }
+
     public void release() {
         pc.release(this);
     }
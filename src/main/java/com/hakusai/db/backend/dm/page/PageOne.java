@@ -3,6 +3,7 @@ package com.hakusai.db.backend.dm.page;
 import java.util.Arrays;
 
 import com.hakusai.db.backend.dm.pageCache.PageCache;
+import com.hakusai.db.backend.utils.Parser;
 import com.hakusai.db.backend.utils.RandomUtil;
 
 /**
@@ -13,17 +14,29 @@ import com.hakusai.db.backend.utils.RandomUtil;
 
  这样数据库在每次启动时，就会检查第一页两处的字节是否相同，以此来判断上一次是否正常关闭。
  如果是异常关闭，就需要执行数据的恢复流程。
+
+ 第一页的 0 ~ 3 字节记录了数据库的页面大小，打开文件时先读出它才能确定按多大的页面读写。
+ 之前版本创建的文件这里全是 0，表示默认的 8K 页面。
  */
 public class PageOne {
+    private static final int OF_PAGE_SIZE = 0;
+    public static final int HEADER_SIZE = OF_PAGE_SIZE + 4;
     private static final int OF_VC = 100;
     private static final int LEN_VC = 8;
 
-    public static byte[] InitRaw() {
-        byte[] raw = new byte[PageCache.PAGE_SIZE];
+    public static byte[] InitRaw(int pageSize) {
+        byte[] raw = new byte[pageSize];
+        System.arraycopy(Parser.int2Byte(pageSize), 0, raw, OF_PAGE_SIZE, 4);
         setVcOpen(raw);
         return raw;
     }
 
+    // 从第一页开头的 HEADER_SIZE 个字节中解析出页面大小
+    public static int parsePageSize(byte[] header) {
+        int pageSize = Parser.parseInt(Arrays.copyOfRange(header, OF_PAGE_SIZE, OF_PAGE_SIZE+4));
+        return pageSize == 0 ? PageCache.PAGE_SIZE : pageSize;
+    }
+
     /**
      * 启动时设置初始字节
      * @param pg
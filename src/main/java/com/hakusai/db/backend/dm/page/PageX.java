@@ -2,29 +2,65 @@ package com.hakusai.db.backend.dm.page;
 
 import java.util.Arrays;
 
-import com.hakusai.db.backend.dm.pageCache.PageCache;
+import com.hakusai.db.backend.common.SubArray;
+import com.hakusai.db.backend.dm.dataItem.DataItem;
 import com.hakusai.db.backend.utils.Parser;
 
 /**
  MYDB 对于普通数据页的管理就比较简单了。
  一个普通页面以一个 2 字节无符号数起始，表示这一页的空闲位置的偏移。剩下的部分都是实际存储的数据。
- * [FreeSpaceOffset] [Data]
+ * [FreeSpaceOffset] [PageLSN] [Data]
  * FreeSpaceOffset: 2字节 空闲位置开始偏移
+ * PageLSN: 8字节 最后一条修改了这个页面的日志的 LSN
+ *
+ * 有了 PageLSN，恢复时就能知道一条日志的修改是否已经在页面上了（日志的 LSN 不大于 PageLSN），
+ * 已经写回的修改不必再重做；刷脏时也要先保证 PageLSN 对应的日志已经落盘，才能写回页面。
+ *
+ * 页面大小不再是常量，直接由页面数据的长度得到。页面写满时 FSO 等于页面大小（最大 32K），
+ * 超出了有符号 short 的范围，所以 FSO 按无符号数读取。
  */
 public class PageX {
     
     private static final short OF_FREE = 0;
-    private static final short OF_DATA = 2;
-    public static final int MAX_FREE_SPACE = PageCache.PAGE_SIZE - OF_DATA;
+    private static final short OF_LSN = 2;
+    private static final short OF_DATA = OF_LSN + 8;
 
-    public static byte[] initRaw() {
-        byte[] raw = new byte[PageCache.PAGE_SIZE];
+    // 一个空页面最多能存放的数据量
+    public static int maxFreeSpace(int pageSize) {
+        return pageSize - OF_DATA;
+    }
+
+    public static byte[] initRaw(int pageSize) {
+        byte[] raw = new byte[pageSize];
         setFSO(raw, OF_DATA);
         return raw;
     }
 
-    private static void setFSO(byte[] raw, short ofData) {
-        System.arraycopy(Parser.short2Byte(ofData), 0, raw, OF_FREE, OF_DATA);
+    private static void setFSO(byte[] raw, int ofData) {
+        System.arraycopy(Parser.short2Byte((short)ofData), 0, raw, OF_FREE, 2);
+    }
+
+    public static long getPageLSN(Page pg) {
+        return getPageLSN(pg.getData());
+    }
+
+    public static long getPageLSN(byte[] raw) {
+        return Parser.parseLong(raw, OF_LSN);
+    }
+
+    /**
+     * 记下修改了页面的日志的 LSN。同一页面上不同 DataItem 的修改可以并发进行，
+     * 它们拿到 LSN 的先后和调用这里的先后不一定一致，所以 PageLSN 只增不减。
+     */
+    public static void setPageLSN(Page pg, long lsn) {
+        pg.lock();
+        try {
+            if(getPageLSN(pg.getData()) < lsn) {
+                System.arraycopy(Parser.long2Byte(lsn), 0, pg.getData(), OF_LSN, 8);
+            }
+        } finally {
+            pg.unlock();
+        }
     }
 
     /**
@@ -33,11 +69,12 @@ public class PageX {
      * @return
      */
     public static short getFSO(Page pg) {
-        return getFSO(pg.getData());
+        // 还能插入数据时，FSO 一定小于 32K
+        return (short)getFSO(pg.getData());
     }
 
-    private static short getFSO(byte[] raw) {
-        return Parser.parseShort(Arrays.copyOfRange(raw, 0, 2));
+    private static int getFSO(byte[] raw) {
+        return Parser.parseShort(Arrays.copyOfRange(raw, 0, 2)) & 0xFFFF;
     }
 
     /**
@@ -49,31 +86,66 @@ public class PageX {
      */
     public static short insert(Page pg, byte[] raw) {
         pg.setDirty(true);
-        short offset = getFSO(pg.getData());
+        int offset = getFSO(pg.getData());
         System.arraycopy(raw, 0, pg.getData(), offset, raw.length);
-        setFSO(pg.getData(), (short)(offset + raw.length));
-        return offset;
+        setFSO(pg.getData(), offset + raw.length);
+        return (short)offset;
     }
 
     // 获取页面的空闲空间大小
     public static int getFreeSpace(Page pg) {
-        return PageCache.PAGE_SIZE - (int)getFSO(pg.getData());
+        return pg.getData().length - getFSO(pg.getData());
+    }
+
+    /**
+     * 页面上的 DataItem 从 OF_DATA 开始紧挨着存放到 FSO，DataItem 的 UID 就是它的位置，不能挪动，
+     * 所以只有页面末尾连续的、已经释放的 DataItem 占用的空间可以收回。
+     * 返回最后一个没有释放的 DataItem 的末尾，都已经释放时返回 OF_DATA。
+     */
+    public static int getUsedEnd(Page pg) {
+        byte[] raw = pg.getData();
+        int fso = getFSO(raw);
+        int end = OF_DATA;
+        int offset = OF_DATA;
+        while(offset < fso) {
+            int length = DataItem.getDataItemRawLength(raw, offset);
+            if(!DataItem.isDataItemRawFreed(raw, offset)) {
+                end = offset + length;
+            }
+            offset += length;
+        }
+        return end;
+    }
+
+    // 把 FSO 退回到 offset，offset 之后的空间可以重新插入，恢复时重做也使用这个方法
+    public static void truncate(Page pg, int offset) {
+        pg.setDirty(true);
+        setFSO(pg.getData(), offset);
     }
 
     // 将raw插入pg中的offset位置，并将pg的offset设置为较大的offset
     public static void recoverInsert(Page pg, byte[] raw, short offset) {
+        recoverInsert(pg, new SubArray(raw, 0, raw.length), offset);
+    }
+
+    public static void recoverInsert(Page pg, SubArray raw, short offset) {
         pg.setDirty(true);
-        System.arraycopy(raw, 0, pg.getData(), offset, raw.length);
+        int length = raw.end - raw.start;
+        System.arraycopy(raw.raw, raw.start, pg.getData(), offset, length);
 
-        short rawFSO = getFSO(pg.getData());
-        if(rawFSO < offset + raw.length) {
-            setFSO(pg.getData(), (short)(offset+raw.length));
+        int rawFSO = getFSO(pg.getData());
+        if(rawFSO < offset + length) {
+            setFSO(pg.getData(), offset+length);
         }
     }
 
     // 将raw插入pg中的offset位置，不更新update
     public static void recoverUpdate(Page pg, byte[] raw, short offset) {
+        recoverUpdate(pg, new SubArray(raw, 0, raw.length), offset);
+    }
+
+    public static void recoverUpdate(Page pg, SubArray raw, short offset) {
         pg.setDirty(true);
-        System.arraycopy(raw, 0, pg.getData(), offset, raw.length);
+        System.arraycopy(raw.raw, raw.start, pg.getData(), offset, raw.end - raw.start);
     }
 }
@@ -0,0 +1,90 @@
+package com.hakusai.db.backend.dm.pageCache;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import com.hakusai.db.backend.utils.Panic;
+
+/**
+ * 默认的读写后端，使用带 offset 的 read(buf, position)/write(buf, position)，
+ * 不会修改 channel 的位置，多个线程可以同时读写不同的页面，不需要用锁把 position() 和 read() 绑在一起。
+ */
+class ChannelPageFile implements PageFile {
+
+    private RandomAccessFile file;
+    private FileChannel fc;
+
+    ChannelPageFile(RandomAccessFile file, FileChannel fc) {
+        this.file = file;
+        this.fc = fc;
+    }
+
+    @Override
+    public long length() {
+        try {
+            return fc.size();
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        return 0;
+    }
+
+    @Override
+    public void read(long offset, byte[] dst, int len) {
+        ByteBuffer buf = ByteBuffer.wrap(dst, 0, len);
+        try {
+            while(buf.hasRemaining()) {
+                if(fc.read(buf, offset + buf.position()) < 0) {
+                    break;
+                }
+            }
+        } catch(IOException e) {
+            Panic.panic(e);
+        }
+        while(buf.hasRemaining()) {
+            buf.put((byte)0);
+        }
+    }
+
+    @Override
+    public void write(long offset, byte[] src) {
+        ByteBuffer buf = ByteBuffer.wrap(src);
+        try {
+            while(buf.hasRemaining()) {
+                fc.write(buf, offset + buf.position());
+            }
+        } catch(IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    @Override
+    public void sync() {
+        try {
+            fc.force(false);
+        } catch(IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    @Override
+    public void truncate(long length) {
+        try {
+            file.setLength(length);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            fc.close();
+            file.close();
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package com.hakusai.db.backend.dm.pageCache;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.hakusai.db.backend.dm.page.PageOne;
+import com.hakusai.db.backend.utils.Panic;
+
+/**
+ * 内存映射的读写后端，适合读多的场景。
+ *
+ * 文件按 CHUNK_SIZE 分段映射成若干个 MappedByteBuffer，读写页面只是在映射区和页面之间做一次内存拷贝，
+ * 不需要系统调用，缺页时由内核直接从页缓存中映射进来。
+ *
+ * 每一段总是按整个 CHUNK_SIZE 映射，映射一旦建立就不再改变：newPage 扩展文件时直接写进映射区，
+ * 只有写到一个新的段时才映射一次，不会每新建一页就重新映射一次。
+ * READ_WRITE 映射超出文件长度的部分会把文件撑大到段的边界，所以文件的逻辑长度 length 单独记录，
+ * 读到 length 之后的部分和 FileChannel 一样读出 0。close() 时把文件截回 length；
+ * 没有正常关闭时文件末尾会留下全为 0 的填充，打开时去掉（见 trimPadding()）。
+ * 写入过的页面不会全为 0（PageX 的 FSO、第一页的页面大小都不为 0），所以去掉的只会是没有写到磁盘的页面，
+ * 和使用 FileChannel 时崩溃丢失了这些写入是一样的。
+ */
+class MappedPageFile implements PageFile {
+
+    // 每一段映射的大小，是页大小的整数倍
+    static final long CHUNK_SIZE = 64L << 20;
+
+    private RandomAccessFile file;
+    private FileChannel fc;
+
+    private volatile MappedByteBuffer[] chunks;
+    private volatile long length;           // 逻辑长度，物理文件可能因为映射而更长
+    private Lock mapLock;
+
+    MappedPageFile(RandomAccessFile file, FileChannel fc) {
+        this.file = file;
+        this.fc = fc;
+        this.chunks = new MappedByteBuffer[0];
+        this.mapLock = new ReentrantLock();
+        try {
+            this.length = trimPadding(fc.size());
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    /**
+     * 文件长度恰好是段的整数倍时，可能是上次没有正常关闭，末尾留下了映射撑大的填充：
+     * 按第一页中记录的页面大小，从后往前去掉全为 0 的页面，返回逻辑长度。
+     */
+    private long trimPadding(long size) throws IOException {
+        if(size == 0 || size % CHUNK_SIZE != 0) {
+            return size;
+        }
+        ByteBuffer header = ByteBuffer.allocate(PageOne.HEADER_SIZE);
+        while(header.hasRemaining() && fc.read(header, header.position()) >= 0);
+        int pageSize = PageOne.parsePageSize(header.array());
+        if(!PageCache.isValidPageSize(pageSize)) {
+            return size;
+        }
+        ByteBuffer page = ByteBuffer.allocate(pageSize);
+        long end = size;
+        while(end > pageSize) {
+            page.clear();
+            while(page.hasRemaining() && fc.read(page, end - pageSize + page.position()) >= 0);
+            if(!isZero(page.array())) {
+                break;
+            }
+            end -= pageSize;
+        }
+        if(end < size) {
+            file.setLength(end);
+        }
+        return end;
+    }
+
+    private static boolean isZero(byte[] buf) {
+        for(byte b : buf) {
+            if(b != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    @Override
+    public void read(long offset, byte[] dst, int len) {
+        long avail = Math.max(0, Math.min(len, length - offset));
+        int done = 0;
+        // 一次读取可能跨越两个映射段
+        while(done < avail) {
+            long pos = offset + done;
+            int n = (int)Math.min(avail - done, CHUNK_SIZE - pos % CHUNK_SIZE);
+            ByteBuffer buf = chunkFor(pos).duplicate();
+            buf.position((int)(pos % CHUNK_SIZE));
+            buf.get(dst, done, n);
+            done += n;
+        }
+        // 超出文件末尾（例如页号越界），和 FileChannel 一样读到 0
+        Arrays.fill(dst, done, len, (byte)0);
+    }
+
+    /**
+     * 页面大小整除 CHUNK_SIZE，一个页面不会跨越两个段。写到 length 之后时，先写进映射区，再推进 length，
+     * 读者看到新的 length 时一定也能读到写入的内容。
+     */
+    @Override
+    public void write(long offset, byte[] src) {
+        ByteBuffer buf = chunkFor(offset).duplicate();
+        buf.position((int)(offset % CHUNK_SIZE));
+        buf.put(src);
+        if(offset + src.length > length) {
+            mapLock.lock();
+            try {
+                length = Math.max(length, offset + src.length);
+            } finally {
+                mapLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * 返回 offset 所在的映射段，还没有映射时在 mapLock 内映射整个段。
+     */
+    private MappedByteBuffer chunkFor(long offset) {
+        int idx = (int)(offset / CHUNK_SIZE);
+        MappedByteBuffer[] cs = chunks;
+        if(idx < cs.length && cs[idx] != null) {
+            return cs[idx];
+        }
+        mapLock.lock();
+        try {
+            cs = chunks;
+            if(idx < cs.length && cs[idx] != null) {
+                return cs[idx];
+            }
+            // 拷贝一份再替换，不加锁的读者看到的数组不会被原地修改
+            cs = Arrays.copyOf(cs, Math.max(cs.length, idx + 1));
+            cs[idx] = fc.map(FileChannel.MapMode.READ_WRITE, idx * CHUNK_SIZE, CHUNK_SIZE);
+            chunks = cs;
+            return cs[idx];
+        } catch (IOException e) {
+            Panic.panic(e);
+            return null;
+        } finally {
+            mapLock.unlock();
+        }
+    }
+
+    @Override
+    public void sync() {
+        for(MappedByteBuffer m : chunks) {
+            if(m != null) {
+                m.force();
+            }
+        }
+        try {
+            fc.force(false);
+        } catch(IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    /**
+     * 截断时先丢弃所有映射，之后访问时重新映射。只在恢复时调用，此时没有其他线程在读写。
+     */
+    @Override
+    public void truncate(long length) {
+        mapLock.lock();
+        try {
+            chunks = new MappedByteBuffer[0];
+            file.setLength(length);
+            this.length = length;
+        } catch (IOException e) {
+            Panic.panic(e);
+        } finally {
+            mapLock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        mapLock.lock();
+        try {
+            sync();
+            chunks = new MappedByteBuffer[0];
+            // 去掉映射撑大的部分，下次打开时文件长度就是逻辑长度
+            file.setLength(length);
+            fc.close();
+            file.close();
+        } catch (IOException e) {
+            Panic.panic(e);
+        } finally {
+            mapLock.unlock();
+        }
+    }
+}
@@ -4,14 +4,23 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.RandomAccessFile;
 import java.nio.channels.FileChannel;
+import java.util.function.LongConsumer;
 
 import com.hakusai.db.backend.dm.page.Page;
+import com.hakusai.db.backend.dm.page.PageOne;
 import com.hakusai.db.backend.utils.Panic;
 import com.hakusai.db.common.Error;
 
 public interface PageCache {
     
+    /**
+     * 默认的页面大小。页面大小在创建数据库时指定，记录在第一页中（见 PageOne），打开时从文件中读出。
+     * 页内的空闲位置偏移（PageX 的 FSO）是 2 字节无符号数，uid 和日志中的页内偏移是 2 字节有符号数，
+     * 所以页面大小限制在 MIN_PAGE_SIZE ~ MAX_PAGE_SIZE 之间，并且必须是 2 的幂。
+     */
     public static final int PAGE_SIZE = 1 << 13;
+    public static final int MIN_PAGE_SIZE = 1 << 12;
+    public static final int MAX_PAGE_SIZE = 1 << 15;
 
     int newPage(byte[] initData);
     Page getPage(int pgno) throws Exception;
@@ -20,9 +29,39 @@ public interface PageCache {
 
     void truncateByBgno(int maxPgno);
     int getPageNumber();
+    int getPageSize();
     void flushPage(Page pg);
+    void prefetch(int pgno, int count);
+    void flushAll();
+    void setCheckpointer(Runnable checkpointer, long interval);
+    // 设置写回页面之前调用的日志刷盘回调，参数是要写回的页面中最大的 PageLSN
+    void setLogFlusher(LongConsumer logFlusher);
+
+    // 运行以来的统计：命中次数、未命中（从文件读入）次数、驱逐次数、预读进来的页数
+    long getHits();
+    long getMisses();
+    long getEvictions();
+    long getPrefetches();
 
     public static PageCacheImpl create(String path, long memory) {
+        return create(path, memory, PAGE_SIZE, false);
+    }
+
+    public static PageCacheImpl create(String path, long memory, boolean mmap) {
+        return create(path, memory, PAGE_SIZE, mmap);
+    }
+
+    public static PageCacheImpl open(String path, long memory) {
+        return open(path, memory, false);
+    }
+
+    /**
+     * @param mmap 为 true 时使用内存映射的方式读写文件（MappedPageFile），否则使用 FileChannel（ChannelPageFile）
+     */
+    public static PageCacheImpl create(String path, long memory, int pageSize, boolean mmap) {
+        if(!isValidPageSize(pageSize)) {
+            Panic.panic(Error.InvalidPageSizeException);
+        }
         File f = new File(path+PageCacheImpl.DB_SUFFIX);
         try {
             if(!f.createNewFile()) {
@@ -34,19 +73,10 @@ public interface PageCache {
         if(!f.canRead() || !f.canWrite()) {
             Panic.panic(Error.FileCannotRWException);
         }
-
-        FileChannel fc = null;
-        RandomAccessFile raf = null;
-        try {
-            raf = new RandomAccessFile(f, "rw");
-            fc = raf.getChannel();
-        } catch (FileNotFoundException e) {
-           Panic.panic(e);
-        }
-        return new PageCacheImpl(raf, fc, (int)memory/PAGE_SIZE);
+        return new PageCacheImpl(openPageFile(f, mmap), pageSize, (int)(memory/pageSize));
     }
 
-    public static PageCacheImpl open(String path, long memory) {
+    public static PageCacheImpl open(String path, long memory, boolean mmap) {
         File f = new File(path+PageCacheImpl.DB_SUFFIX);
         if(!f.exists()) {
             Panic.panic(Error.FileNotExistsException);
@@ -54,7 +84,22 @@ public interface PageCache {
         if(!f.canRead() || !f.canWrite()) {
             Panic.panic(Error.FileCannotRWException);
         }
+        PageFile pf = openPageFile(f, mmap);
+        // 页面大小记录在第一页的开头
+        byte[] header = new byte[PageOne.HEADER_SIZE];
+        pf.read(0, header);
+        int pageSize = PageOne.parsePageSize(header);
+        if(!isValidPageSize(pageSize)) {
+            Panic.panic(Error.InvalidPageSizeException);
+        }
+        return new PageCacheImpl(pf, pageSize, (int)(memory/pageSize));
+    }
+
+    public static boolean isValidPageSize(long pageSize) {
+        return pageSize >= MIN_PAGE_SIZE && pageSize <= MAX_PAGE_SIZE && (pageSize & (pageSize - 1)) == 0;
+    }
 
+    static PageFile openPageFile(File f, boolean mmap) {
         FileChannel fc = null;
         RandomAccessFile raf = null;
         try {
@@ -63,6 +108,6 @@ public interface PageCache {
         } catch (FileNotFoundException e) {
            Panic.panic(e);
         }
-        return new PageCacheImpl(raf, fc, (int)memory/PAGE_SIZE);
+        return mmap ? new MappedPageFile(raf, fc) : new ChannelPageFile(raf, fc);
     }
 }
@@ -1,49 +1,170 @@
 package com.hakusai.db.backend.dm.pageCache;
 
-import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongConsumer;
 
+import com.hakusai.db.backend.common.LongHashMap;
+import com.hakusai.db.backend.common.LongIntHashMap;
 import com.hakusai.db.backend.dm.page.Page;
 import com.hakusai.db.backend.dm.page.PageImpl;
+import com.hakusai.db.backend.dm.page.PageX;
 import com.hakusai.db.backend.utils.Panic;
-import com.hakusai.db.backend.common.AbstractCache;
 import com.hakusai.db.common.Error;
 
 /**
- * 页面缓存的具体实现类，需要继承抽象缓存框架，并且实现 getForCache() 和 releaseForCache() 两个抽象方法。
- * 由于数据源就是文件系统，getForCache() 直接从文件中读取，并包裹成 Page 即可：
+ * 页面缓存的具体实现类，是一个固定帧数的缓冲池。
+ *
+ * 和 DataItem、Entry 的缓存不同，页面在引用计数归零（unpin）后并不会立刻被驱逐，而是继续常驻在帧里，
+ * 直到需要腾出帧给新页面时，才按 2Q 策略挑选一个未被 pin 的冷页面驱逐，脏页面在驱逐时于锁外写回。
+ * 所有帧都被 pin 住时，请求新页面的线程会阻塞，直到有页面被 release，而不再抛出 CacheFullException。
+ *
+ * 2Q 策略：
+ * 第一次被访问的页面进入 probation 队列（A1in，FIFO），被驱逐时页号记入 ghosts（A1out）；
+ * 如果一个页面在 ghosts 中时再次被访问，说明它不是一次性扫描的页面，直接进入 hot 区（Am），
+ * hot 区的页面用 CLOCK 算法驱逐。这样全表扫描只会冲刷 probation 队列，不会把热点页面挤出去。
+ *
+ * 脏页面的写回：
+ * 后台的刷脏线程每隔 FLUSH_INTERVAL 扫描一遍缓冲池，把未被 pin 的脏页面拷贝出来，按页号排序后批量写回，
+ * 每批只 fsync 一次。驱逐时碰到的脏页面只 write 不 fsync，数据页的持久性由日志保证。
+ * 刷脏线程还会按设置的间隔调用检查点回调（由 DM 注册），见 setCheckpointer()。
+ * 页面写回之前会先让页面的 PageLSN 之前的日志落盘（WAL），见 setLogFlusher()。
+ *
+ * 每一帧的页面内存（byte[pageSize]）和 PageImpl 对象在创建缓冲池时按 -mem 一次性分配好，换入新页面时直接复用，
+ * 未命中时文件内容直接读进帧的内存，不再为每次未命中分配新的数组和对象。
+ * 这意味着页面被 release 之后，调用方就不能再访问它了，它随时可能被换成另一个页面。
+ *
+ * 预读：getPage 连续按页号顺序访问 SEQ_TRIGGER 次后，就由后台的预读线程把后面一个窗口的页面一次读进来，
+ * 访问到窗口的一半时再发起下一个窗口，扫描时大部分访问都能命中。上层也可以通过 prefetch() 直接给出提示。
+ * 预读进来的页面和普通的首次访问一样进入 probation 队列，窗口不超过 probation 队列长度的一半，避免互相挤出。
  */
-public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
-    
+public class PageCacheImpl implements PageCache {
+
     private static final int MEM_MIN_LIM = 10;
     public static final String DB_SUFFIX = ".db";
 
-    private RandomAccessFile file;
-    private FileChannel fc;
-    private Lock fileLock;
+    private PageFile pf;
+    private int pageSize;
 
     private AtomicInteger pageNumbers;
 
-    PageCacheImpl(RandomAccessFile file, FileChannel fileChannel, int maxResource) {
-        super(maxResource);
+    /**
+     * 缓冲池中的一帧。pins 是页面当前的引用数，loading 不为空时表示该帧正在从文件读入页面，或者正在写回、即将被驱逐。
+     * page 为 null 表示帧中没有可用的页面；buffer 是这一帧固定的 PageImpl，页面换入后 page 指向它。
+     */
+    static class Frame {
+        int pgno;
+        PageImpl page;
+        PageImpl buffer;
+        int pins;
+        boolean hot;            // 是否在 hot 区（Am），否则在 probation 队列中
+        boolean referenced;     // CLOCK 的访问位
+        CountDownLatch loading;
+    }
+
+    private Frame[] frames;
+    private LongHashMap<Frame> pageTable;     // 页号 -> 帧
+    private ArrayDeque<Frame> freeFrames;
+    private ArrayDeque<Frame> probation;
+    private LinkedHashSet<Integer> ghosts;
+    private int probationLimit;
+    private int ghostLimit;
+    private int clockHand;
+    private int writingBack;                // 正在 writeBack 的帧数，由 lock 保护
+
+    private Lock lock;
+    private Condition frameReleased;
+
+    private AtomicLong hits;
+    private AtomicLong misses;
+    private AtomicLong evictions;
+
+    // 后台刷脏的周期（毫秒）和每批最多写回的页数
+    private static final long FLUSH_INTERVAL = 100;
+    private static final int FLUSH_BATCH = 64;
+
+    private Thread flusher;
+    private Condition flusherWakeup;
+    private boolean closed;
+    private Lock flushLock;                 // 同一时刻只有一个线程在批量写回，flushFrames 和 flushBuffers 由它保护
+    private Frame[] flushFrames;
+    private byte[][] flushBuffers;
+    private volatile Runnable checkpointer;
+    private volatile LongConsumer logFlusher;
+    private volatile long checkpointInterval;
+    private long lastCheckpoint;
+
+    // 顺序访问连续多少次后开始预读，以及一个预读窗口最多包含的页数
+    private static final int SEQ_TRIGGER = 2;
+    private static final int MAX_READ_AHEAD = 32;
+
+    private ThreadPoolExecutor prefetcher;
+    private int readAheadWindow;
+    private Frame[] prefetchFrames;         // 只在预读线程中使用
+    private byte[] prefetchBuffer;          // 只在预读线程中使用
+    private int lastAccess;                 // 以下三个字段由 lock 保护，用来识别顺序访问
+    private int seqRun;
+    private int readAheadEnd;
+    private LongIntHashMap writing;         // newPage 已经分配了页号、但还没有写完的页面，由 lock 保护
+    private AtomicLong prefetches;
+
+    PageCacheImpl(PageFile pf, int pageSize, int maxResource) {
         if(maxResource < MEM_MIN_LIM) {
             Panic.panic(Error.MemTooSmallException);
         }
-        long length = 0;
-        try {
-            length = file.length();
-        } catch (IOException e) {
-            Panic.panic(e);
+        this.pf = pf;
+        this.pageSize = pageSize;
+        this.pageNumbers = new AtomicInteger((int)(pf.length() / pageSize));
+
+        this.frames = new Frame[maxResource];
+        this.pageTable = new LongHashMap<>(maxResource);
+        this.writing = new LongIntHashMap();
+        this.freeFrames = new ArrayDeque<>();
+        this.probation = new ArrayDeque<>();
+        this.ghosts = new LinkedHashSet<>();
+        for(int i = 0; i < maxResource; i ++) {
+            frames[i] = new Frame();
+            frames[i].buffer = new PageImpl(0, new byte[pageSize], this);
+            freeFrames.add(frames[i]);
         }
-        this.file = file;
-        this.fc = fileChannel;
-        this.fileLock = new ReentrantLock();
-        this.pageNumbers = new AtomicInteger((int)length / PAGE_SIZE);
+        this.probationLimit = Math.max(1, maxResource / 4);
+        this.ghostLimit = Math.max(1, maxResource / 2);
+        this.lock = new ReentrantLock();
+        this.frameReleased = lock.newCondition();
+        this.hits = new AtomicLong(0);
+        this.misses = new AtomicLong(0);
+        this.evictions = new AtomicLong(0);
+
+        this.flusherWakeup = lock.newCondition();
+        this.flushLock = new ReentrantLock();
+        this.flushFrames = new Frame[FLUSH_BATCH];
+        this.flushBuffers = new byte[FLUSH_BATCH][pageSize];
+        this.lastCheckpoint = System.currentTimeMillis();
+        this.flusher = new Thread(this::flushLoop, "page-flusher");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+
+        this.readAheadWindow = Math.max(1, Math.min(MAX_READ_AHEAD, probationLimit / 2));
+        this.prefetchFrames = new Frame[readAheadWindow];
+        this.prefetchBuffer = new byte[readAheadWindow * pageSize];
+        this.prefetches = new AtomicLong(0);
+        // 只有一个预读线程，排队的预读请求太多时直接丢弃，预读只是提示
+        this.prefetcher = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(16), r -> {
+                Thread t = new Thread(r, "page-prefetcher");
+                t.setDaemon(true);
+                return t;
+            }, new ThreadPoolExecutor.DiscardPolicy());
     }
 
     /**
@@ -54,101 +175,578 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
      * @return
      */
     public int newPage(byte[] initData) {
-        int pgno = pageNumbers.incrementAndGet();
-        Page pg = new PageImpl(pgno, initData, null);
-        flush(pg);
+        int pgno;
+        lock.lock();
+        try {
+            pgno = pageNumbers.incrementAndGet();
+            writing.put(pgno, 1);
+        } finally {
+            lock.unlock();
+        }
+        try {
+            writePage(pgno, initData);
+            sync();
+        } finally {
+            lock.lock();
+            writing.remove(pgno);
+            lock.unlock();
+        }
         return pgno;
     }
 
+    /**
+     * 页面在缓冲池中则直接 pin 住返回；正在被其他线程读入则等待读入完成；
+     * 否则申请一帧（必要时驱逐冷页面，所有帧都被 pin 住时阻塞），在锁外从文件读入页面。
+     */
     public Page getPage(int pgno) throws Exception {
-        return get((long)pgno);
+        Frame frame;
+        CountDownLatch loaded;
+        lock.lock();
+        try {
+            while(true) {
+                Frame f = pageTable.get(pgno);
+                if(f != null) {
+                    if(f.loading != null) {
+                        CountDownLatch inFlight = f.loading;
+                        lock.unlock();
+                        try {
+                            inFlight.await();
+                        } finally {
+                            lock.lock();
+                        }
+                        continue;
+                    }
+                    f.pins ++;
+                    f.referenced = true;
+                    hits.incrementAndGet();
+                    detectSequential(pgno);
+                    return f.page;
+                }
+
+                f = allocFrame();
+                if(f == null) {
+                    // 所有帧都被 pin 住了，等待有页面被释放
+                    frameReleased.await();
+                    continue;
+                }
+                if(pageTable.containsKey(pgno)) {
+                    // 写回被驱逐的页面时释放过 lock，其他线程已经在读入这个页面了
+                    f.page = null;
+                    freeFrames.add(f);
+                    continue;
+                }
+                misses.incrementAndGet();
+                f.pgno = pgno;
+                f.page = null;
+                f.pins = 1;
+                f.referenced = false;
+                f.hot = ghosts.remove(pgno);
+                if(!f.hot) {
+                    probation.add(f);
+                }
+                f.loading = new CountDownLatch(1);
+                pageTable.put(pgno, f);
+                frame = f;
+                loaded = f.loading;
+                detectSequential(pgno);
+                break;
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        PageImpl pg = frame.buffer;
+        pf.read(pageOffset(pgno), pg.getData());
+        pg.reset(pgno);
+        lock.lock();
+        try {
+            frame.page = pg;
+            frame.loading = null;
+        } finally {
+            lock.unlock();
+        }
+        loaded.countDown();
+        return pg;
     }
 
     /**
-     * 页面缓存的具体实现类，需要继承抽象缓存框架，并且实现 getForCache() 和 releaseForCache() 两个抽象方法。
-     * 由于数据源就是文件系统，getForCache() 根据pageNumber从数据库文件中读取页数据，并包裹成 Page 即可：
+     * 识别顺序访问：连续按页号顺序访问 SEQ_TRIGGER 次后，预读后面的一个窗口；
+     * 访问到已预读窗口的一半时，再预读下一个窗口。调用时必须持有 lock。
      */
-    @Override
-    protected Page getForCache(long key) throws Exception {
-        int pgno = (int)key;
-        long offset = PageCacheImpl.pageOffset(pgno);
+    private void detectSequential(int pgno) {
+        if(pgno == lastAccess + 1) {
+            seqRun ++;
+        } else if(pgno != lastAccess) {
+            seqRun = 0;
+            readAheadEnd = 0;
+        }
+        lastAccess = pgno;
+        if(seqRun >= SEQ_TRIGGER && pgno + readAheadWindow / 2 >= readAheadEnd) {
+            int start = Math.max(pgno + 1, readAheadEnd + 1);
+            readAheadEnd = start + readAheadWindow - 1;
+            submitPrefetch(start, readAheadWindow);
+        }
+    }
 
-        ByteBuffer buf = ByteBuffer.allocate(PAGE_SIZE);
-        fileLock.lock();
+    /**
+     * 预读提示：在后台把 [pgno, pgno+count) 中不在缓冲池的页面读进来，count 超过预读窗口时只预读一个窗口。
+     */
+    public void prefetch(int pgno, int count) {
+        lock.lock();
         try {
-            fc.position(offset);
-            fc.read(buf);
-        } catch(IOException e) {
-            Panic.panic(e);
+            if(count == 1 && pageTable.containsKey(pgno)) {
+                return;
+            }
+        } finally {
+            lock.unlock();
         }
-        fileLock.unlock();
-        return new PageImpl(pgno, buf.array(), this);
+        submitPrefetch(pgno, Math.min(count, readAheadWindow));
+    }
+
+    private void submitPrefetch(int start, int count) {
+        prefetcher.execute(() -> doPrefetch(start, count));
     }
 
     /**
-     * 而 releaseForCache() 驱逐页面时，也只需要根据页面是否是脏页面，来决定是否需要写回文件系统：
-     * @param pg
+     * 在 lock 内为一段连续的、不在缓冲池中的页面占好帧（标记为 loading，其他线程访问时会等待），
+     * 锁外用一次读把这一段页面读进来，再分别拷贝进各自的帧。
+     * 预读不会阻塞：没有可以驱逐的帧时直接放弃剩下的页面。
+     * 页号已经分配、内容还没写完的新页面不能预读，否则会把旧内容读进缓冲池。
      */
-    @Override
-    protected void releaseForCache(Page pg) {
-        if(pg.isDirty()) {
-            flush(pg);
-            pg.setDirty(false);
+    private void doPrefetch(int start, int count) {
+        int end = Math.min(start + count - 1, pageNumbers.get());
+        int pgno = start;
+        while(pgno <= end) {
+            int n = 0;
+            lock.lock();
+            try {
+                while(pgno <= end && pageTable.containsKey(pgno)) {
+                    pgno ++;
+                }
+                while(pgno + n <= end && n < readAheadWindow && !pageTable.containsKey(pgno + n)
+                        && !writing.containsKey(pgno + n)) {
+                    Frame f = allocFrame();
+                    if(f == null) {
+                        break;
+                    }
+                    if(pageTable.containsKey(pgno + n) || writing.containsKey(pgno + n)) {
+                        f.page = null;
+                        freeFrames.add(f);
+                        break;
+                    }
+                    f.pgno = pgno + n;
+                    f.page = null;
+                    f.pins = 0;
+                    f.referenced = false;
+                    f.hot = false;
+                    probation.add(f);
+                    f.loading = new CountDownLatch(1);
+                    pageTable.put(f.pgno, f);
+                    prefetchFrames[n ++] = f;
+                }
+            } finally {
+                lock.unlock();
+            }
+            if(n == 0) {
+                return;
+            }
+
+            pf.read(pageOffset(pgno), prefetchBuffer, n * pageSize);
+            for(int i = 0; i < n; i ++) {
+                PageImpl pg = prefetchFrames[i].buffer;
+                System.arraycopy(prefetchBuffer, i * pageSize, pg.getData(), 0, pageSize);
+                pg.reset(prefetchFrames[i].pgno);
+            }
+            lock.lock();
+            try {
+                for(int i = 0; i < n; i ++) {
+                    Frame f = prefetchFrames[i];
+                    prefetchFrames[i] = null;
+                    f.page = f.buffer;
+                    f.loading.countDown();
+                    f.loading = null;
+                }
+            } finally {
+                lock.unlock();
+            }
+            prefetches.addAndGet(n);
+            pgno += n;
+        }
+    }
+
+    /**
+     * 取一个空闲帧，没有空闲帧时驱逐一个页面，所有帧都被 pin 住时返回 null。调用时必须持有 lock。
+     *
+     * 脏页面要先写回才能驱逐，写回之前可能还要等日志落盘。这些都不能在 lock 内做，否则所有的 getPage 都要排在这一次磁盘写之后，
+     * 所以交给 writeBack 在锁外写回，写完后帧成为空闲帧，再重新取一次。
+     * 因此这个方法可能释放过 lock，调用方之前在 lock 内检查过的状态（比如页面是否已在缓冲池中）需要重新检查。
+     */
+    private Frame allocFrame() {
+        while(true) {
+            Frame f = freeFrames.poll();
+            if(f != null) {
+                return f;
+            }
+            if(probation.size() > probationLimit) {
+                f = evictProbation();
+            }
+            if(f == null) {
+                f = evictHot();
+            }
+            if(f == null) {
+                f = evictProbation();
+            }
+            if(f == null) {
+                return null;
+            }
+            evictions.incrementAndGet();
+            if(!f.page.isDirty()) {
+                pageTable.remove(f.pgno);
+                return f;
+            }
+            writeBack(f);
         }
     }
 
+    /**
+     * 在锁外写回即将被驱逐的脏页面，写完后把帧从 pageTable 中移除，放回 freeFrames。调用时必须持有 lock，期间会释放 lock。
+     *
+     * 写回期间帧标记为 loading：访问这个页面的线程会等待，等写完后重新从文件读入，驱逐和刷脏也会跳过它。
+     * 帧没有被 pin，不会有人在修改页面，所以可以直接写帧中的数据，不必像 flushBatch 那样先拷贝出来。
+     */
+    private void writeBack(Frame f) {
+        CountDownLatch written = new CountDownLatch(1);
+        f.loading = written;
+        writingBack ++;
+        lock.unlock();
+        try {
+            byte[] data = f.page.getData();
+            flushLog(pageLSN(f.pgno, data));
+            writePage(f.pgno, data);
+        } finally {
+            lock.lock();
+        }
+        f.page.setDirty(false);
+        pageTable.remove(f.pgno);
+        f.page = null;
+        f.loading = null;
+        freeFrames.add(f);
+        writingBack --;
+        written.countDown();
+        frameReleased.signalAll();
+    }
+
+    // probation 队列按 FIFO 驱逐，被驱逐的页号记入 ghosts
+    private Frame evictProbation() {
+        int n = probation.size();
+        for(int i = 0; i < n; i ++) {
+            Frame f = probation.poll();
+            if(f.pins > 0 || f.loading != null) {
+                probation.add(f);
+                continue;
+            }
+            ghosts.add(f.pgno);
+            if(ghosts.size() > ghostLimit) {
+                Iterator<Integer> it = ghosts.iterator();
+                it.next();
+                it.remove();
+            }
+            return f;
+        }
+        return null;
+    }
+
+    // hot 区按 CLOCK 驱逐：访问位为 1 的页面清零后再给一次机会
+    private Frame evictHot() {
+        for(int i = 0; i < frames.length * 2; i ++) {
+            Frame f = frames[clockHand];
+            clockHand = (clockHand + 1) % frames.length;
+            if(!f.hot || f.page == null || f.pins > 0 || f.loading != null) {
+                continue;
+            }
+            if(f.referenced) {
+                f.referenced = false;
+                continue;
+            }
+            return f;
+        }
+        return null;
+    }
+
+    /**
+     * release 只是 unpin 页面，页面仍然留在缓冲池中，脏页面由刷脏线程或驱逐时写回。
+     * @param page
+     */
     public void release(Page page) {
-        release((long)page.getPageNumber());
+        lock.lock();
+        try {
+            Frame f = pageTable.get(page.getPageNumber());
+            f.pins --;
+            if(f.pins == 0) {
+                frameReleased.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
     }
 
     public void flushPage(Page pg) {
-        flush(pg);
+        writePage(pg.getPageNumber(), pg.getData());
+        sync();
+    }
+
+    /**
+     * 写回缓冲池中所有的脏页面（包括被 pin 住的）并 fsync，用于检查点。
+     * 被 pin 住的页面可能正在被修改，调用方需要保证期间没有页面被修改。
+     *
+     * 最后总要 fsync 一次：驱逐时写回的页面只 write 不 fsync，它们已经不在缓冲池中，flushBatch 找不到，
+     * 即使这次没有脏页面要写，也要让它们落盘，检查点之后才能删除它们的日志。
+     * 正在驱逐写回的页面标记为 loading，flushBatch 会跳过它们，所以 fsync 之前还要等这些写回都结束。
+     * 检查点挡不住驱逐（读页面也会触发驱逐），但 flushBatch 之后不会再有新的脏页面被驱逐：
+     * 期间没有页面被修改，当时是脏的页面都已经被 flushBatch 写回了。
+     */
+    public void flushAll() {
+        flushLock.lock();
+        try {
+            while(flushBatch(true) == FLUSH_BATCH);
+            lock.lock();
+            try {
+                while(writingBack > 0) {
+                    frameReleased.awaitUninterruptibly();
+                }
+            } finally {
+                lock.unlock();
+            }
+            sync();
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * 设置检查点回调，刷脏线程每隔 interval 毫秒调用一次，传入 null 取消。
+     */
+    public void setCheckpointer(Runnable checkpointer, long interval) {
+        this.checkpointInterval = interval;
+        this.checkpointer = checkpointer;
+    }
+
+    /**
+     * WAL：页面写回之前，最后修改它的那条日志必须已经落盘，否则崩溃后页面上会留下日志里找不到的修改，
+     * 既无法撤销，PageLSN 又会让恢复跳过它之前的日志。写日志和写回页面由不同的线程进行，
+     * 日志异步刷盘时这个顺序就需要在这里保证。
+     */
+    public void setLogFlusher(LongConsumer logFlusher) {
+        this.logFlusher = logFlusher;
+    }
+
+    private void flushLog(long lsn) {
+        LongConsumer lf = logFlusher;
+        if(lf != null && lsn > 0) {
+            lf.accept(lsn);
+        }
     }
 
-    private void flush(Page pg) {
-        int pgno = pg.getPageNumber();
-        long offset = pageOffset(pgno);
+    // 第一页（PageOne）的修改不记日志，其他页面都是 PageX，开头记录了 PageLSN
+    private static long pageLSN(int pgno, byte[] data) {
+        return pgno == 1 ? 0 : PageX.getPageLSN(data);
+    }
+
+    private void flushLoop() {
+        while(true) {
+            lock.lock();
+            try {
+                if(!closed) {
+                    flusherWakeup.await(FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+                }
+                if(closed) {
+                    return;
+                }
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+
+            flushLock.lock();
+            try {
+                while(flushBatch(false) == FLUSH_BATCH);
+            } finally {
+                flushLock.unlock();
+            }
 
-        fileLock.lock();
+            Runnable cp = checkpointer;
+            long now = System.currentTimeMillis();
+            if(cp != null && now - lastCheckpoint >= checkpointInterval) {
+                cp.run();
+                lastCheckpoint = now;
+            }
+        }
+    }
+
+    /**
+     * 写回一批脏页面，返回写回的页数。调用时必须持有 flushLock。
+     *
+     * 在 lock 内把页面 pin 住、清除脏标志并拷贝出数据：未被 pin 的页面此时不可能有人在修改，拷贝出的是一致的内容；
+     * 之后再有人修改，会重新把页面标记为脏，留给下一批。pin 住是为了在写完之前页面不会被驱逐后又从文件读入旧内容。
+     * 锁外按页号排序写回，最后只 fsync 一次。写回之前先让这一批页面中最大的 PageLSN 之前的日志落盘。
+     */
+    private int flushBatch(boolean includePinned) {
+        int n = 0;
+        lock.lock();
         try {
-            ByteBuffer buf = ByteBuffer.wrap(pg.getData());
-            fc.position(offset);
-            fc.write(buf);
-            fc.force(false);
-        } catch(IOException e) {
-            Panic.panic(e);
+            for(Frame f : frames) {
+                if(n == FLUSH_BATCH) {
+                    break;
+                }
+                if(f.page == null || f.loading != null || !f.page.isDirty()) {
+                    continue;
+                }
+                if(f.pins > 0 && !includePinned) {
+                    continue;
+                }
+                f.pins ++;
+                f.page.setDirty(false);
+                System.arraycopy(f.page.getData(), 0, flushBuffers[n], 0, pageSize);
+                flushFrames[n ++] = f;
+            }
         } finally {
-            fileLock.unlock();
+            lock.unlock();
+        }
+        if(n == 0) {
+            return 0;
+        }
+
+        // 按页号插入排序，尽量顺序写
+        for(int i = 1; i < n; i ++) {
+            Frame f = flushFrames[i];
+            byte[] buf = flushBuffers[i];
+            int j = i - 1;
+            while(j >= 0 && flushFrames[j].pgno > f.pgno) {
+                flushFrames[j+1] = flushFrames[j];
+                flushBuffers[j+1] = flushBuffers[j];
+                j --;
+            }
+            flushFrames[j+1] = f;
+            flushBuffers[j+1] = buf;
+        }
+        long maxLSN = 0;
+        for(int i = 0; i < n; i ++) {
+            maxLSN = Math.max(maxLSN, pageLSN(flushFrames[i].pgno, flushBuffers[i]));
         }
+        flushLog(maxLSN);
+        for(int i = 0; i < n; i ++) {
+            writePage(flushFrames[i].pgno, flushBuffers[i]);
+        }
+        sync();
+
+        lock.lock();
+        try {
+            for(int i = 0; i < n; i ++) {
+                Frame f = flushFrames[i];
+                flushFrames[i] = null;
+                f.pins --;
+                if(f.pins == 0) {
+                    frameReleased.signalAll();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        return n;
+    }
+
+    private void writePage(int pgno, byte[] data) {
+        pf.write(pageOffset(pgno), data);
     }
 
+    private void sync() {
+        pf.sync();
+    }
+
+    /**
+     * 截断文件时，缓冲池中页号超过 maxPgno 的页面也一并丢弃。
+     * @param maxPgno
+     */
     public void truncateByBgno(int maxPgno) {
-        long size = pageOffset(maxPgno + 1);
+        // 等待正在进行的批量写回结束，避免截断之后又写到被截掉的页面上
+        flushLock.lock();
         try {
-            file.setLength(size);
-        } catch (IOException e) {
-            Panic.panic(e);
+            truncate(maxPgno);
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    private void truncate(int maxPgno) {
+        lock.lock();
+        try {
+            for(Frame f : frames) {
+                if(f.page != null && f.loading == null && f.pins == 0 && f.pgno > maxPgno && pageTable.get(f.pgno) == f) {
+                    pageTable.remove(f.pgno);
+                    probation.remove(f);
+                    f.page = null;
+                    freeFrames.add(f);
+                }
+            }
+            ghosts.removeIf(pgno -> pgno > maxPgno);
+        } finally {
+            lock.unlock();
         }
+        pf.truncate(pageOffset(maxPgno + 1));
         pageNumbers.set(maxPgno);
     }
 
     @Override
     public void close() {
-        super.close();
+        prefetcher.shutdown();
         try {
-            fc.close();
-            file.close();
-        } catch (IOException e) {
+            prefetcher.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
             Panic.panic(e);
         }
+        lock.lock();
+        try {
+            closed = true;
+            flusherWakeup.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Panic.panic(e);
+        }
+        flushAll();
+        pf.close();
     }
 
     public int getPageNumber() {
         return pageNumbers.intValue();
     }
 
-    private static long pageOffset(int pgno) {
-        return (pgno-1) * PAGE_SIZE;
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public long getPrefetches() {
+        return prefetches.get();
+    }
+
+    private long pageOffset(int pgno) {
+        return (long)(pgno-1) * pageSize;
     }
-    
+
 }
@@ -0,0 +1,23 @@
+package com.hakusai.db.backend.dm.pageCache;
+
+/**
+ * .db 文件的读写后端，PageCacheImpl 通过它按页读写文件，缓冲池本身不关心文件是怎么访问的。
+ * ChannelPageFile 使用 FileChannel 带 offset 的读写，MappedPageFile 把文件映射到内存后直接拷贝。
+ * 实现需要保证不同 offset 上的读写可以并发进行。
+ */
+interface PageFile {
+    // 文件当前的长度
+    long length();
+    // 从 offset 处读 len 字节到 dst 开头，超出文件末尾的部分填 0
+    void read(long offset, byte[] dst, int len);
+
+    default void read(long offset, byte[] dst) {
+        read(offset, dst, dst.length);
+    }
+    // 把 src 写到 offset 处，必要时扩展文件
+    void write(long offset, byte[] src);
+    // 把之前的写入刷到磁盘
+    void sync();
+    void truncate(long length);
+    void close();
+}
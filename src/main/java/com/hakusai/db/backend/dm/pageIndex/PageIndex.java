@@ -1,10 +1,11 @@
 package com.hakusai.db.backend.dm.pageIndex;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
+import com.hakusai.db.backend.common.LongHashMap;
 import com.hakusai.db.backend.dm.pageCache.PageCache;
 
 /**
@@ -15,31 +16,43 @@ import com.hakusai.db.backend.dm.pageCache.PageCache;
  * 在启动时，就会遍历所有的页面信息，获取页面的空闲空间，
  * 安排到这 40 个区间中。insert 在请求一个页时，会首先将所需的空间向上取整，
  * 映射到某一个区间，随后取出这个区间的任何一页，都可以满足需求。
+ *
+ * 回收空间时要按页号取出页面（见 remove()），所以还记录了页号到 PageInfo 的映射，
+ * 每个区间用 LinkedHashSet 保存，按页号取出和按区间取出都是 O(1)，不用在持有锁时扫描所有页面。
  */
 public class PageIndex {
     // 将一页划成40个区间
     private static final int INTERVALS_NO = 40;
-    private static final int THRESHOLD = PageCache.PAGE_SIZE / INTERVALS_NO;
 
-    private Lock lock;
-    private List<PageInfo>[] lists;
+    // 每个区间的大小，由页面大小决定
+    private final int threshold;
 
+    private Lock lock;
+    private LinkedHashSet<PageInfo>[] lists;
+    private LongHashMap<PageInfo> pages;     // 页号 -> 在 lists 中的 PageInfo
 
+    public PageIndex() {
+        this(PageCache.PAGE_SIZE);
+    }
 
     @SuppressWarnings("unchecked")
-    public PageIndex() {
+    public PageIndex(int pageSize) {
+        threshold = pageSize / INTERVALS_NO;
         lock = new ReentrantLock();
-        lists = new List[INTERVALS_NO+1];
+        lists = new LinkedHashSet[INTERVALS_NO+1];
         for (int i = 0; i < INTERVALS_NO+1; i ++) {
-            lists[i] = new ArrayList<>();
+            lists[i] = new LinkedHashSet<>();
         }
+        pages = new LongHashMap<>();
     }
 
     public void add(int pgno, int freeSpace) {
         lock.lock();
         try {
-            int number = freeSpace / THRESHOLD;
-            lists[number].add(new PageInfo(pgno, freeSpace));
+            int number = freeSpace / threshold;
+            PageInfo pi = new PageInfo(pgno, freeSpace);
+            lists[number].add(pi);
+            pages.put(pgno, pi);
         } finally {
             lock.unlock();
         }
@@ -55,14 +68,20 @@ public class PageIndex {
     public PageInfo select(int spaceSize) {
         lock.lock();
         try {
-            int number = spaceSize / THRESHOLD;
+            int number = spaceSize / threshold;
             if(number < INTERVALS_NO) number ++;
             while(number <= INTERVALS_NO) {
                 if(lists[number].size() == 0) {
                     number ++;
                     continue;
                 }
-                return lists[number].remove(0);
+                Iterator<PageInfo> it = lists[number].iterator();
+                PageInfo pi = it.next();
+                it.remove();
+                if(pages.get(pi.pgno) == pi) {
+                    pages.remove(pi.pgno);
+                }
+                return pi;
             }
             return null;
         } finally {
@@ -70,4 +89,21 @@ public class PageIndex {
         }
     }
 
+    /**
+     * 从 PageIndex 中取出页号为 pgno 的页面，取出后同样需要重新插入。
+     * 页面不在 PageIndex 中时返回 null，说明有插入正在使用它，或者它已经被别人取出了。
+     */
+    public PageInfo remove(int pgno) {
+        lock.lock();
+        try {
+            PageInfo pi = pages.remove(pgno);
+            if(pi != null) {
+                lists[pi.freeSpace / threshold].remove(pi);
+            }
+            return pi;
+        } finally {
+            lock.unlock();
+        }
+    }
+
 }
@@ -24,9 +24,10 @@ public class BPlusTree {
     long bootUid;
     DataItem bootDataItem;
     Lock bootLock;
+    int balance;
 
     public static long create(DataManager dm) throws Exception {
-        byte[] rawRoot = Node.newNilRootRaw();
+        byte[] rawRoot = Node.newNilRootRaw(Node.balanceNumber(dm.getPageSize()));
         long rootUid = dm.insert(TransactionManagerImpl.SUPER_XID, rawRoot);
         return dm.insert(TransactionManagerImpl.SUPER_XID, Parser.long2Byte(rootUid));
     }
@@ -39,6 +40,7 @@ public class BPlusTree {
         t.dm = dm;
         t.bootDataItem = bootDataItem;
         t.bootLock = new ReentrantLock();
+        t.balance = Node.balanceNumber(dm.getPageSize());
         return t;
     }
 
@@ -55,7 +57,7 @@ public class BPlusTree {
     private void updateRootUid(long left, long right, long rightKey) throws Exception {
         bootLock.lock();
         try {
-            byte[] rootRaw = Node.newRootRaw(left, right, rightKey);
+            byte[] rootRaw = Node.newRootRaw(balance, left, right, rightKey);
             long newRootUid = dm.insert(TransactionManagerImpl.SUPER_XID, rootRaw);
             bootDataItem.before();
             SubArray diRaw = bootDataItem.data();
@@ -80,11 +82,16 @@ public class BPlusTree {
     }
 
     private long searchNext(long nodeUid, long key) throws Exception {
+        return searchSon(nodeUid, key).uid;
+    }
+
+    // 和 searchNext 一样，同时返回子节点的上界
+    private Node.SearchNextRes searchSon(long nodeUid, long key) throws Exception {
         while(true) {
             Node node = Node.loadNode(this, nodeUid);
             Node.SearchNextRes res = node.searchNext(key);
             node.release();
-            if(res.uid != 0) return res.uid;
+            if(res.uid != 0) return res;
             nodeUid = res.siblingUid;
         }
     }
@@ -93,13 +100,20 @@ public class BPlusTree {
         return searchRange(key, key);
     }
 
+    /**
+     * 和 delete() 一样从 leftKey-1 所在的叶子开始，否则分裂到左边叶子中的、等于 leftKey 的项会被漏掉。
+     */
     public List<Long> searchRange(long leftKey, long rightKey) throws Exception {
         long rootUid = rootUid();
-        long leafUid = searchLeaf(rootUid, leftKey);
+        long leafUid = searchLeaf(rootUid, leftKey == Long.MIN_VALUE ? leftKey : leftKey-1);
         List<Long> uids = new ArrayList<>();
         while(true) {
             Node leaf = Node.loadNode(this, leafUid);
             Node.LeafSearchRangeRes res = leaf.leafSearchRange(leftKey, rightKey);
+            if(res.siblingUid != 0) {
+                // 还要继续扫描兄弟节点，提前在后台把它所在的页面读进来
+                dm.prefetch(res.siblingUid);
+            }
             leaf.release();
             uids.addAll(res.uids);
             if(res.siblingUid == 0) {
@@ -111,9 +125,43 @@ public class BPlusTree {
         return uids;
     }
 
+    public class ScanRes {
+        public List<Long> uids;
+        public long nextKey;        // 下一批从这个 key 开始
+        public boolean done;        // 已经扫描到最后，没有下一批了
+    }
+
+    /**
+     * 从 leftKey 开始，按 key 的顺序取出一批索引项，用于分批遍历整个索引，不必一次把所有的 UID 都读进内存。
+     * 每批至少 max 项（剩下的不够时取到最后），同一个 key 的项总在同一批中，所以下一批从 nextKey 开始即可，
+     * 两批之间插入或删除的项不会让遍历重复或者停不下来。
+     */
+    public ScanRes scan(long leftKey, int max) throws Exception {
+        long rootUid = rootUid();
+        long leafUid = searchLeaf(rootUid, leftKey == Long.MIN_VALUE ? leftKey : leftKey-1);
+        ScanRes res = new ScanRes();
+        res.uids = new ArrayList<>();
+        while(leafUid != 0) {
+            Node leaf = Node.loadNode(this, leafUid);
+            Node.LeafScanRes r = leaf.leafScan(leftKey);
+            leaf.release();
+            for(int i = 0; i < r.keys.length; i ++) {
+                if(res.uids.size() >= max && r.keys[i] != res.nextKey) {
+                    res.nextKey = r.keys[i];
+                    return res;
+                }
+                res.uids.add(r.uids[i]);
+                res.nextKey = r.keys[i];
+            }
+            leafUid = r.siblingUid;
+        }
+        res.done = true;
+        return res;
+    }
+
     public void insert(long key, long uid) throws Exception {
         long rootUid = rootUid();
-        InsertRes res = insert(rootUid, uid, key);
+        InsertRes res = insert(rootUid, uid, key, Long.MAX_VALUE);
         assert res != null;
         if(res.newNode != 0) {
             updateRootUid(rootUid, res.newNode, res.newKey);
@@ -124,19 +172,19 @@ public class BPlusTree {
         long newNode, newKey;
     }
 
-    private InsertRes insert(long nodeUid, long uid, long key) throws Exception {
+    private InsertRes insert(long nodeUid, long uid, long key, long bound) throws Exception {
         Node node = Node.loadNode(this, nodeUid);
         boolean isLeaf = node.isLeaf();
         node.release();
 
         InsertRes res = null;
         if(isLeaf) {
-            res = insertAndSplit(nodeUid, uid, key);
+            res = insertAndSplit(nodeUid, uid, key, bound);
         } else {
-            long next = searchNext(nodeUid, key);
-            InsertRes ir = insert(next, uid, key);
+            Node.SearchNextRes son = searchSon(nodeUid, key);
+            InsertRes ir = insert(son.uid, uid, key, son.key);
             if(ir.newNode != 0) {
-                res = insertAndSplit(nodeUid, ir.newNode, ir.newKey);
+                res = insertAndSplit(nodeUid, ir.newNode, ir.newKey, Long.MAX_VALUE);
             } else {
                 res = new InsertRes();
             }
@@ -144,13 +192,15 @@ public class BPlusTree {
         return res;
     }
 
-    private InsertRes insertAndSplit(long nodeUid, long uid, long key) throws Exception {
+    private InsertRes insertAndSplit(long nodeUid, long uid, long key, long bound) throws Exception {
         while(true) {
             Node node = Node.loadNode(this, nodeUid);
-            Node.InsertAndSplitRes iasr = node.insertAndSplit(uid, key);
+            Node.InsertAndSplitRes iasr = node.insertAndSplit(uid, key, bound);
             node.release();
             if(iasr.siblingUid != 0) {
+                // 兄弟节点的上界不知道，只能靠它的兄弟节点中最小的 key 判断
                 nodeUid = iasr.siblingUid;
+                bound = Long.MAX_VALUE;
             } else {
                 InsertRes res = new InsertRes();
                 res.newNode = iasr.newSon;
@@ -160,6 +210,25 @@ public class BPlusTree {
         }
     }
 
+    /**
+     * 删除索引项 (key, uid)，返回是否找到并删除。只删除叶子节点中的项，不合并节点，也不调整上层节点的 key。
+     * 相同的 key 在分裂时可能分到两个相邻的叶子中，所以从 key-1 所在的叶子开始，顺着兄弟节点往后找。
+     */
+    public boolean delete(long key, long uid) throws Exception {
+        long rootUid = rootUid();
+        long leafUid = searchLeaf(rootUid, key == Long.MIN_VALUE ? key : key-1);
+        while(leafUid != 0) {
+            Node leaf = Node.loadNode(this, leafUid);
+            Node.LeafDeleteRes res = leaf.leafDelete(key, uid);
+            leaf.release();
+            if(res.deleted) {
+                return true;
+            }
+            leafUid = res.siblingUid;
+        }
+        return false;
+    }
+
     public void close() {
         bootDataItem.release();
     }
@@ -6,6 +6,7 @@ import java.util.List;
 
 import com.hakusai.db.backend.tm.TransactionManagerImpl;
 import com.hakusai.db.backend.dm.dataItem.DataItem;
+import com.hakusai.db.backend.dm.pageCache.PageCache;
 import com.hakusai.db.backend.utils.Parser;
 import com.hakusai.db.backend.common.SubArray;
 
@@ -15,6 +16,10 @@ import com.hakusai.db.backend.common.SubArray;
  * [Son0][Key0][Son1][Key1]...[SonN][KeyN]
  *
  * Node 类持有了其 B+ 树结构的引用，DataItem 的引用和 SubArray 的引用，用于方便快速修改数据和释放数据。
+ *
+ * 一个节点的 key 数在 [balance, 2*balance] 之间。默认 8K 页面下 balance 为 BALANCE_NUMBER，
+ * 页面越大扇出越大，balance 随页面大小等比例缩放（见 balanceNumber()）。
+ * 已有节点的 balance 由节点本身的大小反推，不需要额外记录。
  */
 public class Node {
     static final int IS_LEAF_OFFSET = 0;
@@ -23,7 +28,19 @@ public class Node {
     static final int NODE_HEADER_SIZE = SIBLING_OFFSET+8;
 
     static final int BALANCE_NUMBER = 32;
-    static final int NODE_SIZE = NODE_HEADER_SIZE + (2*8)*(BALANCE_NUMBER*2+2);
+
+    // 页面大小为 pageSize 时新建节点使用的 balance
+    static int balanceNumber(int pageSize) {
+        return BALANCE_NUMBER * pageSize / PageCache.PAGE_SIZE;
+    }
+
+    static int nodeSize(int balance) {
+        return NODE_HEADER_SIZE + (2*8)*(balance*2+2);
+    }
+
+    static int getRawBalance(SubArray raw) {
+        return ((raw.end - raw.start - NODE_HEADER_SIZE) / (2*8) - 2) / 2;
+    }
 
     BPlusTree tree;
     DataItem dataItem;
@@ -90,14 +107,21 @@ public class Node {
 
     static void shiftRawKth(SubArray raw, int kth) {
         int begin = raw.start+NODE_HEADER_SIZE+(kth+1)*(8*2);
-        int end = raw.start+NODE_SIZE-1;
+        int end = raw.end-1;
         for(int i = end; i >= begin; i --) {
             raw.raw[i] = raw.raw[i-(8*2)];
         }
     }
 
-    static byte[] newRootRaw(long left, long right, long key)  {
-        SubArray raw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
+    // shiftRawKth 的反操作，把第 kth+1 个之后的部分前移一格，覆盖掉第 kth 个
+    static void unshiftRawKth(SubArray raw, int kth) {
+        int begin = raw.start+NODE_HEADER_SIZE+kth*(8*2);
+        System.arraycopy(raw.raw, begin+(8*2), raw.raw, begin, raw.end-begin-(8*2));
+    }
+
+    static byte[] newRootRaw(int balance, long left, long right, long key)  {
+        int size = nodeSize(balance);
+        SubArray raw = new SubArray(new byte[size], 0, size);
 
         setRawIsLeaf(raw, false);
         setRawNoKeys(raw, 2);
@@ -110,8 +134,9 @@ public class Node {
         return raw.raw;
     }
 
-    static byte[] newNilRootRaw()  {
-        SubArray raw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
+    static byte[] newNilRootRaw(int balance)  {
+        int size = nodeSize(balance);
+        SubArray raw = new SubArray(new byte[size], 0, size);
 
         setRawIsLeaf(raw, true);
         setRawNoKeys(raw, 0);
@@ -146,6 +171,7 @@ public class Node {
 
     class SearchNextRes {
         long uid;
+        long key;           // uid 对应的 key，即这个子节点中 key 的上界
         long siblingUid;
     }
 
@@ -164,6 +190,7 @@ public class Node {
                 long ik = getRawKthKey(raw, i);
                 if(key < ik) {
                     res.uid = getRawKthSon(raw, i);
+                    res.key = ik;
                     res.siblingUid = 0;
                     return res;
                 }
@@ -224,18 +251,94 @@ public class Node {
         }
     }
 
+    class LeafScanRes {
+        long[] keys;
+        long[] uids;
+        long siblingUid;
+    }
+
+    /**
+     * leafScan 返回当前叶子节点中所有 key 不小于 leftKey 的项，以及兄弟节点的 UID，供 BPlusTree.scan 分批遍历。
+     * @param leftKey
+     * @return
+     */
+    public LeafScanRes leafScan(long leftKey) {
+        dataItem.rLock();
+        try {
+            int noKeys = getRawNoKeys(raw);
+            int kth = 0;
+            while(kth < noKeys && getRawKthKey(raw, kth) < leftKey) {
+                kth ++;
+            }
+            LeafScanRes res = new LeafScanRes();
+            res.keys = new long[noKeys - kth];
+            res.uids = new long[noKeys - kth];
+            for(int i = 0; kth < noKeys; i ++, kth ++) {
+                res.keys[i] = getRawKthKey(raw, kth);
+                res.uids[i] = getRawKthSon(raw, kth);
+            }
+            res.siblingUid = getRawSibling(raw);
+            return res;
+        } finally {
+            dataItem.rUnLock();
+        }
+    }
+
+    class LeafDeleteRes {
+        boolean deleted;
+        long siblingUid;
+    }
+
+    /**
+     * leafDelete 在当前叶子节点中删除 (key, uid) 这一项，后面的项前移一格，节点不做合并。
+     * 没有找到时，如果节点中的 key 都不大于 key，还同时返回兄弟节点的 UID，相同的 key 可能延续到兄弟节点中。
+     * @param key
+     * @param uid
+     * @return
+     */
+    public LeafDeleteRes leafDelete(long key, long uid) {
+        LeafDeleteRes res = new LeafDeleteRes();
+        dataItem.before();
+        try {
+            int noKeys = getRawNoKeys(raw);
+            for(int kth = 0; kth < noKeys; kth ++) {
+                long ik = getRawKthKey(raw, kth);
+                if(ik > key) {
+                    return res;
+                }
+                if(ik == key && getRawKthSon(raw, kth) == uid) {
+                    unshiftRawKth(raw, kth);
+                    setRawNoKeys(raw, noKeys-1);
+                    res.deleted = true;
+                    return res;
+                }
+            }
+            res.siblingUid = getRawSibling(raw);
+            return res;
+        } finally {
+            if(res.deleted) {
+                dataItem.after(TransactionManagerImpl.SUPER_XID);
+            } else {
+                dataItem.unBefore();
+            }
+        }
+    }
+
     class InsertAndSplitRes {
         long siblingUid, newSon, newKey;
     }
 
-    public InsertAndSplitRes insertAndSplit(long uid, long key) throws Exception {
+    /**
+     * @param bound 父节点中这个节点对应的 key，即这个节点中 key 的上界，只对叶子节点有意义
+     */
+    public InsertAndSplitRes insertAndSplit(long uid, long key, long bound) throws Exception {
         boolean success = false;
         Exception err = null;
         InsertAndSplitRes res = new InsertAndSplitRes();
 
         dataItem.before();
         try {
-            success = insert(uid, key);
+            success = insert(uid, key, bound);
             if(!success) {
                 res.siblingUid = getRawSibling(raw);
                 return res;
@@ -262,7 +365,7 @@ public class Node {
         }
     }
 
-    private boolean insert(long uid, long key) {
+    private boolean insert(long uid, long key, long bound) throws Exception {
         int noKeys = getRawNoKeys(raw);
         int kth = 0;
         while(kth < noKeys) {
@@ -273,7 +376,7 @@ public class Node {
                 break;
             }
         }
-        if(kth == noKeys && getRawSibling(raw) != 0) return false;
+        if(kth == noKeys && getRawSibling(raw) != 0 && (!getRawIfLeaf(raw) || belongsToSibling(key, bound))) return false;
 
         if(getRawIfLeaf(raw)) {
             shiftRawKth(raw, kth);
@@ -291,8 +394,30 @@ public class Node {
         return true;
     }
 
+    /**
+     * key 比叶子中所有的 key 都大时，判断它是否应该插入到兄弟节点中。
+     *
+     * 叶子中的项被删掉之后，节点中最大的 key 不再是它的上界，只看节点本身会把新的项都推到右边，
+     * 删空的叶子再也用不上，右边的叶子却不停地分裂。所以用父节点给出的上界 bound 来判断；
+     * 从读父节点到现在，这个叶子可能刚被分裂过，上界变小了，所以还要看一下兄弟节点中最小的 key。
+     * 总是先锁左边的节点再锁右边的，不会死锁。
+     */
+    private boolean belongsToSibling(long key, long bound) throws Exception {
+        if(key >= bound) {
+            return true;
+        }
+        Node sibling = loadNode(tree, getRawSibling(raw));
+        sibling.dataItem.rLock();
+        try {
+            return getRawNoKeys(sibling.raw) > 0 && key >= getRawKthKey(sibling.raw, 0);
+        } finally {
+            sibling.dataItem.rUnLock();
+            sibling.release();
+        }
+    }
+
     private boolean needSplit() {
-        return BALANCE_NUMBER*2 == getRawNoKeys(raw);
+        return getRawBalance(raw)*2 == getRawNoKeys(raw);
     }
 
     class SplitRes {
@@ -300,13 +425,15 @@ public class Node {
     }
 
     private SplitRes split() throws Exception {
-        SubArray nodeRaw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
+        int balance = getRawBalance(raw);
+        int size = nodeSize(balance);
+        SubArray nodeRaw = new SubArray(new byte[size], 0, size);
         setRawIsLeaf(nodeRaw, getRawIfLeaf(raw));
-        setRawNoKeys(nodeRaw, BALANCE_NUMBER);
+        setRawNoKeys(nodeRaw, balance);
         setRawSibling(nodeRaw, getRawSibling(raw));
-        copyRawFromKth(raw, nodeRaw, BALANCE_NUMBER);
+        copyRawFromKth(raw, nodeRaw, balance);
         long son = tree.dm.insert(TransactionManagerImpl.SUPER_XID, nodeRaw.raw);
-        setRawNoKeys(raw, BALANCE_NUMBER);
+        setRawNoKeys(raw, balance);
         setRawSibling(raw, son);
 
         SplitRes res = new SplitRes();
@@ -407,9 +407,17 @@ public class Parser {
         return new Commit();
     }
 
+    /**
+     * begin [async] [isolation level (read committed | repeatable read)]
+     * async 表示事务异步提交：commit 不等待日志落盘就返回，崩溃时可能丢失最近提交的事务。
+     */
     private static Begin parseBegin(Tokenizer tokenizer) throws Exception {
-        String isolation = tokenizer.peek();
         Begin begin = new Begin();
+        if("async".equals(tokenizer.peek())) {
+            begin.isAsync = true;
+            tokenizer.pop();
+        }
+        String isolation = tokenizer.peek();
         if("".equals(isolation)) {
             return begin;
         }
@@ -2,4 +2,5 @@ package com.hakusai.db.backend.parser.statement;
 
 public class Begin {
     public boolean isRepeatableRead;
+    public boolean isAsync;
 }
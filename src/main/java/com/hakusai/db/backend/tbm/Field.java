@@ -118,10 +118,21 @@ public class Field {
         bt.insert(uKey, uid);
     }
 
+    // 删除索引项，返回是否找到
+    public boolean delete(Object key, long uid) throws Exception {
+        long uKey = value2Uid(key);
+        return bt.delete(uKey, uid);
+    }
+
     public List<Long> search(long left, long right) throws Exception {
         return bt.searchRange(left, right);
     }
 
+    // 从 left 开始分批遍历索引，见 BPlusTree.scan
+    public BPlusTree.ScanRes scan(long left, int max) throws Exception {
+        return bt.scan(left, max);
+    }
+
     public Object string2Value(String str) {
         switch(fieldType) {
             case "int32":
@@ -8,6 +8,7 @@ import java.util.Map;
 
 import com.google.common.primitives.Bytes;
 
+import com.hakusai.db.backend.im.BPlusTree;
 import com.hakusai.db.backend.tm.TransactionManagerImpl;
 import com.hakusai.db.backend.utils.Panic;
 import com.hakusai.db.backend.utils.Parser;
@@ -18,6 +19,7 @@ import com.hakusai.db.backend.parser.statement.Delete;
 import com.hakusai.db.backend.parser.statement.Insert;
 import com.hakusai.db.backend.parser.statement.Update;
 import com.hakusai.db.backend.utils.ParseStringRes;
+import com.hakusai.db.backend.vm.VersionManager;
 import com.hakusai.db.common.Error;
 
 /**
@@ -130,6 +132,9 @@ public class Table {
             throw Error.FieldNotFoundException;
         }
         Object value = fd.string2Value(update.value);
+        if(!fd.isIndexed()) {
+            return updateInChain(xid, uids, fd, value);
+        }
         int count = 0;
         for (Long uid : uids) {
             byte[] raw = ((TableManagerImpl)tbm).vm.read(xid, uid);
@@ -153,6 +158,65 @@ public class Table {
         return count;
     }
 
+    /**
+     * 更新的字段没有索引时，所有索引字段都不变，新版本直接挂在原来的版本链上（见 Entry），
+     * 索引仍然指向链头，不需要任何索引维护。
+     */
+    private int updateInChain(long xid, List<Long> uids, Field fd, Object value) throws Exception {
+        int count = 0;
+        for (Long uid : uids) {
+            byte[] raw = ((TableManagerImpl)tbm).vm.read(xid, uid);
+            if(raw == null) continue;
+
+            Map<String, Object> entry = parseEntry(raw);
+            entry.put(fd.fieldName, value);
+            if(((TableManagerImpl)tbm).vm.update(xid, uid, entry2Raw(entry)) != 0) {
+                count ++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 以下两个方法供 Vacuum 使用。
+     * 表中的每一条记录都在每个索引中有一项指向它的链头，所以从第一个有索引的字段就能找到所有的版本链。
+     * chainHeads 从 key 为 fromKey 处开始取出一批链头，大约 max 条，表很大时也不必一次读出所有的链头；
+     * 第一批从 Long.MIN_VALUE 开始，负数的 key 也要找到。表没有索引时返回 null。
+     */
+    BPlusTree.ScanRes chainHeads(long fromKey, int max) throws Exception {
+        for (Field field : fields) {
+            if(field.isIndexed()) {
+                return field.scan(fromKey, max);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 清理 uid 开始的版本链，返回整条链是否被回收。
+     * 整条链都不可见时，用链头的数据算出每个索引中的 key，删掉指向链头的项之后才回收整条链。
+     * 有的索引项没有找到时留着这条链：泄漏一条链，总比让索引指向被释放、又被重新使用的空间好。
+     */
+    boolean vacuum(long uid) throws Exception {
+        VersionManager vm = ((TableManagerImpl)tbm).vm;
+        byte[] raw = vm.prune(uid);
+        if(raw == null) {
+            return false;
+        }
+        Map<String, Object> entry = parseEntry(raw);
+        boolean removed = true;
+        for (Field field : fields) {
+            if(field.isIndexed()) {
+                removed &= field.delete(entry.get(field.fieldName), uid);
+            }
+        }
+        if(!removed) {
+            return false;
+        }
+        vm.retire(uid);
+        return true;
+    }
+
     public String read(long xid, Select read) throws Exception {
         List<Long> uids = parseWhere(read.where);
         StringBuilder sb = new StringBuilder();
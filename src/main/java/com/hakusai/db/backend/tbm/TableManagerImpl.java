@@ -55,11 +55,21 @@ public class TableManagerImpl implements TableManager {
         booter.update(raw);
     }
 
+    // 目前所有的表，供 Vacuum 遍历
+    List<Table> tables() {
+        lock.lock();
+        try {
+            return new ArrayList<>(tableCache.values());
+        } finally {
+            lock.unlock();
+        }
+    }
+
     @Override
     public BeginRes begin(Begin begin) {
         BeginRes res = new BeginRes();
         int level = begin.isRepeatableRead?1:0;
-        res.xid = vm.begin(level);
+        res.xid = vm.begin(level, begin.isAsync);
         res.result = "begin".getBytes();
         return res;
     }
@@ -101,6 +111,8 @@ public class TableManagerImpl implements TableManager {
                 throw Error.DuplicatedTableException;
             }
             Table table = Table.createTable(this, firstTableUid(), xid, create);
+            // 异步事务的日志不等待落盘，Booter 指向新表之前要保证新表的日志已经落盘
+            dm.flushLog();
             updateFirstTableUid(table.uid);
             tableCache.put(create.tableName, table);
             if(!xidTableCache.containsKey(xid)) {
@@ -0,0 +1,178 @@
+package com.hakusai.db.backend.tbm;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.hakusai.db.backend.im.BPlusTree;
+import com.hakusai.db.backend.vm.VersionManager;
+
+/**
+ * 回收死版本的后台线程。
+ *
+ * 删除只是设置 XMAX，更新会留下旧版本，回滚的事务插入的版本也一直留着，这些版本对所有事务都不可见之后，
+ * 仍然占着页面空间，索引也仍然指向它们，表越用越慢。Vacuum 每隔 interval 毫秒做一轮清理：
+ * 分批遍历每张表的版本链（见 Table.chainHeads()），摘下链中间的死版本；整条链都死了时删掉索引中指向它的项，回收整条链。
+ * 什么样的版本算死版本、回收的版本什么时候才能释放，见 VersionManagerImpl。
+ *
+ * 清理和正常的读写抢同样的锁和缓存，所以每批检查大约 batchSize 条链，之后释放最多 batchSize 条可以释放的版本，再停 delay 毫秒。
+ * 遍历完之后剩下的版本也这样按批释放。
+ */
+public class Vacuum {
+
+    // 两轮清理之间的间隔（毫秒）
+    public static final long DEFAULT_INTERVAL = 10 * 1000;
+    // 每一批检查的版本链数
+    public static final int DEFAULT_BATCH_SIZE = 256;
+    // 每一批之后停顿的时间（毫秒）
+    public static final long DEFAULT_DELAY = 10;
+
+    private TableManagerImpl tbm;
+    private VersionManager vm;
+
+    private volatile long interval;
+    private volatile int batchSize;
+    private volatile long delay;
+
+    private Lock runLock;           // 同一时刻只有一轮清理在进行
+    private Lock lock;              // 保护 thread 和 closed
+    private Condition wakeup;
+    private Thread thread;
+    private boolean closed;
+
+    public Vacuum(TableManager tbm) {
+        this.tbm = (TableManagerImpl)tbm;
+        this.vm = this.tbm.vm;
+        this.interval = DEFAULT_INTERVAL;
+        this.batchSize = DEFAULT_BATCH_SIZE;
+        this.delay = DEFAULT_DELAY;
+        this.runLock = new ReentrantLock();
+        this.lock = new ReentrantLock();
+        this.wakeup = lock.newCondition();
+    }
+
+    public void setInterval(long interval) {
+        this.interval = interval;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public void setDelay(long delay) {
+        this.delay = delay;
+    }
+
+    public void start() {
+        lock.lock();
+        try {
+            if(thread != null || closed) {
+                return;
+            }
+            thread = new Thread(this::loop, "vacuum");
+            thread.setDaemon(true);
+            thread.start();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void close() {
+        lock.lock();
+        Thread t = thread;
+        try {
+            closed = true;
+            wakeup.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if(t != null) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void loop() {
+        while(true) {
+            lock.lock();
+            try {
+                if(!closed) {
+                    wakeup.await(interval, TimeUnit.MILLISECONDS);
+                }
+                if(closed) {
+                    return;
+                }
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+            try {
+                runOnce();
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                // 这一轮清理失败不影响正常的读写，下一轮重新开始
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * 做一轮清理，返回回收的整条版本链的条数。
+     */
+    public int runOnce() throws Exception {
+        runLock.lock();
+        try {
+            int reclaimed = 0;
+            for(Table tb : tbm.tables()) {
+                long fromKey = Long.MIN_VALUE;
+                while(true) {
+                    BPlusTree.ScanRes batch = tb.chainHeads(fromKey, batchSize);
+                    if(batch == null) {
+                        break;
+                    }
+                    for(long uid : batch.uids) {
+                        if(tb.vacuum(uid)) {
+                            reclaimed ++;
+                        }
+                    }
+                    vm.freeRetired(batchSize);
+                    if(!pause()) {
+                        return reclaimed;
+                    }
+                    if(batch.done) {
+                        break;
+                    }
+                    fromKey = batch.nextKey;
+                }
+            }
+            // 回收的版本要等当时已经开始的事务都结束才能释放，现在释放不了的留给下一轮
+            while(vm.freeRetired(batchSize) == batchSize) {
+                if(!pause()) {
+                    break;
+                }
+            }
+            return reclaimed;
+        } finally {
+            runLock.unlock();
+        }
+    }
+
+    // 停顿 delay 毫秒，已经关闭时返回 false，结束这一轮
+    private boolean pause() throws InterruptedException {
+        lock.lock();
+        try {
+            if(!closed && delay > 0) {
+                wakeup.await(delay, TimeUnit.MILLISECONDS);
+            }
+            return !closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
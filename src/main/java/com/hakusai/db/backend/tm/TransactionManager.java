@@ -29,6 +29,22 @@ public interface TransactionManager {
 
   boolean isAborted(long xid);        // 查询一个事务的状态是否是已取消
 
+  long beginAsync();                  // 开启一个异步提交的事务，提交时不等待落盘
+
+  boolean isAsync(long xid);          // 查询一个事务是否是还没有结束的异步事务
+
+  boolean hasAsync();                 // 是否有还没有结束的异步事务
+
+  boolean isCommitPending(long xid);  // 查询一个事务是否已经异步提交、但状态还没有落盘
+
+  void setLogFlusher(Runnable logFlusher);    // 设置写入事务状态之前刷日志的回调
+
+  // 最早的一个已经异步提交、但状态还没有写入 XID 文件的事务，提交距今多少毫秒，没有时为 0。
+  // 量的是 XID 文件落后多久，不是还没有落盘的日志有多少字节：异步提交的日志会随下一次刷日志落盘，状态要等 flushCommits()
+  long getAsyncCommitLag();
+
+  int getPendingCommits();            // 已经异步提交、但状态还没有写入 XID 文件的事务个数
+
   void close();                       // 关闭TM
 
 
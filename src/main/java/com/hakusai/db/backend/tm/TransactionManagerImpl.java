@@ -4,9 +4,13 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
+import com.hakusai.db.backend.common.LongHashMap;
 import com.hakusai.db.backend.utils.Panic;
 import com.hakusai.db.backend.utils.Parser;
 import com.hakusai.db.common.Error;
@@ -24,11 +28,19 @@ public class TransactionManagerImpl implements TransactionManager {
    * XID 文件给每个事务分配了一个字节的空间，用来保存其状态。
    * 同时，在 XID 文件的头部，还保存了一个 8 字节的数字，记录了这个 XID 文件管理的事务的个数。
    * 于是，事务 xid 在文件中的状态就存储在 (xid-1)+8 字节处，xid-1 是因为 xid 0（Super XID） 的状态不需要记录。
+   *
+   * XID 按块预分配：文件头记录的是已经分配出去的 XID 的上限 xidLimit，文件也总是恰好覆盖到 xidLimit。
+   * begin 只在内存中递增 xidCounter，用完一块时才把文件扩展 XID_BLOCK 个字节（全为 0，即 active），
+   * fsync 后再改写文件头、fsync，每一块只需要两次 fsync，而不是每个事务两次。
+   * 打开时 xidCounter 从 xidLimit 开始，上次没用完的 XID 直接跳过，它们在文件中一直是 active，但不会出现在任何数据上。
+   * 崩溃在扩展文件之后、改写文件头之前时，文件会比文件头记录的长，多出来的部分还没有分配出去，打开时截掉即可。
    */
   // XID文件头长度
   static final int LEN_XID_HEADER_LENGTH = 8;
   // 每个事务的占用长度
   private static final int XID_FIELD_SIZE = 1;
+  // 每次预分配的 XID 个数
+  static final int XID_BLOCK = 1024;
 
   // 事务的三种状态
   private static final byte FIELD_TRAN_ACTIVE = 0;
@@ -44,16 +56,63 @@ public class TransactionManagerImpl implements TransactionManager {
 
   static final String XID_SUFFIX = ".xid";
 
+  /**
+   * 异步提交：
+   * 以 beginAsync() 开始的事务，修改数据时的日志只追加到日志的缓冲区，不等待落盘（见 DataManagerImpl）；
+   * 提交时也不写 XID 文件，只是记入内存中的 pending，查询状态时先查 pending，所以提交立刻对其他事务可见。
+   * 后台线程每隔 asyncInterval 毫秒，先把日志刷到末尾，再把这期间异步提交的事务状态写入 XID 文件，一起 fsync 一次。
+   * 先刷日志、再写状态，保证 XID 文件中已提交的事务，它的日志一定都已落盘。
+   * 崩溃时最多丢失最近 asyncInterval 内的提交：这些事务在 XID 文件中仍是 active，恢复时会被撤销。
+   */
+  public static final long DEFAULT_ASYNC_INTERVAL = 10;
+
   private RandomAccessFile file;
   private FileChannel fc;
-  private long xidCounter;
+  private long xidCounter;                // 最后一个分配出去的 XID
+  private long xidLimit;                  // 文件头中记录的预分配上限
   private Lock counterLock;
+  private XidStatusTable statuses;        // XID 文件中所有事务状态的内存副本，见 XidStatusTable
+
+  private Lock asyncLock;                 // 保护以下三个集合和 asyncFlusher、closed
+  private Condition asyncWakeup;
+  private LongHashMap<Boolean> asyncXids; // 以 beginAsync() 开始、还没有结束的事务
+  private LongHashMap<Long> pending;      // 已经异步提交、状态还没有写入 XID 文件的事务 -> 提交的时间
+  private ArrayDeque<Long> pendingOrder;  // pending 中的事务，按提交的先后排列
+  private volatile int asyncCount;        // asyncXids 和 pending 的大小，为 0 时查询状态不需要加锁
+  private volatile int pendingCount;
+  private Thread asyncFlusher;
+  private boolean closed;
+  private Lock flushLock;                 // 同一时刻只有一个线程在写入 pending 的状态
+  private volatile Runnable logFlusher;
+  private volatile long asyncInterval;
+
+  /**
+   * 组提交：并发提交的事务各自写下状态之后，只需要一个线程 fsync，就能让这一批状态都落盘。
+   * 每写一个状态 writeSeq 加一；没有线程在 fsync 时，等待的线程成为 leader，
+   * 记下当前的 writeSeq 后 fsync，完成后 syncedSeq 推进到这个值，唤醒所有等待的线程。
+   */
+  private Lock syncLock;
+  private Condition synced;
+  private long writeSeq;
+  private long syncedSeq;
+  private boolean syncing;
 
   TransactionManagerImpl(RandomAccessFile raf, FileChannel fc) {
     this.file = raf;
     this.fc = fc;
     counterLock = new ReentrantLock();
+    asyncLock = new ReentrantLock();
+    asyncWakeup = asyncLock.newCondition();
+    asyncXids = new LongHashMap<>();
+    pending = new LongHashMap<>();
+    pendingOrder = new ArrayDeque<>();
+    flushLock = new ReentrantLock();
+    syncLock = new ReentrantLock();
+    synced = syncLock.newCondition();
+    asyncInterval = DEFAULT_ASYNC_INTERVAL;
+    statuses = new XidStatusTable();
     checkXIDCounter();
+    loadStatuses();
   }
 
   /**
@@ -80,11 +139,41 @@ public class TransactionManagerImpl implements TransactionManager {
     } catch (IOException e) {
       Panic.panic(e);
     }
-    this.xidCounter = Parser.parseLong(buf.array());
-    long end = getXidPosition(this.xidCounter + 1);
-    if (end != fileLen) {
+    this.xidLimit = Parser.parseLong(buf.array());
+    this.xidCounter = xidLimit;
+    long end = getXidPosition(this.xidLimit + 1);
+    if (end > fileLen) {
       Panic.panic(Error.BadXIDFileException);
     }
+    if (end < fileLen) {
+      // 扩展了文件、还没来得及改写文件头
+      try {
+        fc.truncate(end);
+      } catch (IOException e) {
+        Panic.panic(e);
+      }
+    }
+  }
+
+  // 把 XID 文件中所有事务的状态读入 statuses，每次读一块
+  private void loadStatuses() {
+    ByteBuffer buf = ByteBuffer.allocate(XidStatusTable.CHUNK_XIDS);
+    for (long xid = 1; xid <= xidCounter; ) {
+      buf.clear();
+      buf.limit((int) Math.min(buf.capacity(), xidCounter - xid + 1));
+      try {
+        while (buf.hasRemaining()) {
+          if (fc.read(buf, getXidPosition(xid) + buf.position()) < 0) {
+            Panic.panic(Error.BadXIDFileException);
+          }
+        }
+      } catch (IOException e) {
+        Panic.panic(e);
+      }
+      for (int i = 0; i < buf.limit(); i++, xid++) {
+        statuses.set(xid, buf.get(i));
+      }
+    }
   }
 
   // 根据事务xid取得其在xid文件中对应的位置
@@ -92,87 +181,304 @@ public class TransactionManagerImpl implements TransactionManager {
     return LEN_XID_HEADER_LENGTH + (xid - 1) * XID_FIELD_SIZE;
   }
 
-  // 更新xid事务的状态为status
+  // 更新xid事务的状态为status，返回时状态已经落盘
   private void updateXID(long xid, byte status) {
+    writeXID(xid, status);
+    sync();
+  }
+
+  /**
+   * 等待目前已经写下的所有状态落盘，并发的调用者共用一次 fsync。
+   */
+  private void sync() {
+    syncLock.lock();
+    try {
+      long seq = writeSeq;
+      while (syncedSeq < seq) {
+        if (syncing) {
+          synced.awaitUninterruptibly();
+          continue;
+        }
+        syncing = true;
+        long target = writeSeq;
+        syncLock.unlock();
+        try {
+          /*×
+          这里的所有文件操作，在执行后都需要立刻刷入文件中，防止在崩溃后文件丢失数据，f
+          ileChannel 的 force() 方法，强制同步缓存内容到文件中，类似于 BIO 中的 flush() 方法。
+          force 方法的参数是一个布尔，表示是否同步文件的元数据
+           */
+          fc.force(false);
+        } catch (IOException e) {
+          Panic.panic(e);
+        } finally {
+          syncLock.lock();
+        }
+        syncedSeq = target;
+        syncing = false;
+        synced.signalAll();
+      }
+    } finally {
+      syncLock.unlock();
+    }
+  }
+
+  /**
+   * 只写入xid事务的状态，不 fsync，然后更新内存中的状态。
+   * 后台线程会和其他线程同时写 XID 文件，所以这里都按位置读写，不移动 fc 的 position。
+   */
+  private void writeXID(long xid, byte status) {
     long offset = getXidPosition(xid);
     byte[] tmp = new byte[XID_FIELD_SIZE];
     tmp[0] = status;
     ByteBuffer buf = ByteBuffer.wrap(tmp);
     try {
-      fc.position(offset);
-      fc.write(buf);
-    } catch (IOException e) {
-      Panic.panic(e);
-    }
-    try {
-      /*×
-      这里的所有文件操作，在执行后都需要立刻刷入文件中，防止在崩溃后文件丢失数据，f
-      ileChannel 的 force() 方法，强制同步缓存内容到文件中，类似于 BIO 中的 flush() 方法。
-      force 方法的参数是一个布尔，表示是否同步文件的元数据
-       */
-      fc.force(false);
+      fc.write(buf, offset);
     } catch (IOException e) {
       Panic.panic(e);
     }
+    statuses.set(xid, status);
+    syncLock.lock();
+    writeSeq++;
+    syncLock.unlock();
   }
 
-  // 将XID加一，并更新XID Header
-  private void incrXIDCounter() {
-    xidCounter++;
-    ByteBuffer buf = ByteBuffer.wrap(Parser.long2Byte(xidCounter));
-    try {
-      fc.position(0);
-      fc.write(buf);
-    } catch (IOException e) {
-      Panic.panic(e);
-    }
+  // 预分配下一块 XID：先把文件扩展到新的上限并落盘，再更新XID Header
+  private void allocXIDBlock() {
+    long limit = xidLimit + XID_BLOCK;
+    ByteBuffer zeros = ByteBuffer.allocate(XID_BLOCK * XID_FIELD_SIZE);
+    ByteBuffer header = ByteBuffer.wrap(Parser.long2Byte(limit));
     try {
+      long offset = getXidPosition(xidLimit + 1);
+      while (zeros.hasRemaining()) {
+        fc.write(zeros, offset + zeros.position());
+      }
+      fc.force(false);
+      while (header.hasRemaining()) {
+        fc.write(header, header.position());
+      }
       fc.force(false);
     } catch (IOException e) {
       Panic.panic(e);
     }
+    statuses.reserve(limit);
+    xidLimit = limit;
   }
 
-  // 开始一个事务，并返回XID
+  // 开始一个事务，并返回XID。预分配的 XID 在文件中已经是 active，不需要写入状态
   public long begin() {
     counterLock.lock();
     try {
-      long xid = xidCounter + 1;
-      updateXID(xid, FIELD_TRAN_ACTIVE);
-      incrXIDCounter();
-      return xid;
+      if (xidCounter == xidLimit) {
+        allocXIDBlock();
+      }
+      return ++xidCounter;
     } finally {
       counterLock.unlock();
     }
   }
 
-  // 提交XID事务
+  // 开始一个异步提交的事务
+  public long beginAsync() {
+    long xid = begin();
+    asyncLock.lock();
+    try {
+      asyncXids.put(xid, Boolean.TRUE);
+      asyncCount ++;
+    } finally {
+      asyncLock.unlock();
+    }
+    return xid;
+  }
+
+  /**
+   * 提交XID事务。同步提交的事务写状态之前，也要先把日志刷到末尾：
+   * 有异步事务时，索引等 SUPER_XID 的日志也不等待落盘（见 DataManagerImpl），其中可能有这个事务插入的索引项。
+   * 还有没写入的异步提交时，先把它们写入：这个事务可能读到或者覆盖了它们的修改，
+   * 如果它的状态先落盘，崩溃后它们被撤销，这个事务却仍是已提交的。
+   */
   public void commit(long xid) {
+    if(endAsync(xid, true)) {
+      return;
+    }
+    flushLog();
+    if(pendingCount > 0) {
+      flushCommits();
+    }
     updateXID(xid, FIELD_TRAN_COMMITTED);
   }
 
-  // 回滚XID事务
+  /**
+   * 回滚XID事务。异步事务的回滚也同步写入：检查点会删除已经结束的事务的日志，
+   * 如果回滚的状态丢失，恢复时这个事务会被当作 active 撤销，却找不到它的日志了。
+   */
   public void abort(long xid) {
+    endAsync(xid, false);
     updateXID(xid, FIELD_TRAN_ABORTED);
   }
 
-  // 检测XID事务是否处于status状态
-  private boolean checkXID(long xid, byte status) {
-    long offset = getXidPosition(xid);
-    ByteBuffer buf = ByteBuffer.wrap(new byte[XID_FIELD_SIZE]);
+  // xid 是异步事务时，将它移出 asyncXids，commit 为 true 时记入 pending，返回 xid 是否是异步事务
+  private boolean endAsync(long xid, boolean commit) {
+    if(asyncCount == 0) {
+      return false;
+    }
+    asyncLock.lock();
     try {
-      fc.position(offset);
-      fc.read(buf);
-    } catch (IOException e) {
-      Panic.panic(e);
+      if(asyncXids.remove(xid) == null) {
+        return false;
+      }
+      asyncCount --;
+      if(commit) {
+        pending.put(xid, System.currentTimeMillis());
+        pendingOrder.add(xid);
+        pendingCount ++;
+        if(asyncFlusher == null) {
+          asyncFlusher = new Thread(this::asyncFlushLoop, "xid-flusher");
+          asyncFlusher.setDaemon(true);
+          asyncFlusher.start();
+        }
+      }
+      return true;
+    } finally {
+      asyncLock.unlock();
+    }
+  }
+
+  public boolean isAsync(long xid) {
+    if(asyncCount == 0) {
+      return false;
+    }
+    asyncLock.lock();
+    try {
+      return asyncXids.containsKey(xid);
+    } finally {
+      asyncLock.unlock();
+    }
+  }
+
+  public boolean hasAsync() {
+    return asyncCount > 0;
+  }
+
+  public boolean isCommitPending(long xid) {
+    if(pendingCount == 0) {
+      return false;
+    }
+    asyncLock.lock();
+    try {
+      return pending.containsKey(xid);
+    } finally {
+      asyncLock.unlock();
+    }
+  }
+
+  // 设置刷日志的回调，由 DM 注册，把日志刷到末尾
+  public void setLogFlusher(Runnable logFlusher) {
+    this.logFlusher = logFlusher;
+  }
+
+  // 设置异步提交的状态最多延迟多久（毫秒）写入 XID 文件
+  public void setAsyncInterval(long interval) {
+    this.asyncInterval = interval;
+  }
+
+  private void flushLog() {
+    Runnable lf = logFlusher;
+    if(lf != null) {
+      lf.run();
+    }
+  }
+
+  private void asyncFlushLoop() {
+    while(true) {
+      asyncLock.lock();
+      try {
+        if(!closed) {
+          asyncWakeup.await(asyncInterval, TimeUnit.MILLISECONDS);
+        }
+        if(closed) {
+          return;
+        }
+      } catch (InterruptedException e) {
+        return;
+      } finally {
+        asyncLock.unlock();
+      }
+      flushCommits();
+    }
+  }
+
+  /**
+   * 把目前 pending 中的事务状态写入 XID 文件：先刷日志，再写状态并 fsync 一次，最后才从 pending 中移除，
+   * 这样任何时刻查询状态，不是在 pending 中找到，就是在 XID 文件中读到。
+   */
+  public void flushCommits() {
+    flushLock.lock();
+    try {
+      long[] xids;
+      asyncLock.lock();
+      try {
+        xids = new long[pendingOrder.size()];
+        int i = 0;
+        for(long xid : pendingOrder) {
+          xids[i ++] = xid;
+        }
+      } finally {
+        asyncLock.unlock();
+      }
+      if(xids.length == 0) {
+        return;
+      }
+
+      flushLog();
+      for(long xid : xids) {
+        writeXID(xid, FIELD_TRAN_COMMITTED);
+      }
+      sync();
+
+      asyncLock.lock();
+      try {
+        for(long xid : xids) {
+          pending.remove(xid);
+          pendingOrder.poll();
+        }
+        pendingCount = pending.size();
+      } finally {
+        asyncLock.unlock();
+      }
+    } finally {
+      flushLock.unlock();
     }
-    return buf.array()[0] == status;
+  }
+
+  // 最早的一个还没有写入 XID 文件的异步提交，距今多少毫秒，没有时返回 0。
+  // 从 commit() 被调用算起，到 flushCommits() 写入它的状态为止，和日志落盘了多少无关
+  public long getAsyncCommitLag() {
+    asyncLock.lock();
+    try {
+      Long xid = pendingOrder.peek();
+      return xid == null ? 0 : System.currentTimeMillis() - pending.get(xid);
+    } finally {
+      asyncLock.unlock();
+    }
+  }
+
+  public int getPendingCommits() {
+    return pendingCount;
+  }
+
+  // 检测XID事务是否处于status状态，只查内存中的副本，不读文件
+  private boolean checkXID(long xid, byte status) {
+    return statuses.get(xid) == status;
   }
 
   public boolean isActive(long xid) {
     if (xid == SUPER_XID) {
       return false;
     }
+    if (isCommitPending(xid)) {
+      return false;
+    }
     return checkXID(xid, FIELD_TRAN_ACTIVE);
   }
 
@@ -180,6 +486,9 @@ public class TransactionManagerImpl implements TransactionManager {
     if (xid == SUPER_XID) {
       return true;
     }
+    if (isCommitPending(xid)) {
+      return true;
+    }
     return checkXID(xid, FIELD_TRAN_COMMITTED);
   }
 
@@ -187,10 +496,29 @@ public class TransactionManagerImpl implements TransactionManager {
     if (xid == SUPER_XID) {
       return false;
     }
+    if (isCommitPending(xid)) {
+      return false;
+    }
     return checkXID(xid, FIELD_TRAN_ABORTED);
   }
 
   public void close() {
+    asyncLock.lock();
+    Thread t = asyncFlusher;
+    try {
+      closed = true;
+      asyncWakeup.signal();
+    } finally {
+      asyncLock.unlock();
+    }
+    if(t != null) {
+      try {
+        t.join();
+      } catch (InterruptedException e) {
+        Panic.panic(e);
+      }
+    }
+    flushCommits();
     try {
       fc.close();
       file.close();
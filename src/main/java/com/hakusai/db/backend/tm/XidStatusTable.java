@@ -0,0 +1,90 @@
+package com.hakusai.db.backend.tm;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * XID 文件中事务状态在内存中的副本，每个事务占 2 bit，一个 long 保存 32 个事务。
+ *
+ * 可见性判断每读一行都要查好几次事务状态，每次都读一个字节的 XID 文件，一行就是好几次系统调用。
+ * 打开 XID 文件时把所有状态读进来，之后状态有变化时先写文件、再改这里，查询只是一次数组访问。
+ *
+ * 状态数组按 CHUNK_XIDS 个事务分块，块的数组只在打开时读入状态、以及预分配的 XID 块跨入新的块时整体替换
+ * （见 TransactionManagerImpl.allocXIDBlock()），查询不需要加锁。
+ * 同一个 long 中的其他事务可能被并发修改，所以用 CAS 修改其中的 2 bit。
+ * 超出已分配范围的事务视为 active，和读到 XID 文件末尾之后一样。
+ */
+class XidStatusTable {
+
+  private static final int CHUNK_SHIFT = 16;
+  // 每块管理的事务个数
+  static final int CHUNK_XIDS = 1 << CHUNK_SHIFT;
+  private static final int XIDS_PER_WORD = 32;
+  private static final long STATUS_MASK = 3;
+
+  private volatile AtomicLongArray[] chunks;
+  private Lock growLock;
+
+  XidStatusTable() {
+    chunks = new AtomicLongArray[0];
+    growLock = new ReentrantLock();
+  }
+
+  byte get(long xid) {
+    AtomicLongArray[] cs = chunks;
+    int c = (int) (xid >>> CHUNK_SHIFT);
+    if (c >= cs.length) {
+      return 0;
+    }
+    int i = (int) (xid & (CHUNK_XIDS - 1));
+    long word = cs[c].get(i / XIDS_PER_WORD);
+    return (byte) ((word >>> shift(i)) & STATUS_MASK);
+  }
+
+  void set(long xid, byte status) {
+    AtomicLongArray chunk = chunk((int) (xid >>> CHUNK_SHIFT));
+    int i = (int) (xid & (CHUNK_XIDS - 1));
+    int w = i / XIDS_PER_WORD;
+    int shift = shift(i);
+    while (true) {
+      long old = chunk.get(w);
+      long word = (old & ~(STATUS_MASK << shift)) | ((status & STATUS_MASK) << shift);
+      if (chunk.compareAndSet(w, old, word)) {
+        return;
+      }
+    }
+  }
+
+  // 为 xid 之前的事务准备好块，之后写这些事务的状态不需要再扩展
+  void reserve(long xid) {
+    chunk((int) (xid >>> CHUNK_SHIFT));
+  }
+
+  private static int shift(int i) {
+    return (i % XIDS_PER_WORD) * 2;
+  }
+
+  private AtomicLongArray chunk(int c) {
+    AtomicLongArray[] cs = chunks;
+    if (c < cs.length) {
+      return cs[c];
+    }
+    growLock.lock();
+    try {
+      cs = chunks;
+      if (c >= cs.length) {
+        int n = cs.length;
+        cs = Arrays.copyOf(cs, c + 1);
+        for (int i = n; i <= c; i++) {
+          cs[i] = new AtomicLongArray(CHUNK_XIDS / XIDS_PER_WORD);
+        }
+        chunks = cs;
+      }
+      return cs[c];
+    } finally {
+      growLock.unlock();
+    }
+  }
+}
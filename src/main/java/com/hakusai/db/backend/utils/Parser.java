@@ -16,6 +16,11 @@ public class Parser {
         return buffer.getShort();
     }
 
+    // 从 buf 的 off 处解析，不需要先把这几个字节拷贝出来
+    public static short parseShort(byte[] buf, int off) {
+        return (short)(((buf[off] & 0xFF) << 8) | (buf[off+1] & 0xFF));
+    }
+
     public static byte[] int2Byte(int value) {
         return ByteBuffer.allocate(Integer.SIZE / Byte.SIZE).putInt(value).array();
     }
@@ -25,11 +30,19 @@ public class Parser {
         return buffer.getInt();
     }
 
+    public static int parseInt(byte[] buf, int off) {
+        return ((buf[off] & 0xFF) << 24) | ((buf[off+1] & 0xFF) << 16) | ((buf[off+2] & 0xFF) << 8) | (buf[off+3] & 0xFF);
+    }
+
     public static long parseLong(byte[] buf) {
         ByteBuffer buffer = ByteBuffer.wrap(buf, 0, 8);
         return buffer.getLong();
     }
 
+    public static long parseLong(byte[] buf, int off) {
+        return ((long)parseInt(buf, off) << 32) | (parseInt(buf, off+4) & 0xFFFFFFFFL);
+    }
+
     public static byte[] long2Byte(long value) {
         return ByteBuffer.allocate(Long.SIZE / Byte.SIZE).putLong(value).array();
     }
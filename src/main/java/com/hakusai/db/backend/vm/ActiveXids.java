@@ -0,0 +1,57 @@
+package com.hakusai.db.backend.vm;
+
+import java.util.Arrays;
+
+/**
+ * 所有活跃事务的 XID，升序保存在一个数组中，用于建立快照，由 VersionManagerImpl 的 lock 保护。
+ *
+ * XID 是在 VersionManagerImpl 的 lock 内分配的，所以新事务总是追加在数组末尾；
+ * 事务结束时二分找到位置，把后面的部分前移一格。
+ *
+ * 建立快照不拷贝数组，快照直接引用 xids 和当时的 size。之后追加的事务写在快照的 size 之后，不影响快照；
+ * 只有删除会改动快照能看到的部分，所以数组被快照引用过时，删除之前先拷贝一份新的（写时复制）。
+ * 这样两次事务结束之间的所有快照共用同一个数组，每次事务结束最多拷贝一次。
+ */
+class ActiveXids {
+
+    private long[] xids;
+    private int size;
+    private boolean shared;     // xids 是否被快照引用着
+
+    ActiveXids() {
+        xids = new long[16];
+    }
+
+    void add(long xid) {
+        if(size == xids.length) {
+            xids = Arrays.copyOf(xids, size * 2);
+            shared = false;
+        }
+        xids[size ++] = xid;
+    }
+
+    void remove(long xid) {
+        int i = Arrays.binarySearch(xids, 0, size, xid);
+        if(i < 0) {
+            return;
+        }
+        if(shared) {
+            xids = Arrays.copyOf(xids, xids.length);
+            shared = false;
+        }
+        System.arraycopy(xids, i + 1, xids, i, size - i - 1);
+        size --;
+    }
+
+    // 最老的活跃事务，没有活跃事务时返回 Long.MAX_VALUE
+    long oldest() {
+        return size == 0 ? Long.MAX_VALUE : xids[0];
+    }
+
+    // 为 XID 为 xid 的新事务建立快照，xid 比所有活跃事务都大
+    Snapshot snapshot(long xid) {
+        shared = true;
+        long xmin = size == 0 ? xid : xids[0];
+        return new Snapshot(xmin, xid, xids, size);
+    }
+}
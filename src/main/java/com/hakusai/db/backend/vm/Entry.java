@@ -5,30 +5,40 @@ import java.util.Arrays;
 import com.google.common.primitives.Bytes;
 
 import com.hakusai.db.backend.dm.dataItem.DataItem;
+import com.hakusai.db.backend.tm.TransactionManagerImpl;
 import com.hakusai.db.backend.utils.Parser;
 import com.hakusai.db.backend.common.SubArray;
 
 /**
  * VM向上层抽象出entry
  * entry结构：
- * [XMIN] [XMAX] [data]
+ * [XMIN] [XMAX] [NEXT] [data]
  * XMIN 是创建该条记录（版本）的事务编号，而 XMAX 则是删除该条记录（版本）的事务编号。DATA 就是这条记录持有的数据。
+ * NEXT 是版本链中下一个版本的 UID，没有时为 0。
  *
  * DM 层向上层提供了数据项（Data Item）的概念，VM 通过管理所有的数据项，向上层提供了记录（Entry）的概念。
  * 上层模块通过 VM 操作数据的最小单位，就是记录。VM 则在其内部，为每个记录，维护了多个版本（Version）。
  * 每当上层模块对某个记录进行修改时，VM 就会为这个记录创建一个新的版本。
  *
- * 对于一条记录来说，MYDB 使用 Entry 类维护了其结构。
- * 虽然理论上，MVCC 实现了多版本，但是在实现中，VM 并没有提供 Update 操作，
- * 对于字段的更新操作由后面的表和字段管理（TBM）实现。所以在 VM 的实现中，一条记录只有一个版本。
+ * 对于一条记录的每一个版本，MYDB 使用 Entry 类维护了其结构。
+ * 一条记录的各个版本通过 NEXT 串成一条版本链，链头是最早插入的版本，见下文。
  *
- * 一条记录存储在一条 Data Item 中，所以 Entry 中保存一个 DataItem 的引用即可：
+ * 版本链：
+ * 以前 TBM 的每次更新都是删除旧记录、插入新记录，再把新记录插入每一个索引，哪怕索引字段根本没变。
+ * 现在 VM 提供 update()：新版本照常插入，但旧版本的 XMAX 和 NEXT 一起改写，NEXT 指向新版本，
+ * 索引仍然指向链头的第一个版本，从链头顺着 NEXT 往后找，第一个可见的版本就是要读的版本。
+ * 一条记录的各个版本中，对同一个事务最多只有一个可见，所以找到即可停止。
+ * 新版本插在被更新的版本之后，继承它原来的 NEXT，之前被回滚的更新留下的版本仍然留在链上，不会丢失。
+ * 已经对所有事务都不可见的版本由 vacuum 从链上摘下并回收，见 VersionManagerImpl.prune()。
+ *
+ * 每个版本存储在一条 Data Item 中，所以 Entry 中保存一个 DataItem 的引用即可：
  */
 public class Entry {
 
     private static final int OF_XMIN = 0;
     private static final int OF_XMAX = OF_XMIN+8;
-    private static final int OF_DATA = OF_XMAX+8;
+    private static final int OF_NEXT = OF_XMAX+8;
+    private static final int OF_DATA = OF_NEXT+8;
 
     private long uid;
     private DataItem dataItem;
@@ -49,9 +59,14 @@ public class Entry {
 
     //根据这个结构，在创建记录时调用的 wrapEntryRaw() 方法如下：
     public static byte[] wrapEntryRaw(long xid, byte[] data) {
+        return wrapEntryRaw(xid, 0, data);
+    }
+
+    // 版本链中新版本的结构，next 为它之后的版本
+    public static byte[] wrapEntryRaw(long xid, long next, byte[] data) {
         byte[] xmin = Parser.long2Byte(xid);
         byte[] xmax = new byte[8];
-        return Bytes.concat(xmin, xmax, data);
+        return Bytes.concat(xmin, xmax, Parser.long2Byte(next), data);
     }
 
     public void release() {
@@ -93,7 +108,17 @@ public class Entry {
         dataItem.rLock();
         try {
             SubArray sa = dataItem.data();
-            return Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start+OF_XMAX, sa.start+OF_DATA));
+            return Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start+OF_XMAX, sa.start+OF_NEXT));
+        } finally {
+            dataItem.rUnLock();
+        }
+    }
+
+    public long getNext() {
+        dataItem.rLock();
+        try {
+            SubArray sa = dataItem.data();
+            return Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start+OF_NEXT, sa.start+OF_DATA));
         } finally {
             dataItem.rUnLock();
         }
@@ -113,6 +138,29 @@ public class Entry {
         }
     }
 
+    // 更新时，在同一次修改中设置 XMAX 并把新版本挂到 NEXT 上
+    public void setXmaxAndNext(long xid, long next) {
+        dataItem.before();
+        try {
+            SubArray sa = dataItem.data();
+            System.arraycopy(Parser.long2Byte(xid), 0, sa.raw, sa.start+OF_XMAX, 8);
+            System.arraycopy(Parser.long2Byte(next), 0, sa.raw, sa.start+OF_NEXT, 8);
+        } finally {
+            dataItem.after(xid);
+        }
+    }
+
+    // 清理版本链时让版本跳过它之后不可见的版本，不属于任何事务
+    public void setNext(long next) {
+        dataItem.before();
+        try {
+            SubArray sa = dataItem.data();
+            System.arraycopy(Parser.long2Byte(next), 0, sa.raw, sa.start+OF_NEXT, 8);
+        } finally {
+            dataItem.after(TransactionManagerImpl.SUPER_XID);
+        }
+    }
+
     public long getUid() {
         return uid;
     }
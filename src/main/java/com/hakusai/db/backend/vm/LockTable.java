@@ -1,13 +1,13 @@
 package com.hakusai.db.backend.vm;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
+import com.hakusai.db.backend.common.LongHashMap;
+import com.hakusai.db.backend.common.LongIntHashMap;
 import com.hakusai.db.common.Error;
 
 /**
@@ -15,19 +15,20 @@ import com.hakusai.db.common.Error;
  */
 public class LockTable {
     
-    private Map<Long, List<Long>> x2u;  // 某个XID已经获得的资源的UID列表
-    private Map<Long, Long> u2x;        // UID被某个XID持有
-    private Map<Long, List<Long>> wait; // 正在等待UID的XID列表
-    private Map<Long, Lock> waitLock;   // 正在等待资源的XID的锁
-    private Map<Long, Long> waitU;      // XID正在等待的UID
+    private LongHashMap<List<Long>> x2u;    // 某个XID已经获得的资源的UID列表
+    private LongHashMap<Long> u2x;          // UID被某个XID持有
+    private LongHashMap<List<Long>> wait;   // 正在等待UID的XID列表
+    private LongHashMap<Lock> waitLock;     // 正在等待资源的XID的锁
+    private LongHashMap<Long> waitU;        // XID正在等待的UID
     private Lock lock;
 
     public LockTable() {
-        x2u = new HashMap<>();
-        u2x = new HashMap<>();
-        wait = new HashMap<>();
-        waitLock = new HashMap<>();
-        waitU = new HashMap<>();
+        x2u = new LongHashMap<>();
+        u2x = new LongHashMap<>();
+        wait = new LongHashMap<>();
+        waitLock = new LongHashMap<>();
+        waitU = new LongHashMap<>();
+        xidStamp = new LongIntHashMap();
         lock = new ReentrantLock();
     }
 
@@ -114,7 +115,7 @@ public class LockTable {
         if(l.size() == 0) wait.remove(uid);
     }
 
-    private Map<Long, Integer> xidStamp;
+    private LongIntHashMap xidStamp;
     private int stamp;
 
     /**
@@ -125,11 +126,11 @@ public class LockTable {
      * @return
      */
     private boolean hasDeadLock() {
-        xidStamp = new HashMap<>();
+        xidStamp.clear();
         stamp = 1;
-        for(long xid : x2u.keySet()) {
-            Integer s = xidStamp.get(xid);
-            if(s != null && s > 0) {
+        for(long xid : x2u.keys()) {
+            int s = xidStamp.getOrDefault(xid, 0);
+            if(s > 0) {
                 continue;
             }
             stamp ++;
@@ -141,11 +142,11 @@ public class LockTable {
     }
 
     private boolean dfs(long xid) {
-        Integer stp = xidStamp.get(xid);
-        if(stp != null && stp == stamp) {
+        int stp = xidStamp.getOrDefault(xid, 0);
+        if(stp == stamp) {
             return true;
         }
-        if(stp != null && stp < stamp) {
+        if(stp != 0 && stp < stamp) {
             return false;
         }
         xidStamp.put(xid, stamp);
@@ -157,7 +158,7 @@ public class LockTable {
         return dfs(x);
     }
 
-    private void removeFromList(Map<Long, List<Long>> listMap, long uid0, long uid1) {
+    private void removeFromList(LongHashMap<List<Long>> listMap, long uid0, long uid1) {
         List<Long> l = listMap.get(uid0);
         if(l == null) return;
         Iterator<Long> i = l.iterator();
@@ -173,14 +174,14 @@ public class LockTable {
         }
     }
 
-    private void putIntoList(Map<Long, List<Long>> listMap, long uid0, long uid1) {
+    private void putIntoList(LongHashMap<List<Long>> listMap, long uid0, long uid1) {
         if(!listMap.containsKey(uid0)) {
             listMap.put(uid0, new ArrayList<>());
         }
         listMap.get(uid0).add(0, uid1);
     }
 
-    private boolean isInList(Map<Long, List<Long>> listMap, long uid0, long uid1) {
+    private boolean isInList(LongHashMap<List<Long>> listMap, long uid0, long uid1) {
         List<Long> l = listMap.get(uid0);
         if(l == null) return false;
         Iterator<Long> i = l.iterator();
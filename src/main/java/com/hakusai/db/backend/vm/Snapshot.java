@@ -0,0 +1,43 @@
+package com.hakusai.db.backend.vm;
+
+import java.util.Arrays;
+
+/**
+ * 可重复读事务的快照，由三部分组成：
+ * xmax：建立快照的事务自己的 XID，不小于它的事务都是在快照之后开始的；
+ * xmin：建立快照时最老的活跃事务，比它小的事务在快照之前都已经结束了；
+ * active：建立快照时 [xmin, xmax) 中还在进行的事务，即 active 的前 size 个，升序排列。
+ *
+ * 判断一个事务是否在快照中，先和 xmin、xmax 比较，只有落在两者之间时才需要在 active 中二分查找。
+ * active 是 ActiveXids 中的数组本身，多个快照共用，前 size 个在快照建立后不会再修改（见 ActiveXids）。
+ */
+public class Snapshot {
+
+    public final long xmin;
+    public final long xmax;
+    private final long[] active;
+    private final int size;
+
+    Snapshot(long xmin, long xmax, long[] active, int size) {
+        this.xmin = xmin;
+        this.xmax = xmax;
+        this.active = active;
+        this.size = size;
+    }
+
+    // xid 在建立快照时是否还在进行
+    public boolean isActive(long xid) {
+        if(xid < xmin || xid >= xmax) {
+            return false;
+        }
+        return Arrays.binarySearch(active, 0, size, xid) >= 0;
+    }
+
+    /**
+     * xid 产生的修改对快照是否可能可见：xid 在快照之前开始，并且建立快照时已经结束。
+     * 是否真的可见还要看 xid 是否提交。
+     */
+    public boolean isFinishedBefore(long xid) {
+        return xid < xmax && !isActive(xid);
+    }
+}
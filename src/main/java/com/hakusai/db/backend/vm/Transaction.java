@@ -1,10 +1,5 @@
 package com.hakusai.db.backend.vm;
 
-import java.util.HashMap;
-import java.util.Map;
-
-import com.hakusai.db.backend.tm.TransactionManagerImpl;
-
 /**
  * vm对一个事务的抽象
  * 需要提供一个结构，来抽象一个事务，以保存快照数据：
@@ -12,27 +7,23 @@ import com.hakusai.db.backend.tm.TransactionManagerImpl;
 public class Transaction {
     public long xid;
     public int level;
-    public Map<Long, Boolean> snapshot;
+    public Snapshot snapshot;
     public Exception err;
     public boolean autoAborted;
 
-    public static Transaction newTransaction(long xid, int level, Map<Long, Transaction> active) {
+    /**
+     * @param snapshot 可重复读事务开始时建立的快照，读提交的事务为 null
+     */
+    public static Transaction newTransaction(long xid, int level, Snapshot snapshot) {
         Transaction t = new Transaction();
         t.xid = xid;
         t.level = level;
-        if(level != 0) {
-            t.snapshot = new HashMap<>();
-            for(Long x : active.keySet()) {
-                t.snapshot.put(x, true);
-            }
-        }
+        t.snapshot = snapshot;
         return t;
     }
 
+    // xid 在本事务开始时是否还在进行。SUPER_XID 从不在活跃事务中，自然不在快照中
     public boolean isInSnapshot(long xid) {
-        if(xid == TransactionManagerImpl.SUPER_XID) {
-            return false;
-        }
-        return snapshot.containsKey(xid);
+        return snapshot.isActive(xid);
     }
 }
@@ -22,8 +22,20 @@ public interface VersionManager {
     byte[] read(long xid, long uid) throws Exception;
     long insert(long xid, byte[] data) throws Exception;
     boolean delete(long xid, long uid) throws Exception;
+    // 为 uid 开始的版本链上对 xid 可见的版本创建新版本，返回新版本的 UID，没有可见的版本时返回 0，见 Entry
+    long update(long xid, long uid, byte[] data) throws Exception;
+
+    // 以下三个方法供后台的 vacuum 使用，见 VersionManagerImpl
+    // 从 uid 开始的版本链上摘下对所有事务都不可见的版本；整条链都不可见时不做修改，返回链头的数据，否则返回 null
+    byte[] prune(long uid) throws Exception;
+    // 回收整条链，调用之前索引已经不再指向它
+    void retire(long uid) throws Exception;
+    // 释放已经没有事务还能读到的版本，最多 max 个，返回释放的个数
+    int freeRetired(int max) throws Exception;
 
     long begin(int level);
+    // async 为 true 时事务异步提交，见 TransactionManagerImpl
+    long begin(int level, boolean async);
     void commit(long xid) throws Exception;
     void abort(long xid);
 
@@ -1,14 +1,19 @@
 package com.hakusai.db.backend.vm;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import com.hakusai.db.backend.tm.TransactionManager;
 import com.hakusai.db.backend.tm.TransactionManagerImpl;
 import com.hakusai.db.backend.utils.Panic;
 import com.hakusai.db.backend.common.AbstractCache;
+import com.hakusai.db.backend.common.LongHashMap;
 import com.hakusai.db.backend.dm.DataManager;
 import com.hakusai.db.common.Error;
 
@@ -20,18 +25,42 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
 
     TransactionManager tm;
     DataManager dm;
-    Map<Long, Transaction> activeTransaction;
+    LongHashMap<Transaction> activeTransaction;
+    ActiveXids activeXids;      // activeTransaction 中除 SUPER_XID 以外的事务，用于建立快照
     Lock lock;
     LockTable lt;
+    long lastXid;               // 目前开始过的最大的 XID，由 lock 保护
+
+    /**
+     * 回收版本：
+     * 一个版本对所有事务都不可见时就是死版本：创建它的事务回滚了；或者删除它的事务已经提交，并且早于所有活跃事务的快照。
+     * 后台的 vacuum（见 tbm.Vacuum）逐条检查版本链，prune() 把链中间的死版本摘下，整条链都死了时，
+     * vacuum 用 prune() 返回的链头数据找到索引中指向链头的项并删掉，再用 retire() 回收整条链。
+     *
+     * 摘下或者不再被索引指向的版本不能马上释放：已经在进行的事务可能刚从索引中拿到链头，或者正顺着 NEXT 走到它。
+     * 所以回收的版本先放进 retired，记下当时开始过的最大 XID，等这个 XID 之前的事务都结束了，
+     * 再由 freeRetired() 交给 DM 释放，这之后开始的事务已经不可能找到它们了。
+     * retired 只在内存中，回收到一半时崩溃，已经摘下但还没有释放的版本就留在数据文件中，不会再被回收。
+     *
+     * update() 读出旧版本的 NEXT 挂到新版本上，再改写旧版本的 NEXT，这期间 prune() 不能重连同一条链，
+     * 否则新版本继承的可能是刚被摘下的版本。于是 update() 修改版本链时持有 chainLock 的读锁，prune() 持有写锁。
+     */
+    ReadWriteLock chainLock;
+    private Lock retireLock;
+    private ArrayDeque<long[]> retired;     // {回收时开始过的最大 XID, UID}，按回收的先后排列
 
     public VersionManagerImpl(TransactionManager tm, DataManager dm) {
         super(0);
         this.tm = tm;
         this.dm = dm;
-        this.activeTransaction = new HashMap<>();
+        this.activeTransaction = new LongHashMap<>();
+        this.activeXids = new ActiveXids();
         activeTransaction.put(TransactionManagerImpl.SUPER_XID, Transaction.newTransaction(TransactionManagerImpl.SUPER_XID, 0, null));
         this.lock = new ReentrantLock();
         this.lt = new LockTable();
+        this.chainLock = new ReentrantReadWriteLock();
+        this.retireLock = new ReentrantLock();
+        this.retired = new ArrayDeque<>();
     }
 
     /**
@@ -51,25 +80,39 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
             throw t.err;
         }
 
-        Entry entry = null;
-        try {
-            entry = super.get(uid);
-        } catch(Exception e) {
-            if(e == Error.NullEntryException) {
-                return null;
-            } else {
-                throw e;
-            }
+        Entry entry = visibleVersion(t, uid);
+        if(entry == null) {
+            return null;
         }
         try {
+            return entry.data();
+        } finally {
+            entry.release();
+        }
+    }
+
+    /**
+     * 从 uid 开始顺着版本链往后找，返回第一个对 t 可见的版本，没有可见的版本时返回 null。
+     */
+    private Entry visibleVersion(Transaction t, long uid) throws Exception {
+        while(uid != 0) {
+            Entry entry = null;
+            try {
+                entry = super.get(uid);
+            } catch(Exception e) {
+                if(e == Error.NullEntryException) {
+                    return null;
+                } else {
+                    throw e;
+                }
+            }
             if(Visibility.isVisible(tm, t, entry)) {
-                return entry.data();
-            } else {
-                return null;
+                return entry;
             }
-        } finally {
+            uid = entry.getNext();
             entry.release();
         }
+        return null;
     }
 
     /**
@@ -109,50 +152,97 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         if(t.err != null) {
             throw t.err;
         }
-        Entry entry = null;
+        Entry entry = lockVisible(t, uid);
+        if(entry == null) {
+            return false;
+        }
         try {
-            entry = super.get(uid);
-        } catch(Exception e) {
-            if(e == Error.NullEntryException) {
-                return false;
-            } else {
-                throw e;
-            }
+            entry.setXmax(xid);
+            return true;
+        } finally {
+            entry.release();
+        }
+    }
+
+    /**
+     * update() 在 uid 开始的版本链上，为对 xid 可见的版本创建一个新版本，返回新版本的 UID，没有可见的版本时返回 0。
+     * 可见性判断、加锁和版本跳跃判断都和 delete() 一样，之后插入新版本，再设置旧版本的 XMAX 和 NEXT。
+     * 新版本在旧版本指向它之前不会被任何事务读到，所以先插入再修改旧版本。
+     */
+    @Override
+    public long update(long xid, long uid, byte[] data) throws Exception {
+        lock.lock();
+        Transaction t = activeTransaction.get(xid);
+        lock.unlock();
+
+        if(t.err != null) {
+            throw t.err;
         }
+        Entry entry = lockVisible(t, uid);
+        if(entry == null) {
+            return 0;
+        }
+        chainLock.readLock().lock();
         try {
-            if(!Visibility.isVisible(tm, t, entry)) {
-                return false;
-            }
-            Lock l = null;
-            try {
-                l = lt.add(xid, uid);
-            } catch(Exception e) {
-                t.err = Error.ConcurrentUpdateException;
-                internAbort(xid, true);
-                t.autoAborted = true;
-                throw t.err;
-            }
-            if(l != null) {
-                l.lock();
-                l.unlock();
-            }
+            long newUid = dm.insert(xid, Entry.wrapEntryRaw(xid, entry.getNext(), data));
+            entry.setXmaxAndNext(xid, newUid);
+            return newUid;
+        } finally {
+            chainLock.readLock().unlock();
+            entry.release();
+        }
+    }
 
-            if(entry.getXmax() == xid) {
-                return false;
+    /**
+     * 找到对 t 可见的版本并加锁，返回时这个版本可以被 t 删除或更新；没有可见的版本，或者已经被 t 自己删除时返回 null。
+     * 读提交的事务在等锁期间，这个版本可能被另一个事务删除或更新并提交了，
+     * 这时重新从链头找可见的版本，而不是覆盖别人的修改；可重复读的事务则由版本跳跃检查回滚。
+     */
+    private Entry lockVisible(Transaction t, long uid) throws Exception {
+        long xid = t.xid;
+        while(true) {
+            Entry entry = visibleVersion(t, uid);
+            if(entry == null) {
+                return null;
             }
+            boolean ok = false;
+            try {
+                Lock l = null;
+                try {
+                    l = lt.add(xid, entry.getUid());
+                } catch(Exception e) {
+                    t.err = Error.ConcurrentUpdateException;
+                    internAbort(xid, true);
+                    t.autoAborted = true;
+                    throw t.err;
+                }
+                if(l != null) {
+                    l.lock();
+                    l.unlock();
+                }
 
-            if(Visibility.isVersionSkip(tm, t, entry)) {
-                t.err = Error.ConcurrentUpdateException;
-                internAbort(xid, true);
-                t.autoAborted = true;
-                throw t.err;
-            }
+                long xmax = entry.getXmax();
+                if(xmax == xid) {
+                    return null;
+                }
 
-            entry.setXmax(xid);
-            return true;
+                if(Visibility.isVersionSkip(tm, t, entry)) {
+                    t.err = Error.ConcurrentUpdateException;
+                    internAbort(xid, true);
+                    t.autoAborted = true;
+                    throw t.err;
+                }
 
-        } finally {
-            entry.release();
+                if(xmax != 0 && tm.isCommitted(xmax)) {
+                    continue;
+                }
+                ok = true;
+                return entry;
+            } finally {
+                if(!ok) {
+                    entry.release();
+                }
+            }
         }
     }
 
@@ -163,11 +253,18 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
      */
     @Override
     public long begin(int level) {
+        return begin(level, false);
+    }
+
+    @Override
+    public long begin(int level, boolean async) {
         lock.lock();
         try {
-            long xid = tm.begin();
-            Transaction t = Transaction.newTransaction(xid, level, activeTransaction);
+            long xid = async ? tm.beginAsync() : tm.begin();
+            Transaction t = Transaction.newTransaction(xid, level, level == 0 ? null : activeXids.snapshot(xid));
             activeTransaction.put(xid, t);
+            activeXids.add(xid);
+            lastXid = xid;
             return xid;
         } finally {
             lock.unlock();
@@ -191,12 +288,13 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
             }
         } catch(NullPointerException n) {
             System.out.println(xid);
-            System.out.println(activeTransaction.keySet());
+            System.out.println(Arrays.toString(activeTransaction.keys()));
             Panic.panic(n);
         }
 
         lock.lock();
         activeTransaction.remove(xid);
+        activeXids.remove(xid);
         lock.unlock();
 
         lt.remove(xid);
@@ -219,6 +317,7 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         Transaction t = activeTransaction.get(xid);
         if(!autoAborted) {
             activeTransaction.remove(xid);
+            activeXids.remove(xid);
         }
         lock.unlock();
 
@@ -227,6 +326,173 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         tm.abort(xid);
     }
 
+    /**
+     * 所有活跃事务的快照中最老的 xmin，删除它的事务提交了、并且比它小的版本，对现在和以后的事务都不可见。
+     * 读提交的事务没有快照，按它自己的 XID 计算。没有活跃事务时返回 Long.MAX_VALUE。
+     */
+    private long horizon() {
+        lock.lock();
+        try {
+            long horizon = Long.MAX_VALUE;
+            for(Transaction t : activeTransaction.values()) {
+                if(t.xid == TransactionManagerImpl.SUPER_XID) {
+                    continue;
+                }
+                horizon = Math.min(horizon, t.level == 0 ? t.xid : t.snapshot.xmin);
+            }
+            return horizon;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 删除版本的事务是异步提交的、状态还没有落盘时，崩溃后它会被撤销，版本又变回可见，所以还不能算死版本。
+     */
+    private boolean isDead(Entry entry, long horizon) {
+        if(tm.isAborted(entry.getXmin())) {
+            return true;
+        }
+        long xmax = entry.getXmax();
+        return xmax != TransactionManagerImpl.SUPER_XID && xmax < horizon
+            && tm.isCommitted(xmax) && !tm.isCommitPending(xmax);
+    }
+
+    // 读出从 uid 开始的整条版本链，遇到无效的版本时停止
+    private List<Entry> loadChain(long uid) throws Exception {
+        List<Entry> chain = new ArrayList<>();
+        try {
+            while(uid != 0) {
+                Entry entry = super.get(uid);
+                chain.add(entry);
+                uid = entry.getNext();
+            }
+        } catch(Exception e) {
+            if(e != Error.NullEntryException) {
+                for(Entry entry : chain) {
+                    entry.release();
+                }
+                throw e;
+            }
+        }
+        return chain;
+    }
+
+    /**
+     * 链头是索引指向的位置，即使已经死了也留在链上；其余的死版本被摘下，前一个活版本的 NEXT 直接指向下一个活版本。
+     * 链头本身已经无效时（例如崩溃前没有提交的插入被撤销，索引项却留了下来）不做处理。
+     */
+    @Override
+    public byte[] prune(long uid) throws Exception {
+        long horizon = horizon();
+        List<Long> skipped = new ArrayList<>();
+        chainLock.writeLock().lock();
+        try {
+            List<Entry> chain = loadChain(uid);
+            try {
+                if(chain.isEmpty()) {
+                    return null;
+                }
+                boolean allDead = true;
+                for(Entry entry : chain) {
+                    if(!isDead(entry, horizon)) {
+                        allDead = false;
+                        break;
+                    }
+                }
+                if(allDead) {
+                    return chain.get(0).data();
+                }
+                Entry prev = chain.get(0);
+                for(int i = 1; i < chain.size(); i ++) {
+                    Entry entry = chain.get(i);
+                    if(isDead(entry, horizon)) {
+                        skipped.add(entry.getUid());
+                        continue;
+                    }
+                    if(prev.getNext() != entry.getUid()) {
+                        prev.setNext(entry.getUid());
+                    }
+                    prev = entry;
+                }
+                if(prev.getNext() != 0) {
+                    prev.setNext(0);
+                }
+            } finally {
+                for(Entry entry : chain) {
+                    entry.release();
+                }
+            }
+        } finally {
+            chainLock.writeLock().unlock();
+        }
+        addRetired(skipped);
+        return null;
+    }
+
+    @Override
+    public void retire(long uid) throws Exception {
+        List<Long> uids = new ArrayList<>();
+        for(Entry entry : loadChain(uid)) {
+            uids.add(entry.getUid());
+            entry.release();
+        }
+        addRetired(uids);
+    }
+
+    private void addRetired(List<Long> uids) {
+        if(uids.isEmpty()) {
+            return;
+        }
+        lock.lock();
+        long stamp = lastXid;
+        lock.unlock();
+
+        retireLock.lock();
+        try {
+            for(long uid : uids) {
+                retired.add(new long[] {stamp, uid});
+            }
+        } finally {
+            retireLock.unlock();
+        }
+    }
+
+    @Override
+    public int freeRetired(int max) throws Exception {
+        lock.lock();
+        long oldest = activeXids.oldest();
+        lock.unlock();
+
+        int n = 0;
+        while(n < max) {
+            long[] r;
+            retireLock.lock();
+            try {
+                r = retired.peek();
+                if(r == null || r[0] >= oldest) {
+                    break;
+                }
+                retired.poll();
+            } finally {
+                retireLock.unlock();
+            }
+            dm.free(r[1]);
+            n ++;
+        }
+        return n;
+    }
+
+    // 等待释放的版本数
+    public int getRetiredCount() {
+        retireLock.lock();
+        try {
+            return retired.size();
+        } finally {
+            retireLock.unlock();
+        }
+    }
+
     public void releaseEntry(Entry entry) {
         super.release(entry.getUid());
     }
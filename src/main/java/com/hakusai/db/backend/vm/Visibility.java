@@ -105,7 +105,9 @@ public class Visibility {
      *  1. 在本事务后开始的事务的数据;
      *  2. 本事务开始时还是 active 状态的事务的数据
      *
-     * 构造方法中的 active，保存着当前所有 active 的事务。于是，可重复读的隔离级别下，一个版本是否对事务可见的判断如下：
+     * 事务开始时建立的快照 Snapshot 记录了当时所有 active 的事务：比快照的 xmin 小的事务都已经结束，
+     * 不小于 xmax（即本事务的 XID）的事务都在本事务之后开始，只有两者之间的事务需要在快照的活跃事务中查找。
+     * 于是，可重复读的隔离级别下，一个版本是否对事务可见的判断如下：
      * @param tm
      * @param t
      * @param e
@@ -117,10 +119,12 @@ public class Visibility {
         long xmax = e.getXmax();
         if(xmin == xid && xmax == 0) return true;
 
-        if(tm.isCommitted(xmin) && xmin < xid && !t.isInSnapshot(xmin)) {
+        Snapshot snapshot = t.snapshot;
+        // 先用快照排除，再查询事务状态
+        if(snapshot.isFinishedBefore(xmin) && tm.isCommitted(xmin)) {
             if(xmax == 0) return true;
             if(xmax != xid) {
-                if(!tm.isCommitted(xmax) || xmax > xid || t.isInSnapshot(xmax)) {
+                if(!snapshot.isFinishedBefore(xmax) || !tm.isCommitted(xmax)) {
                     return true;
                 }
             }
@@ -12,6 +12,7 @@ public class Error {
   public static final Exception MemTooSmallException = new RuntimeException("Memory too small!");
   public static final Exception DataTooLargeException = new RuntimeException("Data too large!");
   public static final Exception DatabaseBusyException = new RuntimeException("Database is busy!");
+  public static final Exception InvalidPageSizeException = new RuntimeException("Invalid page size!");
 
   // tm
   public static final Exception BadXIDFileException = new RuntimeException("Bad XID file!");
@@ -43,4 +44,11 @@ public class Error {
 
   // launcher
   public static final Exception InvalidMemException = new RuntimeException("Invalid memory!");
+  public static final Exception InvalidPageCacheException = new RuntimeException("Invalid page cache mode!");
+  public static final Exception InvalidRedoThreadsException = new RuntimeException("Invalid redo threads!");
+  public static final Exception InvalidAsyncIntervalException = new RuntimeException("Invalid async commit interval!");
+  public static final Exception InvalidVacuumIntervalException = new RuntimeException("Invalid vacuum interval!");
+  public static final Exception InvalidVacuumBatchException = new RuntimeException("Invalid vacuum batch size!");
+  public static final Exception InvalidVacuumDelayException = new RuntimeException("Invalid vacuum delay!");
+  public static final Exception InvalidStatusIntervalException = new RuntimeException("Invalid status interval!");
 }
@@ -0,0 +1,72 @@
+package com.hakusai.db.backend.common;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.hakusai.db.backend.utils.Panic;
+
+/**
+ * 缓存竞争压测：对比单锁（1 个段，等价于原先的全局 ReentrantLock）和分段缓存在 1~64 线程下的吞吐。
+ * 负载是读多的命中场景，所有 key 预先被引用一次常驻缓存，工作线程反复 get/release。
+ *
+ * 运行方式：mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.hakusai.db.backend.common.CacheBenchmark
+ */
+public class CacheBenchmark {
+
+    private static final int KEYS = 4096;
+    private static final int OPS_PER_THREAD = 200000;
+
+    static class BenchCache extends AbstractCache<Long> {
+        BenchCache(int noSegments) {
+            super(0, noSegments);
+        }
+
+        @Override
+        protected Long getForCache(long key) throws Exception {
+            return key;
+        }
+
+        @Override
+        protected void releaseForCache(Long obj) {}
+    }
+
+    public static void main(String[] args) throws Exception {
+        int[] threads = {1, 2, 4, 8, 16, 32, 64};
+        System.out.printf("%-8s %18s %18s%n", "threads", "1 segment (ops/ms)", AbstractCache.DEFAULT_SEGMENTS + " segments (ops/ms)");
+        for(int t : threads) {
+            double single = run(new BenchCache(1), t);
+            double striped = run(new BenchCache(AbstractCache.DEFAULT_SEGMENTS), t);
+            System.out.printf("%-8d %18.1f %18.1f%n", t, single, striped);
+        }
+    }
+
+    private static double run(BenchCache cache, int noThreads) throws Exception {
+        for(long k = 0; k < KEYS; k ++) {
+            cache.get(k << 32);
+        }
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(noThreads);
+        for(int i = 0; i < noThreads; i ++) {
+            new Thread(() -> {
+                try {
+                    start.await();
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    for(int j = 0; j < OPS_PER_THREAD; j ++) {
+                        long key = ((long)random.nextInt(KEYS)) << 32;
+                        cache.get(key);
+                        cache.release(key);
+                    }
+                } catch (Exception e) {
+                    Panic.panic(e);
+                }
+                done.countDown();
+            }).start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - begin;
+        cache.close();
+        return (double)noThreads * OPS_PER_THREAD / (elapsed / 1e6);
+    }
+}
@@ -3,6 +3,7 @@ package com.hakusai.db.backend.common;
 import java.security.SecureRandom;
 import java.util.Random;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.hakusai.db.backend.utils.Panic;
 import org.junit.Test;
@@ -46,4 +47,38 @@ public class CacheTest {
         }
         cdl.countDown();
     }
+
+    @Test
+    public void testSingleFlightLoad() throws Exception {
+        AtomicInteger loads = new AtomicInteger(0);
+        AbstractCache<Long> slow = new AbstractCache<Long>(50) {
+            @Override
+            protected Long getForCache(long key) throws Exception {
+                loads.incrementAndGet();
+                Thread.sleep(50);
+                return key;
+            }
+
+            @Override
+            protected void releaseForCache(Long obj) {}
+        };
+        int noWorkers = 16;
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(noWorkers);
+        for(int i = 0; i < noWorkers; i ++) {
+            new Thread(() -> {
+                try {
+                    start.await();
+                    long h = slow.get(7);
+                    assert h == 7;
+                } catch (Exception e) {
+                    Panic.panic(e);
+                }
+                done.countDown();
+            }).start();
+        }
+        start.countDown();
+        done.await();
+        assert loads.get() == 1;
+    }
 }
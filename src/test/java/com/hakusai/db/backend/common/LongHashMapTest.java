@@ -0,0 +1,62 @@
+package com.hakusai.db.backend.common;
+
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class LongHashMapTest {
+
+    static Random random = new SecureRandom();
+
+    @Test
+    public void testLongHashMap() {
+        LongHashMap<Long> map = new LongHashMap<>();
+        Map<Long, Long> mock = new HashMap<>();
+        for(int i = 0; i < 200000; i ++) {
+            // key 取值范围小一些，制造大量冲突和删除
+            long key = random.nextInt(2000) - 10;
+            int op = random.nextInt(3);
+            if(op == 0) {
+                assert equals(map.put(key, (long)i), mock.put(key, (long)i));
+            } else if(op == 1) {
+                assert equals(map.remove(key), mock.remove(key));
+            } else {
+                assert equals(map.get(key), mock.get(key));
+                assert map.containsKey(key) == mock.containsKey(key);
+            }
+            assert map.size() == mock.size();
+        }
+        assert map.keys().length == mock.size();
+        for(long key : map.keys()) {
+            assert mock.containsKey(key);
+        }
+    }
+
+    @Test
+    public void testLongIntHashMap() {
+        LongIntHashMap map = new LongIntHashMap();
+        Map<Long, Integer> mock = new HashMap<>();
+        for(int i = 0; i < 200000; i ++) {
+            long key = ((long)random.nextInt(2000)) << 32;
+            int op = random.nextInt(3);
+            if(op == 0) {
+                int v = map.addTo(key, 1);
+                mock.put(key, mock.getOrDefault(key, 0) + 1);
+                assert v == mock.get(key);
+            } else if(op == 1) {
+                map.remove(key);
+                mock.remove(key);
+            } else {
+                assert map.getOrDefault(key, -1) == mock.getOrDefault(key, -1);
+            }
+            assert map.size() == mock.size();
+        }
+    }
+
+    private static boolean equals(Long a, Long b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
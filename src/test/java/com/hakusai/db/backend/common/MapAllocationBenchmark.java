@@ -0,0 +1,73 @@
+package com.hakusai.db.backend.common;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+
+/**
+ * 分配率压测：模拟缓存一次 get/release 对三张表的操作（查缓存、引用计数 +1 -1、getting 注册与删除），
+ * 对比 HashMap<Long, ...> 与 LongHashMap / LongIntHashMap 每次操作分配的字节数。
+ * 依赖 HotSpot 的 com.sun.management.ThreadMXBean 统计线程分配量。
+ *
+ * 运行方式：mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.hakusai.db.backend.common.MapAllocationBenchmark
+ */
+public class MapAllocationBenchmark {
+
+    private static final int KEYS = 4096;
+    private static final int OPS = 2000000;
+    private static final Object VALUE = new Object();
+
+    public static void main(String[] args) {
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+        for(int round = 0; round < 3; round ++) {
+            long boxed = measure(bean, MapAllocationBenchmark::boxed);
+            long primitive = measure(bean, MapAllocationBenchmark::primitive);
+            System.out.printf("round %d: HashMap<Long,...> %.2f B/op, LongHashMap %.2f B/op%n",
+                round, (double)boxed / OPS, (double)primitive / OPS);
+        }
+    }
+
+    private static long measure(com.sun.management.ThreadMXBean bean, Runnable r) {
+        long tid = Thread.currentThread().getId();
+        long before = bean.getThreadAllocatedBytes(tid);
+        r.run();
+        return bean.getThreadAllocatedBytes(tid) - before;
+    }
+
+    private static void boxed() {
+        HashMap<Long, Object> cache = new HashMap<>();
+        HashMap<Long, Integer> references = new HashMap<>();
+        HashMap<Long, Boolean> getting = new HashMap<>();
+        for(long k = 0; k < KEYS; k ++) {
+            cache.put(k << 32, VALUE);
+            references.put(k << 32, 1);
+        }
+        for(int i = 0; i < OPS; i ++) {
+            long key = ((long)(i % KEYS)) << 32;
+            if(!getting.containsKey(key) && cache.containsKey(key)) {
+                references.put(key, references.get(key) + 1);
+            }
+            references.put(key, references.get(key) - 1);
+            getting.put(key ^ 1, true);
+            getting.remove(key ^ 1);
+        }
+    }
+
+    private static void primitive() {
+        LongHashMap<Object> cache = new LongHashMap<>();
+        LongIntHashMap references = new LongIntHashMap();
+        LongHashMap<Boolean> getting = new LongHashMap<>();
+        for(long k = 0; k < KEYS; k ++) {
+            cache.put(k << 32, VALUE);
+            references.put(k << 32, 1);
+        }
+        for(int i = 0; i < OPS; i ++) {
+            long key = ((long)(i % KEYS)) << 32;
+            if(!getting.containsKey(key) && cache.containsKey(key)) {
+                references.addTo(key, 1);
+            }
+            references.addTo(key, -1);
+            getting.put(key ^ 1, Boolean.TRUE);
+            getting.remove(key ^ 1);
+        }
+    }
+}
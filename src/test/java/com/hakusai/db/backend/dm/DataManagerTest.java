@@ -11,8 +11,13 @@ import java.util.concurrent.locks.ReentrantLock;
 
 import com.hakusai.db.backend.common.SubArray;
 import com.hakusai.db.backend.dm.dataItem.DataItem;
+import com.hakusai.db.backend.dm.logger.LogReader;
+import com.hakusai.db.backend.dm.logger.Logger;
+import com.hakusai.db.backend.dm.page.Page;
+import com.hakusai.db.backend.dm.page.PageX;
 import com.hakusai.db.backend.dm.pageCache.PageCache;
 import com.hakusai.db.backend.tm.TransactionManager;
+import com.hakusai.db.backend.tm.TransactionManagerImpl;
 import com.hakusai.db.backend.utils.Panic;
 import com.hakusai.db.backend.utils.RandomUtil;
 import org.junit.Test;
@@ -108,7 +113,7 @@ public class DataManagerTest {
         dm0.close(); mdm.close();
 
         new File("/tmp/TESTDMSingle.db").delete();
-        new File("/tmp/TESTDMSingle.log").delete();
+        Logger.remove("/tmp/TESTDMSingle");
     }
 
     @Test
@@ -128,7 +133,7 @@ public class DataManagerTest {
         dm0.close(); mdm.close();
 
         new File("/tmp/TestDMMulti.db").delete();
-        new File("/tmp/TestDMMulti.log").delete();
+        Logger.remove("/tmp/TestDMMulti");
     }
 
     @Test
@@ -153,8 +158,330 @@ public class DataManagerTest {
         dm0.close(); mdm.close();
         
         new File("/tmp/TestRecoverySimple.db").delete();
-        new File("/tmp/TestRecoverySimple.log").delete();
+        Logger.remove("/tmp/TestRecoverySimple");
         new File("/tmp/TestRecoverySimple.xid").delete();
 
     }
+
+    @Test
+    public void testRecoveryAfterCheckpoint() throws Exception {
+        TransactionManager tm0 = TransactionManager.create("/tmp/TestRecoveryCheckpoint");
+        // 用很小的日志段，检查点之后会删掉前面的段
+        PageCache pc = PageCache.create("/tmp/TestRecoveryCheckpoint", PageCache.PAGE_SIZE*30);
+        Logger lg = Logger.create("/tmp/TestRecoveryCheckpoint", 1024);
+        DataManagerImpl dm0 = new DataManagerImpl(pc, lg, tm0);
+        dm0.initPageOne();
+        // loser 跨越检查点且没有提交，它在检查点之前的日志不能随日志段一起删除
+        long loser = 0;
+        List<Long> uids = new ArrayList<>();
+        List<byte[]> datas = new ArrayList<>();
+        List<Long> loserUids = new ArrayList<>();
+        for(int i = 0; i < 100; i ++) {
+            byte[] data = RandomUtil.randomBytes(60);
+            long xid = tm0.begin();
+            uids.add(dm0.insert(xid, data));
+            tm0.commit(xid);
+            datas.add(data);
+            if(i == 30) {
+                loser = tm0.begin();
+            }
+            if(i >= 30 && i % 10 == 0) {
+                loserUids.add(dm0.insert(loser, data));
+            }
+            if(i == 50) {
+                dm0.checkpoint();
+                assert !new File("/tmp/TestRecoveryCheckpoint.log.0000000000000000").exists();
+            }
+        }
+
+        // 不关闭直接重新打开，模拟崩溃，恢复时需要跳过检查点日志
+        DataManager dm1 = DataManager.open("/tmp/TestRecoveryCheckpoint", PageCache.PAGE_SIZE*30, tm0);
+        for(int i = 0; i < uids.size(); i ++) {
+            DataItem di = dm1.read(uids.get(i));
+            SubArray sa = di.data();
+            byte[] data = datas.get(i);
+            for(int j = 0; j < data.length; j ++) {
+                assert sa.raw[sa.start+j] == data[j];
+            }
+            di.release();
+        }
+        for(long uid : loserUids) {
+            assert dm1.read(uid) == null;
+        }
+        dm1.close();
+
+        new File("/tmp/TestRecoveryCheckpoint.db").delete();
+        Logger.remove("/tmp/TestRecoveryCheckpoint");
+        new File("/tmp/TestRecoveryCheckpoint.xid").delete();
+    }
+
+    @Test
+    public void testPageLSN() throws Exception {
+        TransactionManager tm0 = TransactionManager.create("/tmp/TestRecoveryPageLSN");
+        PageCache pc = PageCache.create("/tmp/TestRecoveryPageLSN", PageCache.PAGE_SIZE*10);
+        Logger lg = Logger.create("/tmp/TestRecoveryPageLSN");
+        DataManagerImpl dm0 = new DataManagerImpl(pc, lg, tm0);
+        dm0.initPageOne();
+
+        long xid = tm0.begin();
+        long uid = dm0.insert(xid, RandomUtil.randomBytes(60));
+        DataItem di = dm0.read(uid);
+        di.before();
+        SubArray sa = di.data();
+        sa.raw[sa.start] = 1;
+        di.after(xid);
+        di.release();
+        tm0.commit(xid);
+
+        // PageLSN 是最后一条修改页面的日志，也就是上面的更新日志
+        LogReader reader = lg.reader();
+        while(reader.next() != null);
+        Page pg = pc.getPage((int)(uid >>> 32));
+        assert PageX.getPageLSN(pg) == reader.getLastLSN();
+
+        // 页面连同 PageLSN 写回之后，在页面上做一个不记日志的修改。恢复时如果重做了更新日志，它就会被覆盖
+        pc.flushAll();
+        int offset = (int)(uid & 0xFFFF) + 3;
+        pg.getData()[offset] = 2;
+        pg.setDirty(true);
+        pg.release();
+        pc.flushAll();
+
+        // 不关闭直接重新打开，模拟崩溃
+        DataManager dm1 = DataManager.open("/tmp/TestRecoveryPageLSN", PageCache.PAGE_SIZE*10, tm0);
+        di = dm1.read(uid);
+        sa = di.data();
+        assert sa.raw[sa.start] == 2;
+        di.release();
+        dm1.close();
+
+        new File("/tmp/TestRecoveryPageLSN.db").delete();
+        Logger.remove("/tmp/TestRecoveryPageLSN");
+        new File("/tmp/TestRecoveryPageLSN.xid").delete();
+    }
+
+    @Test
+    public void testParallelRedo() throws Exception {
+        TransactionManager tm0 = TransactionManager.create("/tmp/TestRecoveryParallel");
+        DataManager dm0 = DataManager.create("/tmp/TestRecoveryParallel", PageCache.PAGE_SIZE*30, tm0);
+        List<Long> uids = new ArrayList<>();
+        List<byte[]> datas = new ArrayList<>();
+        for(int i = 0; i < 500; i ++) {
+            byte[] data = RandomUtil.randomBytes(200);
+            long xid = tm0.begin();
+            uids.add(dm0.insert(xid, data));
+            tm0.commit(xid);
+            datas.add(data);
+        }
+        // 同一个页面上的多次更新，重做时要保持先后顺序
+        for(int i = 0; i < 2000; i ++) {
+            int k = random.nextInt(uids.size());
+            byte[] data = RandomUtil.randomBytes(200);
+            DataItem di = dm0.read(uids.get(k));
+            di.before();
+            SubArray sa = di.data();
+            System.arraycopy(data, 0, sa.raw, sa.start, data.length);
+            di.after(0);
+            di.release();
+            datas.set(k, data);
+        }
+
+        // 不关闭直接重新打开，模拟崩溃，用 4 个线程重做
+        DataManager dm1 = DataManager.open("/tmp/TestRecoveryParallel", PageCache.PAGE_SIZE*30, false, 4, tm0);
+        for(int i = 0; i < uids.size(); i ++) {
+            DataItem di = dm1.read(uids.get(i));
+            SubArray sa = di.data();
+            byte[] data = datas.get(i);
+            for(int j = 0; j < data.length; j ++) {
+                assert sa.raw[sa.start+j] == data[j];
+            }
+            di.release();
+        }
+        dm1.close();
+
+        new File("/tmp/TestRecoveryParallel.db").delete();
+        Logger.remove("/tmp/TestRecoveryParallel");
+        new File("/tmp/TestRecoveryParallel.xid").delete();
+    }
+
+    @Test
+    public void testDeltaLog() throws Exception {
+        TransactionManager tm0 = TransactionManager.create("/tmp/TestRecoveryDelta");
+        PageCache pc = PageCache.create("/tmp/TestRecoveryDelta", PageCache.PAGE_SIZE*10);
+        Logger lg = Logger.create("/tmp/TestRecoveryDelta");
+        DataManagerImpl dm0 = new DataManagerImpl(pc, lg, tm0);
+        dm0.initPageOne();
+
+        byte[] data = RandomUtil.randomBytes(2000);
+        long uid = dm0.insert(0, data);
+
+        // 提交的事务改了 8 个字节，日志里只有这 8 个字节的前后像
+        long xid = tm0.begin();
+        DataItem di = dm0.read(uid);
+        di.before();
+        SubArray sa = di.data();
+        for(int i = 100; i < 108; i ++) {
+            sa.raw[sa.start+i] = data[i] = (byte)(data[i] + 1);
+        }
+        di.after(xid);
+        di.release();
+        tm0.commit(xid);
+        LogReader reader = lg.reader();
+        SubArray log = null, last;
+        while((last = reader.next()) != null) {
+            log = last;
+        }
+        assert log.end - log.start < 64;
+
+        // 没有提交的事务改了另外 8 个字节，恢复时要撤销
+        long loser = tm0.begin();
+        di = dm0.read(uid);
+        di.before();
+        sa = di.data();
+        for(int i = 1000; i < 1008; i ++) {
+            sa.raw[sa.start+i] = (byte)(data[i] + 1);
+        }
+        di.after(loser);
+        di.release();
+
+        // 不关闭直接重新打开，模拟崩溃
+        DataManager dm1 = DataManager.open("/tmp/TestRecoveryDelta", PageCache.PAGE_SIZE*10, tm0);
+        di = dm1.read(uid);
+        sa = di.data();
+        for(int i = 0; i < data.length; i ++) {
+            assert sa.raw[sa.start+i] == data[i];
+        }
+        di.release();
+        dm1.close();
+
+        new File("/tmp/TestRecoveryDelta.db").delete();
+        Logger.remove("/tmp/TestRecoveryDelta");
+        new File("/tmp/TestRecoveryDelta.xid").delete();
+    }
+
+    @Test
+    public void testAsyncCommit() throws Exception {
+        TransactionManagerImpl tm0 = TransactionManager.create("/tmp/TestRecoveryAsync");
+        // 测试期间后台线程不会写入异步提交的状态
+        tm0.setAsyncInterval(3600 * 1000);
+        DataManager dm0 = DataManager.create("/tmp/TestRecoveryAsync", PageCache.PAGE_SIZE*10, tm0);
+        byte[] data = RandomUtil.randomBytes(60);
+
+        long a = tm0.beginAsync();
+        long uidA = dm0.insert(a, data);
+        tm0.commit(a);
+        assert tm0.isCommitted(a) && tm0.isCommitPending(a);
+        tm0.flushCommits();
+        assert tm0.isCommitted(a) && !tm0.isCommitPending(a);
+
+        long b = tm0.beginAsync();
+        long uidB = dm0.insert(b, data);
+        tm0.commit(b);
+        assert tm0.isCommitted(b) && tm0.getPendingCommits() == 1;
+        // b 的日志已经落盘，状态还没有
+        dm0.flushLog();
+
+        // 不关闭直接重新打开，模拟崩溃：XID 文件中 a 已提交，b 仍是 active，恢复时要撤销 b
+        TransactionManager tm1 = TransactionManager.open("/tmp/TestRecoveryAsync");
+        assert tm1.isCommitted(a) && tm1.isActive(b);
+        DataManager dm1 = DataManager.open("/tmp/TestRecoveryAsync", PageCache.PAGE_SIZE*10, tm1);
+        DataItem di = dm1.read(uidA);
+        SubArray sa = di.data();
+        for(int i = 0; i < data.length; i ++) {
+            assert sa.raw[sa.start+i] == data[i];
+        }
+        di.release();
+        assert dm1.read(uidB) == null;
+        assert tm1.isAborted(b);
+        dm1.close();
+        tm1.close();
+
+        new File("/tmp/TestRecoveryAsync.db").delete();
+        Logger.remove("/tmp/TestRecoveryAsync");
+        new File("/tmp/TestRecoveryAsync.xid").delete();
+    }
+
+    @Test
+    public void testAsyncThenSyncCommit() throws Exception {
+        TransactionManagerImpl tm0 = TransactionManager.create("/tmp/TestRecoveryAsyncSync");
+        tm0.setAsyncInterval(3600 * 1000);
+        DataManager dm0 = DataManager.create("/tmp/TestRecoveryAsyncSync", PageCache.PAGE_SIZE*10, tm0);
+        byte[] data = RandomUtil.randomBytes(60);
+
+        long a = tm0.beginAsync();
+        long uidA = dm0.insert(a, data);
+        tm0.commit(a);
+        assert tm0.isCommitPending(a);
+
+        // 同步提交的 b 可能依赖 a 的修改，b 的状态落盘之前 a 的状态要先落盘
+        long b = tm0.begin();
+        long uidB = dm0.insert(b, data);
+        tm0.commit(b);
+        assert tm0.getPendingCommits() == 0;
+
+        // 不关闭直接重新打开，模拟崩溃
+        TransactionManager tm1 = TransactionManager.open("/tmp/TestRecoveryAsyncSync");
+        assert tm1.isCommitted(a) && tm1.isCommitted(b);
+        DataManager dm1 = DataManager.open("/tmp/TestRecoveryAsyncSync", PageCache.PAGE_SIZE*10, tm1);
+        for(long uid : new long[]{uidA, uidB}) {
+            DataItem di = dm1.read(uid);
+            SubArray sa = di.data();
+            for(int i = 0; i < data.length; i ++) {
+                assert sa.raw[sa.start+i] == data[i];
+            }
+            di.release();
+        }
+        dm1.close();
+        tm1.close();
+
+        new File("/tmp/TestRecoveryAsyncSync.db").delete();
+        Logger.remove("/tmp/TestRecoveryAsyncSync");
+        new File("/tmp/TestRecoveryAsyncSync.xid").delete();
+    }
+
+    @Test
+    public void testFree() throws Exception {
+        TransactionManager tm0 = TransactionManager.create("/tmp/TestRecoveryFree");
+        DataManager dm0 = DataManager.create("/tmp/TestRecoveryFree", PageCache.PAGE_SIZE*10, tm0);
+        long sx = TransactionManagerImpl.SUPER_XID;
+
+        long a = dm0.insert(sx, RandomUtil.randomBytes(60));
+        long b = dm0.insert(sx, RandomUtil.randomBytes(60));
+        long c = dm0.insert(sx, RandomUtil.randomBytes(60));
+
+        // 页面末尾的空间被收回，下一次插入就在原来的位置
+        dm0.free(c);
+        assert dm0.read(c) == null;
+        long d = dm0.insert(sx, RandomUtil.randomBytes(60));
+        assert d == c;
+
+        // 中间的空间收不回来
+        dm0.free(a);
+        long e = dm0.insert(sx, RandomUtil.randomBytes(60));
+        assert e > d;
+
+        // 所有 DataItem 都失效时，整个页面都收回
+        dm0.free(b);
+        dm0.free(d);
+        dm0.free(e);
+        byte[] data = RandomUtil.randomBytes(60);
+        long f = dm0.insert(sx, data);
+        assert f == a;
+
+        // 不关闭直接重新打开，模拟崩溃，重做时收回的空间同样要收回
+        DataManager dm1 = DataManager.open("/tmp/TestRecoveryFree", PageCache.PAGE_SIZE*10, tm0);
+        DataItem di = dm1.read(f);
+        SubArray sa = di.data();
+        for(int i = 0; i < data.length; i ++) {
+            assert sa.raw[sa.start+i] == data[i];
+        }
+        di.release();
+        assert dm1.read(b) == null && dm1.read(d) == null && dm1.read(e) == null;
+        assert dm1.insert(sx, RandomUtil.randomBytes(60)) == b;
+        dm1.close();
+
+        new File("/tmp/TestRecoveryFree.db").delete();
+        Logger.remove("/tmp/TestRecoveryFree");
+        new File("/tmp/TestRecoveryFree.xid").delete();
+    }
 }
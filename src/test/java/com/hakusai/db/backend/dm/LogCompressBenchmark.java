@@ -0,0 +1,88 @@
+package com.hakusai.db.backend.dm;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.hakusai.db.backend.dm.logger.Logger;
+import com.hakusai.db.backend.dm.logger.LoggerImpl;
+import com.hakusai.db.backend.dm.pageCache.PageCache;
+import com.hakusai.db.backend.tm.TransactionManager;
+import com.hakusai.db.backend.tm.TransactionManagerImpl;
+
+/**
+ * 日志压缩的压测：分别在不压缩和按默认阈值压缩的情况下插入 INSERTS（默认 20000）行宽字符串行，
+ * 对比日志的总字节数，以及每次插入花费的 CPU 时间（当前线程的 CPU 时间，不含等待 fsync 的时间）。
+ * 每行由 ROW_SIZE 字节随机挑选的英文单词组成，和表中的字符串字段相当。
+ *
+ * 运行方式：mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.hakusai.db.backend.dm.LogCompressBenchmark -Dexec.args=20000
+ */
+public class LogCompressBenchmark {
+
+    private static final String PATH = "/tmp/log_compress_bench";
+    private static final long MEM = 64L << 20;
+    private static final int ROW_SIZE = 2000;
+    private static final String[] WORDS = {
+        "select", "insert", "update", "delete", "table", "where", "value", "index", "commit", "abort",
+        "hakusai", "database", "transaction", "version", "page", "logger", "recover", "snapshot",
+    };
+
+    public static void main(String[] args) throws Exception {
+        int inserts = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        byte[][] rows = new byte[1024][];
+        for(int i = 0; i < rows.length; i ++) {
+            rows[i] = row();
+        }
+        System.out.printf("inserts: %d, row size: %d%n", inserts, ROW_SIZE);
+        run("uncompressed", 0, rows, inserts);
+        run("compressed", LoggerImpl.DEFAULT_COMPRESS_THRESHOLD, rows, inserts);
+        System.exit(0);
+    }
+
+    private static void run(String name, int threshold, byte[][] rows, int inserts) throws Exception {
+        cleanup();
+        TransactionManager tm = TransactionManager.create(PATH);
+        PageCache pc = PageCache.create(PATH, MEM, PageCache.PAGE_SIZE, false);
+        LoggerImpl lg = (LoggerImpl)Logger.create(PATH);
+        lg.setCompressThreshold(threshold);
+        DataManagerImpl dm = new DataManagerImpl(pc, lg, tm);
+        dm.initPageOne();
+
+        ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+        long cpu = mx.getCurrentThreadCpuTime();
+        long begin = System.nanoTime();
+        for(int i = 0; i < inserts; i ++) {
+            dm.insert(TransactionManagerImpl.SUPER_XID, rows[i % rows.length]);
+        }
+        long elapsed = System.nanoTime() - begin;
+        cpu = mx.getCurrentThreadCpuTime() - cpu;
+        dm.close();
+        tm.close();
+
+        long logBytes = 0;
+        File prefix = new File(PATH + ".log.");
+        File[] files = prefix.getParentFile().listFiles((dir, n) -> n.startsWith(prefix.getName()));
+        for(File f : files) {
+            logBytes += f.length();
+        }
+        System.out.printf("%-14s log %8.1f MB (%6.0f B/insert), cpu %6.1f us/insert, elapsed %6d ms%n", name,
+            logBytes / 1048576.0, (double)logBytes / inserts, cpu / 1000.0 / inserts, elapsed / 1000000);
+        cleanup();
+    }
+
+    private static byte[] row() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        StringBuilder sb = new StringBuilder();
+        while(sb.length() < ROW_SIZE) {
+            sb.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+        }
+        return sb.substring(0, ROW_SIZE).getBytes();
+    }
+
+    private static void cleanup() {
+        new File(PATH + ".db").delete();
+        new File(PATH + ".xid").delete();
+        Logger.remove(PATH);
+    }
+}
@@ -9,6 +9,7 @@ import java.util.concurrent.locks.ReentrantLock;
 import com.hakusai.db.backend.common.SubArray;
 import com.hakusai.db.backend.dm.dataItem.DataItem;
 import com.hakusai.db.backend.dm.dataItem.MockDataItem;
+import com.hakusai.db.backend.dm.pageCache.PageCache;
 
 public class MockDataManager implements DataManager {
 
@@ -51,6 +52,32 @@ public class MockDataManager implements DataManager {
         }
     }
 
+    @Override
+    public void free(long uid) throws Exception {
+        lock.lock();
+        try {
+            cache.remove(uid);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int getPageSize() {
+        return PageCache.PAGE_SIZE;
+    }
+
+    @Override
+    public void prefetch(long uid) {}
+
+    @Override
+    public PageCache getPageCache() {
+        return null;
+    }
+
+    @Override
+    public void flushLog() {}
+
     @Override
     public void close() {}
     
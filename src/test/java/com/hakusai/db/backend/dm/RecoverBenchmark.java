@@ -0,0 +1,131 @@
+package com.hakusai.db.backend.dm;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.hakusai.db.backend.common.SubArray;
+import com.hakusai.db.backend.dm.dataItem.DataItem;
+import com.hakusai.db.backend.dm.logger.Logger;
+import com.hakusai.db.backend.dm.pageCache.PageCache;
+import com.hakusai.db.backend.tm.TransactionManager;
+import com.hakusai.db.backend.tm.TransactionManagerImpl;
+import com.hakusai.db.backend.utils.Panic;
+import com.hakusai.db.backend.utils.RandomUtil;
+
+/**
+ * 崩溃恢复的压测：用不同的重做线程数恢复同一个崩溃现场，对比恢复的耗时，重做阶段的耗时由 Recover 单独输出。
+ *
+ * 先插入 ROWS 行并正常关闭，保存此时的数据文件；再打开数据库，用 WRITERS 个线程做 UPDATES（默认 200000）次更新，
+ * 不关闭，把日志和 XID 文件复制出来，和保存的数据文件一起作为崩溃现场。
+ * 数据文件停留在更新之前，更新日志的 LSN 都大于页面的 PageLSN，重做时每一条都要真正执行。
+ * 更新期间不做检查点，否则检查点之前的日志段会被删除，和保存的数据文件对不上。
+ *
+ * 运行方式：mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.hakusai.db.backend.dm.RecoverBenchmark -Dexec.args=200000
+ */
+public class RecoverBenchmark {
+
+    private static final String PATH = "/tmp/recover_bench";
+    private static final String RUN_PATH = "/tmp/recover_bench_run";
+    private static final long MEM = 64L << 20;
+    private static final int ROWS = 100000;
+    private static final int ROW_SIZE = 200;
+    private static final int WRITERS = 64;
+    private static final int[] THREADS = {1, 2, 4, 8};
+
+    public static void main(String[] args) throws Exception {
+        int updates = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        cleanup(PATH);
+
+        TransactionManager tm = TransactionManager.create(PATH);
+        DataManager dm = DataManager.create(PATH, MEM, tm);
+        long[] uids = new long[ROWS];
+        for(int i = 0; i < ROWS; i ++) {
+            uids[i] = dm.insert(TransactionManagerImpl.SUPER_XID, RandomUtil.randomBytes(ROW_SIZE));
+        }
+        dm.close();
+        copy(new File(PATH + ".db"), new File(PATH + ".db.snapshot"));
+
+        PageCache pc = PageCache.open(PATH, MEM);
+        Logger lg = Logger.open(PATH);
+        DataManagerImpl dmi = new DataManagerImpl(pc, lg, tm);
+        dmi.loadCheckPageOne();
+        dmi.fillPageIndex();
+        update(dmi, uids, updates);
+        // 崩溃现场：更新之前的数据文件，加上完整的日志
+        copy(new File(PATH + ".xid"), new File(PATH + ".xid.snapshot"));
+        for(File f : logFiles(PATH)) {
+            copy(f, new File(f.getPath().replace(PATH, PATH + ".snapshot")));
+        }
+        System.out.printf("rows: %d, updates: %d%n", ROWS, updates);
+
+        for(int threads : THREADS) {
+            cleanup(RUN_PATH);
+            copy(new File(PATH + ".db.snapshot"), new File(RUN_PATH + ".db"));
+            copy(new File(PATH + ".xid.snapshot"), new File(RUN_PATH + ".xid"));
+            for(File f : logFiles(PATH + ".snapshot")) {
+                copy(f, new File(f.getPath().replace(PATH + ".snapshot", RUN_PATH)));
+            }
+
+            TransactionManager runTm = TransactionManager.open(RUN_PATH);
+            PageCache runPc = PageCache.open(RUN_PATH, MEM);
+            Logger runLg = Logger.open(RUN_PATH);
+            long begin = System.nanoTime();
+            Recover.recover(runTm, runLg, runPc, threads);
+            long elapsed = System.nanoTime() - begin;
+            System.out.printf("threads %d: recover %d ms%n", threads, elapsed / 1000000);
+            runPc.close();
+            runLg.close();
+            runTm.close();
+        }
+        cleanup(RUN_PATH);
+        cleanup(PATH);
+        cleanup(PATH + ".snapshot");
+        new File(PATH + ".db.snapshot").delete();
+        new File(PATH + ".xid.snapshot").delete();
+        System.exit(0);
+    }
+
+    private static void update(DataManager dm, long[] uids, int updates) throws Exception {
+        CountDownLatch done = new CountDownLatch(WRITERS);
+        for(int i = 0; i < WRITERS; i ++) {
+            new Thread(() -> {
+                try {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    byte[] data = new byte[ROW_SIZE];
+                    for(int j = 0; j < updates / WRITERS; j ++) {
+                        random.nextBytes(data);
+                        DataItem di = dm.read(uids[random.nextInt(uids.length)]);
+                        di.before();
+                        SubArray sa = di.data();
+                        System.arraycopy(data, 0, sa.raw, sa.start, ROW_SIZE);
+                        di.after(TransactionManagerImpl.SUPER_XID);
+                        di.release();
+                    }
+                } catch (Exception e) {
+                    Panic.panic(e);
+                }
+                done.countDown();
+            }).start();
+        }
+        done.await();
+    }
+
+    private static File[] logFiles(String path) {
+        File prefix = new File(path + ".log.");
+        File[] files = prefix.getParentFile().listFiles((dir, name) -> name.startsWith(prefix.getName()));
+        return files == null ? new File[0] : files;
+    }
+
+    private static void copy(File from, File to) throws Exception {
+        Files.copy(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static void cleanup(String path) {
+        new File(path + ".db").delete();
+        new File(path + ".xid").delete();
+        Logger.remove(path);
+    }
+}
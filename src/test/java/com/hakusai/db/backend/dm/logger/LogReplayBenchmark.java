@@ -0,0 +1,94 @@
+package com.hakusai.db.backend.dm.logger;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.hakusai.db.backend.common.SubArray;
+import com.hakusai.db.backend.utils.Panic;
+
+/**
+ * 日志回放压测：先写出 SIZE_MB（默认 1024）MB 的日志，再分别用 Logger.next() 和 LogReader.next() 从头读一遍，
+ * 对比读取的吞吐。日志长度在 MIN_RECORD ~ MAX_RECORD 之间随机，和插入、更新日志的大小相当。
+ * 写日志时用 WRITERS 个线程并发写，借助组提交减少 fsync 的次数。
+ *
+ * 运行方式：mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.hakusai.db.backend.dm.logger.LogReplayBenchmark -Dexec.args=1024
+ */
+public class LogReplayBenchmark {
+
+    private static final String PATH = "/tmp/log_replay_bench";
+    private static final int MIN_RECORD = 64;
+    private static final int MAX_RECORD = 1024;
+    private static final int WRITERS = 64;
+
+    public static void main(String[] args) throws Exception {
+        long sizeMB = args.length > 0 ? Long.parseLong(args[0]) : 1024;
+        Logger.remove(PATH);
+        Logger lg = Logger.create(PATH);
+        long written = write(lg, sizeMB << 20);
+        lg.close();
+        System.out.printf("log size: %d MB, records: %d%n", sizeMB, written);
+
+        lg = Logger.open(PATH);
+        lg.rewind();
+        long begin = System.nanoTime();
+        long n = 0, bytes = 0;
+        byte[] log;
+        while((log = lg.next()) != null) {
+            n ++;
+            bytes += log.length;
+        }
+        report("Logger.next()", n, bytes, System.nanoTime() - begin);
+
+        LogReader reader = lg.reader();
+        begin = System.nanoTime();
+        n = 0;
+        bytes = 0;
+        SubArray sa;
+        while((sa = reader.next()) != null) {
+            n ++;
+            bytes += sa.end - sa.start;
+        }
+        report("LogReader.next()", n, bytes, System.nanoTime() - begin);
+        lg.close();
+        Logger.remove(PATH);
+    }
+
+    private static void report(String name, long records, long bytes, long elapsed) {
+        System.out.printf("%-18s %10d records %10.1f MB/s %12.0f records/s%n", name, records,
+            bytes / 1048576.0 / (elapsed / 1e9), records / (elapsed / 1e9));
+    }
+
+    private static long write(Logger lg, long totalBytes) throws Exception {
+        long perThread = totalBytes / WRITERS;
+        long[] counts = new long[WRITERS];
+        CountDownLatch done = new CountDownLatch(WRITERS);
+        for(int i = 0; i < WRITERS; i ++) {
+            final int id = i;
+            new Thread(() -> {
+                try {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    byte[] data = new byte[MAX_RECORD];
+                    random.nextBytes(data);
+                    long bytes = 0;
+                    while(bytes < perThread) {
+                        int size = random.nextInt(MIN_RECORD, MAX_RECORD + 1);
+                        byte[] rec = new byte[size];
+                        System.arraycopy(data, 0, rec, 0, size);
+                        lg.log(rec);
+                        bytes += size;
+                        counts[id] ++;
+                    }
+                } catch (Exception e) {
+                    Panic.panic(e);
+                }
+                done.countDown();
+            }).start();
+        }
+        done.await();
+        long total = 0;
+        for(long c : counts) {
+            total += c;
+        }
+        return total;
+    }
+}
@@ -0,0 +1,56 @@
+package com.hakusai.db.backend.dm.logger;
+
+import java.util.concurrent.CountDownLatch;
+
+import com.hakusai.db.backend.utils.Panic;
+
+/**
+ * 日志写入压测：1、8、64 个线程并发调用 log()，每条日志 RECORD_SIZE 字节。
+ * 输出每秒写入的日志条数，以及平均每次 fsync 提交了多少条日志（组提交的批大小）。
+ *
+ * 运行方式：mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.hakusai.db.backend.dm.logger.LoggerBenchmark
+ */
+public class LoggerBenchmark {
+
+    private static final String PATH = "/tmp/logger_bench";
+    private static final int RECORD_SIZE = 128;
+    private static final int LOGS_TOTAL = 12800;
+
+    public static void main(String[] args) throws Exception {
+        int[] threads = {1, 8, 64};
+        System.out.printf("%-8s %16s %16s%n", "threads", "logs/s", "logs/fsync");
+        for(int t : threads) {
+            Logger.remove(PATH);
+            LoggerImpl lg = (LoggerImpl)Logger.create(PATH);
+            double throughput = run(lg, t);
+            System.out.printf("%-8d %16.1f %16.1f%n", t, throughput, (double)LOGS_TOTAL / lg.getSyncs());
+            lg.close();
+        }
+        Logger.remove(PATH);
+    }
+
+    private static double run(Logger lg, int noThreads) throws Exception {
+        int perThread = LOGS_TOTAL / noThreads;
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(noThreads);
+        for(int i = 0; i < noThreads; i ++) {
+            new Thread(() -> {
+                try {
+                    start.await();
+                    byte[] data = new byte[RECORD_SIZE];
+                    for(int j = 0; j < perThread; j ++) {
+                        lg.log(data);
+                    }
+                } catch (Exception e) {
+                    Panic.panic(e);
+                }
+                done.countDown();
+            }).start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - begin;
+        return (double)perThread * noThreads / (elapsed / 1e9);
+    }
+}
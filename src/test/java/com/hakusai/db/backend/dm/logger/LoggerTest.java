@@ -1,9 +1,18 @@
 package com.hakusai.db.backend.dm.logger;
 
-import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
 
 import org.junit.Test;
 
+import com.hakusai.db.backend.common.SubArray;
+import com.hakusai.db.backend.utils.RandomUtil;
+
 public class LoggerTest {
     @Test
     public void testLogger() {
@@ -43,6 +52,181 @@ public class LoggerTest {
 
         lg.close();
 
-        assert new File("/tmp/logger_test.log").delete();
+        Logger.remove("/tmp/logger_test");
+    }
+
+    @Test
+    public void testConcurrentLog() throws Exception {
+        Logger.remove("/tmp/logger_concurrent_test");
+        LoggerImpl lg = (LoggerImpl)Logger.create("/tmp/logger_concurrent_test");
+        int noThreads = 8, noLogs = 200;
+        CountDownLatch done = new CountDownLatch(noThreads);
+        for(int i = 0; i < noThreads; i ++) {
+            final int id = i;
+            new Thread(() -> {
+                for(int j = 0; j < noLogs; j ++) {
+                    lg.log((id + "-" + j).getBytes());
+                }
+                done.countDown();
+            }).start();
+        }
+        done.await();
+        assert lg.getSyncs() <= noThreads * noLogs;
+        lg.close();
+
+        Logger reopened = Logger.open("/tmp/logger_concurrent_test");
+        reopened.rewind();
+        Set<String> logs = new HashSet<>();
+        byte[] log;
+        while((log = reopened.next()) != null) {
+            logs.add(new String(log));
+        }
+        reopened.close();
+        assert logs.size() == noThreads * noLogs;
+        for(int i = 0; i < noThreads; i ++) {
+            for(int j = 0; j < noLogs; j ++) {
+                assert logs.contains(i + "-" + j);
+            }
+        }
+
+        Logger.remove("/tmp/logger_concurrent_test");
+    }
+
+    @Test
+    public void testBadTail() throws Exception {
+        Logger.remove("/tmp/logger_tail_test");
+        Logger lg = Logger.create("/tmp/logger_tail_test");
+        long lsn1 = lg.log("aaa".getBytes());
+        long lsn2 = lg.log("bbb".getBytes());
+        long lsn3 = lg.log("ccc".getBytes());
+        assert lsn1 < lsn2 && lsn2 < lsn3;
+        lg.close();
+
+        // 模拟最后一条日志只写了一半
+        try(RandomAccessFile raf = new RandomAccessFile(LoggerImpl.segmentFile("/tmp/logger_tail_test", 0), "rw")) {
+            raf.setLength(raf.length() - 1);
+        }
+
+        lg = Logger.open("/tmp/logger_tail_test");
+        // BadTail 被截掉后，新日志接着写在它原来的位置
+        assert lg.log("ddd".getBytes()) == lsn3;
+        lg.close();
+
+        lg = Logger.open("/tmp/logger_tail_test");
+        lg.rewind();
+        assert "aaa".equals(new String(lg.next()));
+        assert "bbb".equals(new String(lg.next()));
+        assert "ddd".equals(new String(lg.next()));
+        assert lg.next() == null;
+        lg.close();
+
+        Logger.remove("/tmp/logger_tail_test");
+    }
+
+    @Test
+    public void testSegments() throws Exception {
+        Logger.remove("/tmp/logger_segment_test");
+        LoggerImpl lg = (LoggerImpl)Logger.create("/tmp/logger_segment_test", 256);
+        long[] lsns = new long[50];
+        for(int i = 0; i < 50; i ++) {
+            lsns[i] = lg.log(("log-" + i).getBytes());
+        }
+        assert lg.getSegmentNumber() > 1;
+        lg.close();
+
+        lg = (LoggerImpl)Logger.open("/tmp/logger_segment_test", 256);
+        lg.rewind();
+        for(int i = 0; i < 50; i ++) {
+            assert ("log-" + i).equals(new String(lg.next()));
+            assert lg.getLastLSN() == lsns[i];
+        }
+        assert lg.next() == null;
+
+        // 删除第 30 条日志之前的段，第 30 条及之后的日志仍然可以读到
+        int before = lg.getSegmentNumber();
+        lg.removeBefore(lsns[30]);
+        assert lg.getSegmentNumber() < before;
+        assert LoggerImpl.listSegments("/tmp/logger_segment_test").size() == lg.getSegmentNumber();
+        lg.rewind();
+        int first = Integer.parseInt(new String(lg.next()).substring(4));
+        assert first <= 30;
+        for(int i = first + 1; i < 50; i ++) {
+            assert ("log-" + i).equals(new String(lg.next()));
+        }
+        assert lg.next() == null;
+        lg.close();
+
+        Logger.remove("/tmp/logger_segment_test");
+    }
+
+    @Test
+    public void testReader() throws Exception {
+        Logger.remove("/tmp/logger_reader_test");
+        Logger lg = Logger.create("/tmp/logger_reader_test", 4096);
+        List<byte[]> logs = new ArrayList<>();
+        List<Long> lsns = new ArrayList<>();
+        // 包括一条比段和读缓冲区都大的日志
+        int[] sizes = {10, 3000, 0, 100, LogReader.BUFFER_SIZE + 1000, 50, 2000, 2000, 2000};
+        for(int size : sizes) {
+            byte[] data = RandomUtil.randomBytes(size);
+            logs.add(data);
+            lsns.add(lg.log(data));
+        }
+
+        LogReader reader = lg.reader();
+        for(int round = 0; round < 2; round ++) {
+            for(int i = 0; i < logs.size(); i ++) {
+                SubArray sa = reader.next();
+                assert sa != null;
+                assert Arrays.equals(logs.get(i), Arrays.copyOfRange(sa.raw, sa.start, sa.end));
+                assert reader.getLastLSN() == lsns.get(i);
+            }
+            assert reader.next() == null;
+            reader.rewind();
+        }
+        lg.close();
+
+        Logger.remove("/tmp/logger_reader_test");
+    }
+
+    @Test
+    public void testCompress() throws Exception {
+        Logger.remove("/tmp/logger_compress_test");
+        LoggerImpl lg = (LoggerImpl)Logger.create("/tmp/logger_compress_test");
+        lg.setCompressThreshold(100);
+        byte[] text = new byte[4000];
+        for(int i = 0; i < text.length; i ++) {
+            text[i] = (byte)('a' + i % 7);
+        }
+        // 可压缩的长日志、压缩不了的随机长日志、不到阈值的短日志、比读缓冲区还大的日志
+        byte[] huge = new byte[LogReader.BUFFER_SIZE + 1000];
+        Arrays.fill(huge, (byte)'x');
+        byte[][] logs = {text, RandomUtil.randomBytes(4000), "short".getBytes(), huge, text};
+        List<Long> lsns = new ArrayList<>();
+        for(byte[] log : logs) {
+            lsns.add(lg.log(log));
+        }
+        // 压缩过的日志在日志空间中占得更少
+        assert lsns.get(1) - lsns.get(0) < text.length / 2;
+        assert lsns.get(2) - lsns.get(1) > 4000;
+        lg.close();
+
+        lg = (LoggerImpl)Logger.open("/tmp/logger_compress_test");
+        lg.rewind();
+        for(int i = 0; i < logs.length; i ++) {
+            assert Arrays.equals(logs[i], lg.next());
+            assert lg.getLastLSN() == lsns.get(i);
+        }
+        assert lg.next() == null;
+
+        // 按 LSN 随机读同样会解压
+        LogReader reader = lg.reader();
+        SubArray sa = reader.read(lsns.get(3));
+        assert Arrays.equals(huge, Arrays.copyOfRange(sa.raw, sa.start, sa.end));
+        sa = reader.read(lsns.get(0));
+        assert Arrays.equals(text, Arrays.copyOfRange(sa.raw, sa.start, sa.end));
+        lg.close();
+
+        Logger.remove("/tmp/logger_compress_test");
     }
 }
@@ -5,6 +5,7 @@ import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongConsumer;
 
 import com.hakusai.db.backend.dm.page.MockPage;
 import com.hakusai.db.backend.dm.page.Page;
@@ -52,7 +53,44 @@ public class MockPageCache implements PageCache {
         return noPages.intValue();
     }
 
+    @Override
+    public int getPageSize() {
+        return PAGE_SIZE;
+    }
+
     @Override
     public void flushPage(Page pg) {}
+
+    @Override
+    public void prefetch(int pgno, int count) {}
+
+    @Override
+    public void flushAll() {}
+
+    @Override
+    public long getHits() {
+        return 0;
+    }
+
+    @Override
+    public long getMisses() {
+        return 0;
+    }
+
+    @Override
+    public long getEvictions() {
+        return 0;
+    }
+
+    @Override
+    public long getPrefetches() {
+        return 0;
+    }
+
+    @Override
+    public void setCheckpointer(Runnable checkpointer, long interval) {}
+
+    @Override
+    public void setLogFlusher(LongConsumer logFlusher) {}
     
 }
@@ -0,0 +1,97 @@
+package com.hakusai.db.backend.dm.pageCache;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.hakusai.db.backend.utils.Panic;
+
+/**
+ * 页面缓存未命中压测：缓冲池只有 MEM_FRAMES 帧，随机访问 PAGES 个页面，几乎每次 getPage 都要读文件。
+ * 对比两种情况在 1~32 线程下的吞吐：
+ * serialized 在每次 getPage 外面套一把全局锁，模拟原先 position()+read() 共用 fileLock 时磁盘 I/O 被串行化；
+ * positional 直接使用带 offset 的读写，不同页面的未命中可以并行。
+ * 传入参数 mmap 时使用内存映射的读写后端。
+ * 最后单线程统计每次未命中平均分配的堆内存（依赖 HotSpot 的 com.sun.management.ThreadMXBean）。
+ *
+ * 运行方式：mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.hakusai.db.backend.dm.pageCache.PageCacheMissBenchmark
+ */
+public class PageCacheMissBenchmark {
+
+    private static final String PATH = "/tmp/pcacher_miss_bench";
+    private static final int PAGES = 4096;
+    private static final int MEM_FRAMES = 64;
+    private static final int OPS_PER_THREAD = 20000;
+
+    public static void main(String[] args) throws Exception {
+        new File(PATH + PageCacheImpl.DB_SUFFIX).delete();
+        boolean mmap = args.length > 0 && "mmap".equals(args[0]);
+        PageCacheImpl pc = PageCache.create(PATH, (long)PageCache.PAGE_SIZE * MEM_FRAMES, mmap);
+        byte[] init = new byte[PageCache.PAGE_SIZE];
+        for(int i = 0; i < PAGES; i ++) {
+            pc.newPage(init);
+        }
+
+        int[] threads = {1, 2, 4, 8, 16, 32};
+        System.out.printf("%-8s %22s %22s%n", "threads", "serialized (pages/ms)", "positional (pages/ms)");
+        for(int t : threads) {
+            double serialized = run(pc, t, new ReentrantLock());
+            double positional = run(pc, t, null);
+            System.out.printf("%-8d %22.1f %22.1f%n", t, serialized, positional);
+        }
+        System.out.printf("hits=%d misses=%d evictions=%d%n", pc.getHits(), pc.getMisses(), pc.getEvictions());
+        System.out.printf("allocated per miss: %.1f B%n", allocationPerMiss(pc));
+        pc.close();
+        new File(PATH + PageCacheImpl.DB_SUFFIX).delete();
+    }
+
+    private static double allocationPerMiss(PageCacheImpl pc) throws Exception {
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+        long tid = Thread.currentThread().getId();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long misses = pc.getMisses();
+        long before = bean.getThreadAllocatedBytes(tid);
+        for(int j = 0; j < OPS_PER_THREAD; j ++) {
+            pc.getPage(random.nextInt(PAGES) + 1).release();
+        }
+        long allocated = bean.getThreadAllocatedBytes(tid) - before;
+        return (double)allocated / (pc.getMisses() - misses);
+    }
+
+    private static double run(PageCache pc, int noThreads, Lock global) throws Exception {
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(noThreads);
+        for(int i = 0; i < noThreads; i ++) {
+            new Thread(() -> {
+                try {
+                    start.await();
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    for(int j = 0; j < OPS_PER_THREAD; j ++) {
+                        int pgno = random.nextInt(PAGES) + 1;
+                        if(global != null) {
+                            global.lock();
+                        }
+                        try {
+                            pc.getPage(pgno).release();
+                        } finally {
+                            if(global != null) {
+                                global.unlock();
+                            }
+                        }
+                    }
+                } catch (Exception e) {
+                    Panic.panic(e);
+                }
+                done.countDown();
+            }).start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - begin;
+        return (double)noThreads * OPS_PER_THREAD / (elapsed / 1e6);
+    }
+}
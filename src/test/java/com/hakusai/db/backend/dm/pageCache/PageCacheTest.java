@@ -1,15 +1,21 @@
 package com.hakusai.db.backend.dm.pageCache;
 
 import java.io.File;
+import java.io.RandomAccessFile;
 import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 import com.hakusai.db.backend.dm.page.Page;
+import com.hakusai.db.backend.dm.page.PageOne;
+import com.hakusai.db.backend.dm.page.PageX;
 import com.hakusai.db.backend.utils.Panic;
 import com.hakusai.db.backend.utils.RandomUtil;
 import org.junit.Test;
@@ -42,9 +48,63 @@ public class PageCacheTest {
         assert new File("/tmp/pcacher_simple_test0.db").delete();
     }
 
+    @Test
+    public void testMmapPageCache() throws Exception {
+        PageCache pc = PageCache.create("/tmp/pcacher_mmap_test0", PageCache.PAGE_SIZE * 10, true);
+        for(int i = 0 ; i < 100; i ++) {
+            byte[] tmp = new byte[PageCache.PAGE_SIZE];
+            tmp[0] = (byte)i;
+            int pgno = pc.newPage(tmp);
+            // 新页面直接写进映射区，随后经映射区读出
+            Page pg = pc.getPage(pgno);
+            assert pg.getData()[0] == (byte)i;
+            pg.getData()[1] = (byte)i;
+            pg.setDirty(true);
+            pg.release();
+        }
+        // 整段映射把文件撑大到段的边界，关闭时截回实际的长度
+        assert new File("/tmp/pcacher_mmap_test0.db").length() == MappedPageFile.CHUNK_SIZE;
+        assert pc.getPageNumber() == 100;
+        pc.close();
+        assert new File("/tmp/pcacher_mmap_test0.db").length() == 100L * PageCache.PAGE_SIZE;
+
+        // 两种方式读出的内容一致
+        for(boolean mmap : new boolean[] {true, false}) {
+            pc = PageCache.open("/tmp/pcacher_mmap_test0", PageCache.PAGE_SIZE * 10, mmap);
+            for(int i = 1; i <= 100; i ++) {
+                Page pg = pc.getPage(i);
+                assert pg.getData()[0] == (byte)(i-1);
+                assert pg.getData()[1] == (byte)(i-1);
+                pg.release();
+            }
+            pc.close();
+        }
+
+        assert new File("/tmp/pcacher_mmap_test0.db").delete();
+    }
+
     private PageCache pc1;
     private CountDownLatch cdl1;
     private AtomicInteger noPages1;
+    @Test
+    public void testMmapPadding() throws Exception {
+        PageCache pc = PageCache.create("/tmp/pcacher_mmap_test1", PageCache.PAGE_SIZE * 10, true);
+        pc.newPage(PageOne.InitRaw(PageCache.PAGE_SIZE));
+        for(int i = 0; i < 20; i ++) {
+            pc.newPage(PageX.initRaw(PageCache.PAGE_SIZE));
+        }
+        pc.flushAll();
+
+        // 不关闭直接重新打开，模拟崩溃：末尾全为 0 的填充被去掉
+        assert new File("/tmp/pcacher_mmap_test1.db").length() == MappedPageFile.CHUNK_SIZE;
+        PageCache reopened = PageCache.open("/tmp/pcacher_mmap_test1", PageCache.PAGE_SIZE * 10, true);
+        assert reopened.getPageNumber() == 21;
+        reopened.close();
+        assert new File("/tmp/pcacher_mmap_test1.db").length() == 21L * PageCache.PAGE_SIZE;
+        pc.close();
+        assert new File("/tmp/pcacher_mmap_test1.db").delete();
+    }
+
     @Test
     public void testPageCacheMultiSimple() throws Exception {
         pc1 = PageCache.create("/tmp/pcacher_simple_test1", PageCache.PAGE_SIZE * 50);
@@ -180,4 +240,299 @@ public class PageCacheTest {
         }
         cdl2.countDown();
     }
+
+    @Test
+    public void testBufferPoolScanResistance() throws Exception {
+        PageCacheImpl pc = PageCache.create("/tmp/pcacher_bp_test0", PageCache.PAGE_SIZE * 10);
+        for(int i = 0; i < 40; i ++) {
+            pc.newPage(new byte[PageCache.PAGE_SIZE]);
+        }
+        // 第一次访问进入 probation，被挤出后进入 ghosts，在 ghosts 中再次被访问时直接进入 hot 区
+        pc.getPage(1).release();
+        for(int i = 2; i <= 14; i ++) {
+            pc.getPage(i).release();
+        }
+        pc.getPage(1).release();
+
+        // 一次大范围扫描之后，热点页面仍然常驻
+        for(int i = 15; i <= 40; i ++) {
+            pc.getPage(i).release();
+        }
+        long misses = pc.getMisses();
+        pc.getPage(1).release();
+        assert pc.getMisses() == misses;
+        assert pc.getEvictions() > 0;
+        pc.close();
+        assert new File("/tmp/pcacher_bp_test0.db").delete();
+    }
+
+    @Test
+    public void testBufferPoolBlockWhenAllPinned() throws Exception {
+        PageCache pc = PageCache.create("/tmp/pcacher_bp_test1", PageCache.PAGE_SIZE * 10);
+        for(int i = 0; i < 11; i ++) {
+            pc.newPage(new byte[PageCache.PAGE_SIZE]);
+        }
+        List<Page> pinned = new ArrayList<>();
+        for(int i = 1; i <= 10; i ++) {
+            pinned.add(pc.getPage(i));
+        }
+        CountDownLatch got = new CountDownLatch(1);
+        new Thread(() -> {
+            try {
+                pc.getPage(11).release();
+            } catch (Exception e) {
+                Panic.panic(e);
+            }
+            got.countDown();
+        }).start();
+        Thread.sleep(100);
+        assert got.getCount() == 1;
+        pinned.get(0).release();
+        got.await();
+        for(int i = 1; i < pinned.size(); i ++) {
+            pinned.get(i).release();
+        }
+        pc.close();
+        assert new File("/tmp/pcacher_bp_test1.db").delete();
+    }
+
+    // 记录 sync 次数的 PageFile
+    static class CountingPageFile implements PageFile {
+        PageFile pf;
+        AtomicInteger syncs = new AtomicInteger(0);
+
+        CountingPageFile(PageFile pf) {
+            this.pf = pf;
+        }
+
+        public long length() { return pf.length(); }
+        public void read(long offset, byte[] dst, int len) { pf.read(offset, dst, len); }
+        public void write(long offset, byte[] src) { pf.write(offset, src); }
+        public void sync() { syncs.incrementAndGet(); pf.sync(); }
+        public void truncate(long length) { pf.truncate(length); }
+        public void close() { pf.close(); }
+    }
+
+    @Test
+    public void testFlushAllSyncsEvictedPages() throws Exception {
+        File f = new File("/tmp/pcacher_sync_test0.db");
+        f.delete();
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        CountingPageFile pf = new CountingPageFile(new ChannelPageFile(raf, raf.getChannel()));
+        PageCacheImpl pc = new PageCacheImpl(pf, PageCache.PAGE_SIZE, 10);
+        for(int i = 0; i < 12; i ++) {
+            pc.newPage(new byte[PageCache.PAGE_SIZE]);
+        }
+        int[] order = {2, 11, 4, 9, 6, 7, 8, 5, 10, 3};
+        for(int pgno : order) {
+            pc.getPage(pgno).release();
+        }
+        Page pg = pc.getPage(2);
+        pg.getData()[0] = (byte)1;
+        pg.setDirty(true);
+        pg.release();
+        // 第 2 页被驱逐，只 write 没有 fsync，缓冲池中已经没有脏页面
+        pc.getPage(12).release();
+
+        pf.syncs.set(0);
+        pc.flushAll();
+        assert pf.syncs.get() > 0;
+        pc.close();
+        assert f.delete();
+    }
+
+    @Test
+    public void testEvictionWritesOutsideLock() throws Exception {
+        PageCacheImpl pc = PageCache.create("/tmp/pcacher_evict_test0", PageCache.PAGE_SIZE * 10);
+        for(int i = 0; i < 12; i ++) {
+            pc.newPage(PageX.initRaw(PageCache.PAGE_SIZE));
+        }
+        // 不按顺序访问，避免触发预读；第 2 页最先进入 probation 队列，最先被驱逐
+        int[] order = {2, 11, 4, 9, 6, 7, 8, 5, 10, 3};
+        for(int pgno : order) {
+            pc.getPage(pgno).release();
+        }
+        Page pg = pc.getPage(2);
+        pg.getData()[PageCache.PAGE_SIZE - 1] = (byte)7;
+        PageX.setPageLSN(pg, 5);
+        pg.setDirty(true);
+        pg.release();
+
+        // 驱逐写回之前要等日志落盘，这里让它一直等着
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch logFlushed = new CountDownLatch(1);
+        pc.setLogFlusher(lsn -> {
+            if(!Thread.currentThread().getName().equals("page-flusher")) {
+                entered.countDown();
+                try {
+                    logFlushed.await();
+                } catch (InterruptedException e) {
+                    Panic.panic(e);
+                }
+            }
+        });
+        CountDownLatch evicted = new CountDownLatch(1);
+        CountDownLatch reread = new CountDownLatch(1);
+        new Thread(() -> {
+            try {
+                pc.getPage(12).release();
+            } catch (Exception e) {
+                Panic.panic(e);
+            }
+            evicted.countDown();
+        }).start();
+        assert entered.await(5, TimeUnit.SECONDS);
+
+        // 写回期间其他页面照常访问，被写回的页面要等写完
+        Thread reader = new Thread(() -> {
+            try {
+                Page p = pc.getPage(2);
+                assert p.getData()[PageCache.PAGE_SIZE - 1] == (byte)7;
+                p.release();
+            } catch (Exception e) {
+                Panic.panic(e);
+            }
+            reread.countDown();
+        });
+        reader.start();
+        CountDownLatch hit = new CountDownLatch(1);
+        new Thread(() -> {
+            try {
+                pc.getPage(5).release();
+            } catch (Exception e) {
+                Panic.panic(e);
+            }
+            hit.countDown();
+        }).start();
+        assert hit.await(1, TimeUnit.SECONDS);
+        assert !reread.await(100, TimeUnit.MILLISECONDS);
+
+        logFlushed.countDown();
+        assert evicted.await(5, TimeUnit.SECONDS);
+        assert reread.await(5, TimeUnit.SECONDS);
+        pc.close();
+        assert new File("/tmp/pcacher_evict_test0.db").delete();
+    }
+
+    @Test
+    public void testFlushAllWaitsForEviction() throws Exception {
+        File f = new File("/tmp/pcacher_evict_test1.db");
+        f.delete();
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        CountingPageFile pf = new CountingPageFile(new ChannelPageFile(raf, raf.getChannel()));
+        PageCacheImpl pc = new PageCacheImpl(pf, PageCache.PAGE_SIZE, 10);
+        for(int i = 0; i < 12; i ++) {
+            pc.newPage(PageX.initRaw(PageCache.PAGE_SIZE));
+        }
+        int[] order = {2, 11, 4, 9, 6, 7, 8, 5, 10, 3};
+        for(int pgno : order) {
+            pc.getPage(pgno).release();
+        }
+        Page pg = pc.getPage(2);
+        pg.getData()[PageCache.PAGE_SIZE - 1] = (byte)7;
+        PageX.setPageLSN(pg, 5);
+        pg.setDirty(true);
+        pg.release();
+
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch logFlushed = new CountDownLatch(1);
+        pc.setLogFlusher(lsn -> {
+            if(!Thread.currentThread().getName().equals("page-flusher")) {
+                entered.countDown();
+                try {
+                    logFlushed.await();
+                } catch (InterruptedException e) {
+                    Panic.panic(e);
+                }
+            }
+        });
+        new Thread(() -> {
+            try {
+                pc.getPage(12).release();
+            } catch (Exception e) {
+                Panic.panic(e);
+            }
+        }).start();
+        assert entered.await(5, TimeUnit.SECONDS);
+
+        // 第 2 页正在驱逐写回，flushAll 要等它写完并 fsync 之后才能返回
+        CountDownLatch flushed = new CountDownLatch(1);
+        new Thread(() -> {
+            pc.flushAll();
+            flushed.countDown();
+        }).start();
+        assert !flushed.await(100, TimeUnit.MILLISECONDS);
+        int syncs = pf.syncs.get();
+        logFlushed.countDown();
+        assert flushed.await(5, TimeUnit.SECONDS);
+        assert pf.syncs.get() > syncs;
+        raf.seek(PageCache.PAGE_SIZE * 2 - 1);
+        assert raf.readByte() == (byte)7;
+        pc.close();
+        assert f.delete();
+    }
+
+    @Test
+    public void testBackgroundFlush() throws Exception {
+        PageCacheImpl pc = PageCache.create("/tmp/pcacher_flush_test0", PageCache.PAGE_SIZE * 10);
+        int pgno = pc.newPage(new byte[PageCache.PAGE_SIZE]);
+        Page pg = pc.getPage(pgno);
+        pg.getData()[0] = (byte)1;
+        pg.setDirty(true);
+        pg.release();
+
+        // 不驱逐、不关闭，脏页面也会被刷脏线程写回
+        boolean flushed = false;
+        try(RandomAccessFile raf = new RandomAccessFile("/tmp/pcacher_flush_test0.db", "r")) {
+            for(int i = 0; i < 100 && !flushed; i ++) {
+                Thread.sleep(50);
+                raf.seek(0);
+                flushed = raf.readByte() == (byte)1;
+            }
+        }
+        assert flushed;
+
+        CountDownLatch checkpointed = new CountDownLatch(1);
+        pc.setCheckpointer(checkpointed::countDown, 0);
+        assert checkpointed.await(5, TimeUnit.SECONDS);
+        pc.close();
+        assert new File("/tmp/pcacher_flush_test0.db").delete();
+    }
+
+    @Test
+    public void testReadAhead() throws Exception {
+        PageCacheImpl pc = PageCache.create("/tmp/pcacher_ra_test0", PageCache.PAGE_SIZE * 40);
+        for(int i = 0; i < 40; i ++) {
+            byte[] tmp = new byte[PageCache.PAGE_SIZE];
+            tmp[0] = (byte)i;
+            pc.newPage(tmp);
+        }
+        // 连续访问 1~3 之后触发预读，后面的页面不再未命中
+        for(int i = 1; i <= 3; i ++) {
+            pc.getPage(i).release();
+        }
+        for(int i = 0; i < 100 && pc.getPrefetches() == 0; i ++) {
+            Thread.sleep(10);
+        }
+        long misses = pc.getMisses();
+        Page pg = pc.getPage(4);
+        assert pg.getData()[0] == (byte)3;
+        pg.release();
+        assert pc.getMisses() == misses;
+
+        // 显式的预读提示
+        pc.prefetch(30, 2);
+        for(int i = 0; i < 100 && pc.getPrefetches() < 7; i ++) {
+            Thread.sleep(10);
+        }
+        misses = pc.getMisses();
+        for(int i = 30; i <= 31; i ++) {
+            pg = pc.getPage(i);
+            assert pg.getData()[0] == (byte)(i-1);
+            pg.release();
+        }
+        assert pc.getMisses() == misses;
+        pc.close();
+        assert new File("/tmp/pcacher_ra_test0.db").delete();
+    }
 }
@@ -22,4 +22,18 @@ public class PageIndexTest {
             }
         }
     }
+
+    @Test
+    public void testRemove() {
+        PageIndex pIndex = new PageIndex();
+        pIndex.add(2, 100);
+        pIndex.add(3, PageCache.PAGE_SIZE / 2);
+        PageInfo pi = pIndex.remove(3);
+        assert pi != null && pi.pgno == 3 && pi.freeSpace == PageCache.PAGE_SIZE / 2;
+        // 已经取出的页面，select 和 remove 都拿不到
+        assert pIndex.remove(3) == null;
+        assert pIndex.select(200) == null;
+        pIndex.add(3, PageCache.PAGE_SIZE);
+        assert pIndex.select(200).pgno == 3;
+    }
 }
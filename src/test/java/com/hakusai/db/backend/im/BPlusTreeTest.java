@@ -1,11 +1,14 @@
 package com.hakusai.db.backend.im;
 
 import java.io.File;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import com.hakusai.db.backend.dm.pageCache.PageCache;
 import com.hakusai.db.backend.tm.TransactionManager;
 import com.hakusai.db.backend.dm.DataManager;
+import com.hakusai.db.backend.dm.logger.Logger;
 import org.junit.Test;
 
 import com.hakusai.db.backend.tm.MockTransactionManager;
@@ -31,6 +34,121 @@ public class BPlusTreeTest {
         }
 
         assert new File("/tmp/TestTreeSingle.db").delete();
-        assert new File("/tmp/TestTreeSingle.log").delete();
+        Logger.remove("/tmp/TestTreeSingle");
+    }
+
+    @Test
+    public void testTreePageSizes() throws Exception {
+        for(int pageSize : new int[] {PageCache.MIN_PAGE_SIZE, PageCache.MAX_PAGE_SIZE}) {
+            String path = "/tmp/TestTreePageSize" + pageSize;
+            TransactionManager tm = new MockTransactionManager();
+            DataManager dm = DataManager.create(path, pageSize*20, pageSize, false, tm);
+
+            long root = BPlusTree.create(dm);
+            BPlusTree tree = BPlusTree.load(root, dm);
+            int lim = 3000;
+            for(int i = lim-1; i >= 0; i --) {
+                tree.insert(i, i);
+            }
+            dm.close();
+
+            // 重新打开时页面大小从文件中读出，节点的扇出也随之确定
+            dm = DataManager.open(path, pageSize*20, tm);
+            assert dm.getPageSize() == pageSize;
+            tree = BPlusTree.load(root, dm);
+            for(int i = 0; i < lim; i ++) {
+                List<Long> uids = tree.search(i);
+                assert uids.size() == 1;
+                assert uids.get(0) == i;
+            }
+            assert tree.searchRange(100, 199).size() == 100;
+            dm.close();
+
+            assert new File(path + ".db").delete();
+            Logger.remove(path);
+        }
+    }
+
+    @Test
+    public void testTreeDelete() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("/tmp/TestTreeDelete", PageCache.PAGE_SIZE*10, tm);
+
+        long root = BPlusTree.create(dm);
+        BPlusTree tree = BPlusTree.load(root, dm);
+
+        // 每个 key 插入两项，相同的 key 会跨越叶子的分裂
+        int lim = 3000;
+        for(int i = 0; i < lim; i ++) {
+            tree.insert(i / 100, i);
+            tree.insert(i / 100, i + lim);
+        }
+        for(int i = 0; i < lim; i ++) {
+            assert tree.delete(i / 100, i);
+        }
+        assert !tree.delete(0, 0);
+        assert !tree.delete(lim, lim);
+
+        for(int k = 0; k < lim / 100; k ++) {
+            List<Long> uids = tree.search(k);
+            assert uids.size() == 100;
+            for(long uid : uids) {
+                assert uid >= lim && (uid - lim) / 100 == k;
+            }
+        }
+        // 删空的叶子仍然可以插入
+        for(int i = 0; i < lim; i ++) {
+            assert tree.delete(i / 100, i + lim);
+        }
+        assert tree.searchRange(0, Long.MAX_VALUE).isEmpty();
+        tree.insert(7, 7);
+        assert tree.search(7).size() == 1;
+
+        dm.close();
+        assert new File("/tmp/TestTreeDelete.db").delete();
+        Logger.remove("/tmp/TestTreeDelete");
+    }
+
+    @Test
+    public void testTreeScan() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("/tmp/TestTreeScan", PageCache.PAGE_SIZE*10, tm);
+
+        long root = BPlusTree.create(dm);
+        BPlusTree tree = BPlusTree.load(root, dm);
+
+        // key 为 -50 ~ 49，每个 key 有 i 项，key 为 49 的项跨越多个叶子
+        int lim = 100;
+        Set<Long> all = new HashSet<>();
+        long uid = 0;
+        for(int i = 0; i < lim; i ++) {
+            for(int j = 0; j < i; j ++) {
+                tree.insert(i - lim / 2, uid);
+                all.add(uid ++);
+            }
+        }
+
+        // 每批至少 max 项，同一个 key 的项不会分到两批，每一项恰好出现一次
+        Set<Long> seen = new HashSet<>();
+        long from = Long.MIN_VALUE;
+        int batches = 0;
+        while(true) {
+            BPlusTree.ScanRes res = tree.scan(from, 10);
+            for(long u : res.uids) {
+                assert seen.add(u);
+            }
+            batches ++;
+            if(res.done) {
+                break;
+            }
+            assert res.uids.size() >= 10 && res.nextKey > from;
+            from = res.nextKey;
+        }
+        assert seen.equals(all);
+        assert batches > 1 && batches < all.size() / 10;
+
+        dm.close();
+        assert new File("/tmp/TestTreeScan.db").delete();
+        Logger.remove("/tmp/TestTreeScan");
     }
 }
@@ -7,6 +7,7 @@ import com.hakusai.db.backend.tbm.TableManager;
 import com.hakusai.db.backend.tm.TransactionManager;
 import com.hakusai.db.backend.vm.VersionManager;
 import com.hakusai.db.backend.dm.DataManager;
+import com.hakusai.db.backend.dm.logger.Logger;
 import org.junit.Test;
 
 public class ExecutorTest {
@@ -39,7 +40,7 @@ public class ExecutorTest {
         testInsert(exe, 10000, 1);
         new File(path + ".db").delete();
         new File(path + ".bt").delete();
-        new File(path + ".log").delete();
+        Logger.remove(path);
         new File(path + ".xid").delete();
     }
 
@@ -71,7 +72,55 @@ public class ExecutorTest {
         testMultiInsert(10000, 4);
         new File(path + ".db").delete();
         new File(path + ".bt").delete();
-        new File(path + ".log").delete();
+        Logger.remove(path);
+        new File(path + ".xid").delete();
+    }
+
+    @Test
+    public void testUpdate() throws Exception {
+        String path = "/tmp/mydb_update";
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, mem, tm);
+        VersionManager vm = VersionManager.newVersionManager(tm, dm);
+        TableManager tbm = TableManager.create(path, vm, dm);
+        Executor exe = new Executor(tbm);
+        exe.execute("create table t id int32, v int32 (index id)".getBytes());
+        exe.execute("insert into t values 1 10".getBytes());
+        exe.execute("insert into t values 2 20".getBytes());
+
+        // 可重复读的事务在更新之前开始，一直读到旧版本
+        Executor reader = new Executor(tbm);
+        reader.execute("begin isolation level repeatable read".getBytes());
+        assert "[1, 10]\n".equals(new String(reader.execute("select * from t where id = 1".getBytes())));
+
+        // 非索引字段的更新挂在版本链上
+        assert "update 1".equals(new String(exe.execute("update t set v = 11 where id = 1".getBytes())));
+        assert "update 1".equals(new String(exe.execute("update t set v = 12 where id = 1".getBytes())));
+        assert "[1, 12]\n".equals(new String(exe.execute("select * from t where id = 1".getBytes())));
+        assert "[1, 10]\n".equals(new String(reader.execute("select * from t where id = 1".getBytes())));
+        reader.execute("commit".getBytes());
+
+        // 回滚的更新留在链上，之后的更新和读取不受影响
+        exe.execute("begin".getBytes());
+        exe.execute("update t set v = 13 where id = 1".getBytes());
+        exe.execute("update t set v = 14 where id = 1".getBytes());
+        assert "[1, 14]\n".equals(new String(exe.execute("select * from t where id = 1".getBytes())));
+        exe.execute("abort".getBytes());
+        assert "[1, 12]\n".equals(new String(exe.execute("select * from t where id = 1".getBytes())));
+        exe.execute("update t set v = 15 where id = 1".getBytes());
+        assert "[1, 15]\n[2, 20]\n".equals(new String(exe.execute("select * from t".getBytes())));
+
+        // 索引字段的更新仍然是删除再插入
+        exe.execute("update t set id = 3 where id = 1".getBytes());
+        assert "".equals(new String(exe.execute("select * from t where id = 1".getBytes())));
+        assert "[3, 15]\n".equals(new String(exe.execute("select * from t where id = 3".getBytes())));
+
+        exe.execute("delete from t where id = 2".getBytes());
+        assert "[3, 15]\n".equals(new String(exe.execute("select * from t".getBytes())));
+
+        new File(path + ".db").delete();
+        new File(path + ".bt").delete();
+        Logger.remove(path);
         new File(path + ".xid").delete();
     }
 }
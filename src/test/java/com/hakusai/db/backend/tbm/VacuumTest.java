@@ -0,0 +1,134 @@
+package com.hakusai.db.backend.tbm;
+
+import java.io.File;
+
+import com.hakusai.db.backend.dm.DataManager;
+import com.hakusai.db.backend.dm.logger.Logger;
+import com.hakusai.db.backend.server.Executor;
+import com.hakusai.db.backend.tm.TransactionManager;
+import com.hakusai.db.backend.vm.VersionManager;
+import com.hakusai.db.backend.vm.VersionManagerImpl;
+import org.junit.Test;
+
+public class VacuumTest {
+    long mem = (1 << 20) * 64;
+
+    @Test
+    public void testVacuum() throws Exception {
+        String path = "/tmp/TestVacuum";
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, mem, tm);
+        VersionManagerImpl vm = (VersionManagerImpl)VersionManager.newVersionManager(tm, dm);
+        TableManager tbm = TableManager.create(path, vm, dm);
+        Vacuum vacuum = new Vacuum(tbm);
+        Executor exe = new Executor(tbm);
+        exe.execute("create table t id int32, v int32 (index id v)".getBytes());
+        for(int i = 0; i < 100; i ++) {
+            exe.execute(("insert into t values " + i + " 0").getBytes());
+        }
+        Table tb = ((TableManagerImpl)tbm).tables().get(0);
+
+        // 可重复读的事务还能看到旧版本，旧版本不能回收
+        Executor reader = new Executor(tbm);
+        reader.execute("begin isolation level repeatable read".getBytes());
+        assert "[1, 0]\n".equals(new String(reader.execute("select * from t where id = 1".getBytes())));
+        exe.execute("delete from t where id > 89".getBytes());
+        exe.execute("update t set id = 101 where id = 1".getBytes());
+        assert vacuum.runOnce() == 0;
+        assert "[1, 0]\n".equals(new String(reader.execute("select * from t where id = 1".getBytes())));
+        assert "[95, 0]\n".equals(new String(reader.execute("select * from t where id = 95".getBytes())));
+        reader.execute("commit".getBytes());
+
+        // 回滚的插入同样是死版本
+        exe.execute("begin".getBytes());
+        exe.execute("insert into t values 200 0".getBytes());
+        exe.execute("abort".getBytes());
+
+        // 删除的 90 ~ 99、更新前的 id = 1 和回滚插入的 200
+        // 分成很多批遍历和释放，结果和一批做完一样
+        vacuum.setBatchSize(7);
+        assert tb.chainHeads(Long.MIN_VALUE, Integer.MAX_VALUE).uids.size() == 102;
+        assert vacuum.runOnce() == 12;
+        assert tb.chainHeads(Long.MIN_VALUE, Integer.MAX_VALUE).uids.size() == 90;
+        assert vm.getRetiredCount() == 0;
+        assert "".equals(new String(exe.execute("select * from t where id > 89 and id < 101".getBytes())));
+        assert "[101, 0]\n".equals(new String(exe.execute("select * from t where id = 101".getBytes())));
+        assert "[2, 0]\n".equals(new String(exe.execute("select * from t where id = 2".getBytes())));
+        // 另一个索引中的项也删掉了
+        assert "update 90".equals(new String(exe.execute("update t set v = 1 where v = 0".getBytes())));
+
+        dm.close();
+        tm.close();
+        new File(path + ".db").delete();
+        new File(path + ".bt").delete();
+        Logger.remove(path);
+        new File(path + ".xid").delete();
+    }
+
+    @Test
+    public void testPruneChain() throws Exception {
+        String path = "/tmp/TestVacuumChain";
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, mem, tm);
+        VersionManagerImpl vm = (VersionManagerImpl)VersionManager.newVersionManager(tm, dm);
+        TableManager tbm = TableManager.create(path, vm, dm);
+        Vacuum vacuum = new Vacuum(tbm);
+        Executor exe = new Executor(tbm);
+        exe.execute("create table t id int32, v int32 (index id)".getBytes());
+        exe.execute("insert into t values 1 0".getBytes());
+
+        // 非索引字段的更新留在版本链上，链中间的死版本被摘下，链头留在原处
+        for(int i = 1; i <= 10; i ++) {
+            exe.execute(("update t set v = " + i + " where id = 1").getBytes());
+        }
+        exe.execute("begin".getBytes());
+        exe.execute("update t set v = 100 where id = 1".getBytes());
+        exe.execute("abort".getBytes());
+        assert vacuum.runOnce() == 0;
+        assert vm.getRetiredCount() == 0;
+        assert "[1, 10]\n".equals(new String(exe.execute("select * from t where id = 1".getBytes())));
+        assert "update 1".equals(new String(exe.execute("update t set v = 11 where id = 1".getBytes())));
+        assert "[1, 11]\n".equals(new String(exe.execute("select * from t".getBytes())));
+
+        dm.close();
+        tm.close();
+        new File(path + ".db").delete();
+        new File(path + ".bt").delete();
+        Logger.remove(path);
+        new File(path + ".xid").delete();
+    }
+
+    @Test
+    public void testReuseSpace() throws Exception {
+        String path = "/tmp/TestVacuumSpace";
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, mem, tm);
+        VersionManager vm = VersionManager.newVersionManager(tm, dm);
+        TableManager tbm = TableManager.create(path, vm, dm);
+        Vacuum vacuum = new Vacuum(tbm);
+        Executor exe = new Executor(tbm);
+        exe.execute("create table t id int32, v string (index id)".getBytes());
+        String value = new String(new char[200]).replace('\0', 'x');
+
+        // 每一轮回收的空间和删空的叶子都被下一轮用上，文件不再变大
+        long size = 0;
+        for(int round = 0; round < 20; round ++) {
+            for(int i = 0; i < 100; i ++) {
+                exe.execute(("insert into t values " + i + " " + value).getBytes());
+            }
+            exe.execute("delete from t where id < 100".getBytes());
+            assert vacuum.runOnce() == 100;
+            if(round == 0) {
+                size = new File(path + ".db").length();
+            }
+            assert new File(path + ".db").length() == size;
+        }
+
+        dm.close();
+        tm.close();
+        new File(path + ".db").delete();
+        new File(path + ".bt").delete();
+        Logger.remove(path);
+        new File(path + ".xid").delete();
+    }
+}
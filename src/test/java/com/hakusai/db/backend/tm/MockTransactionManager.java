@@ -28,6 +28,39 @@ public class MockTransactionManager implements TransactionManager {
         return false;
     }
 
+    @Override
+    public long beginAsync() {
+        return 0;
+    }
+
+    @Override
+    public boolean isAsync(long xid) {
+        return false;
+    }
+
+    @Override
+    public boolean hasAsync() {
+        return false;
+    }
+
+    @Override
+    public boolean isCommitPending(long xid) {
+        return false;
+    }
+
+    @Override
+    public void setLogFlusher(Runnable logFlusher) {}
+
+    @Override
+    public long getAsyncCommitLag() {
+        return 0;
+    }
+
+    @Override
+    public int getPendingCommits() {
+        return 0;
+    }
+
     @Override
     public void close() {}
     
@@ -0,0 +1,40 @@
+package com.hakusai.db.backend.tm;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * 开始和提交事务的压测：分别用 THREADS 中的线程数并发执行共 TXNS（默认 5000）次 begin + commit，
+ * 输出每秒完成的事务数，观察事务的吞吐能否随并发增长。
+ *
+ * 运行方式：mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.hakusai.db.backend.tm.TransactionManagerBenchmark -Dexec.args=5000
+ */
+public class TransactionManagerBenchmark {
+
+    private static final String PATH = "/tmp/tm_bench";
+    private static final int[] THREADS = {1, 4, 16, 64};
+
+    public static void main(String[] args) throws Exception {
+        int txns = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        System.out.printf("transactions: %d%n", txns);
+        for(int threads : THREADS) {
+            new File(PATH + ".xid").delete();
+            TransactionManager tm = TransactionManager.create(PATH);
+            CountDownLatch done = new CountDownLatch(threads);
+            long begin = System.nanoTime();
+            for(int i = 0; i < threads; i ++) {
+                new Thread(() -> {
+                    for(int j = 0; j < txns / threads; j ++) {
+                        tm.commit(tm.begin());
+                    }
+                    done.countDown();
+                }).start();
+            }
+            done.await();
+            long elapsed = System.nanoTime() - begin;
+            tm.close();
+            System.out.printf("threads %2d: %10.0f txn/s%n", threads, (double)(txns / threads * threads) / (elapsed / 1e9));
+        }
+        new File(PATH + ".xid").delete();
+    }
+}
@@ -1,6 +1,7 @@
 package com.hakusai.db.backend.tm;
 
 import java.io.File;
+import java.io.RandomAccessFile;
 import java.security.SecureRandom;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
@@ -90,4 +91,107 @@ public class TransactionManagerTest {
         }
         cdl.countDown();
     }
+
+    @Test
+    public void testReopen() {
+        new File("/tmp/tranmger_reopen_test.xid").delete();
+        TransactionManager tm = TransactionManager.create("/tmp/tranmger_reopen_test");
+        int n = 100;
+        for(int i = 1; i <= n; i ++) {
+            long xid = tm.begin();
+            if(i % 3 == 1) {
+                tm.commit(xid);
+            } else if(i % 3 == 2) {
+                tm.abort(xid);
+            }
+        }
+        tm.close();
+
+        // 重新打开时从 XID 文件中读出所有事务的状态
+        tm = TransactionManager.open("/tmp/tranmger_reopen_test");
+        for(long xid = 1; xid <= n; xid ++) {
+            assert tm.isCommitted(xid) == (xid % 3 == 1);
+            assert tm.isAborted(xid) == (xid % 3 == 2);
+            assert tm.isActive(xid) == (xid % 3 == 0);
+        }
+        tm.close();
+        assert new File("/tmp/tranmger_reopen_test.xid").delete();
+    }
+
+    @Test
+    public void testStatusTable() {
+        XidStatusTable table = new XidStatusTable();
+        long[] xids = {1, 31, 32, 33, XidStatusTable.CHUNK_XIDS - 1, XidStatusTable.CHUNK_XIDS, 3L * XidStatusTable.CHUNK_XIDS + 7};
+        for(int i = 0; i < xids.length; i ++) {
+            table.set(xids[i], (byte)(i % 3));
+        }
+        for(int i = 0; i < xids.length; i ++) {
+            assert table.get(xids[i]) == (byte)(i % 3);
+        }
+        // 相邻的事务互不影响，没有设置过的事务视为 active
+        assert table.get(2) == 0 && table.get(30) == 0;
+        assert table.get(100L * XidStatusTable.CHUNK_XIDS) == 0;
+        table.set(32, (byte)2);
+        assert table.get(31) == 1 && table.get(32) == 2 && table.get(33) == 0;
+    }
+
+    @Test
+    public void testXIDBlock() throws Exception {
+        File f = new File("/tmp/tranmger_block_test.xid");
+        f.delete();
+        TransactionManager tm = TransactionManager.create("/tmp/tranmger_block_test");
+        long xid1 = tm.begin();
+        long xid2 = tm.begin();
+        tm.commit(xid1);
+        tm.close();
+        // 一次预分配了一整块
+        assert f.length() == TransactionManagerImpl.LEN_XID_HEADER_LENGTH + TransactionManagerImpl.XID_BLOCK;
+
+        // 模拟扩展了文件、还没改写文件头时崩溃
+        try(RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            raf.setLength(raf.length() + TransactionManagerImpl.XID_BLOCK);
+        }
+        tm = TransactionManager.open("/tmp/tranmger_block_test");
+        assert f.length() == TransactionManagerImpl.LEN_XID_HEADER_LENGTH + TransactionManagerImpl.XID_BLOCK;
+        assert tm.isCommitted(xid1) && tm.isActive(xid2);
+        // 上次没用完的 XID 被跳过，不会重复分配
+        long xid3 = tm.begin();
+        assert xid3 == TransactionManagerImpl.XID_BLOCK + 1;
+        tm.abort(xid3);
+        tm.close();
+
+        tm = TransactionManager.open("/tmp/tranmger_block_test");
+        assert tm.isAborted(xid3);
+        tm.close();
+        assert f.delete();
+    }
+
+    @Test
+    public void testConcurrentCommit() throws Exception {
+        new File("/tmp/tranmger_group_test.xid").delete();
+        TransactionManager tm = TransactionManager.create("/tmp/tranmger_group_test");
+        int noThreads = 16, noTxns = 200;
+        Set<Long> committed = ConcurrentHashMap.newKeySet();
+        CountDownLatch done = new CountDownLatch(noThreads);
+        for(int i = 0; i < noThreads; i ++) {
+            new Thread(() -> {
+                for(int j = 0; j < noTxns; j ++) {
+                    long xid = tm.begin();
+                    tm.commit(xid);
+                    committed.add(xid);
+                }
+                done.countDown();
+            }).start();
+        }
+        done.await();
+        tm.close();
+
+        TransactionManager reopened = TransactionManager.open("/tmp/tranmger_group_test");
+        assert committed.size() == noThreads * noTxns;
+        for(long xid : committed) {
+            assert reopened.isCommitted(xid);
+        }
+        reopened.close();
+        assert new File("/tmp/tranmger_group_test.xid").delete();
+    }
 }
@@ -0,0 +1,64 @@
+package com.hakusai.db.backend.vm;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+
+import com.hakusai.db.backend.dm.MockDataManager;
+import com.hakusai.db.backend.tm.TransactionManager;
+import com.hakusai.db.backend.utils.Panic;
+
+/**
+ * 可重复读事务 begin 的压测：先开启 ACTIVE（默认 1000）个不结束的事务，
+ * 再用 THREADS 个线程反复开启、提交可重复读事务，共 BEGINS 次，统计 begin 的平均和 P99 延迟。
+ * 每个可重复读事务开始时都要建立快照，活跃事务越多，建立快照的代价越明显。
+ *
+ * 运行方式：mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.hakusai.db.backend.vm.SnapshotBenchmark -Dexec.args=1000
+ */
+public class SnapshotBenchmark {
+
+    private static final String PATH = "/tmp/snapshot_bench";
+    private static final int THREADS = 4;
+    private static final int BEGINS = 20000;
+
+    public static void main(String[] args) throws Exception {
+        int active = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        new File(PATH + ".xid").delete();
+        TransactionManager tm = TransactionManager.create(PATH);
+        VersionManager vm = new VersionManagerImpl(tm, MockDataManager.newMockDataManager());
+        for(int i = 0; i < active; i ++) {
+            vm.begin(1);
+        }
+
+        long[] latencies = new long[BEGINS / THREADS * THREADS];
+        CountDownLatch done = new CountDownLatch(THREADS);
+        for(int i = 0; i < THREADS; i ++) {
+            final int id = i;
+            new Thread(() -> {
+                try {
+                    for(int j = 0; j < BEGINS / THREADS; j ++) {
+                        long begin = System.nanoTime();
+                        long xid = vm.begin(1);
+                        latencies[id * (BEGINS / THREADS) + j] = System.nanoTime() - begin;
+                        vm.commit(xid);
+                    }
+                } catch (Exception e) {
+                    Panic.panic(e);
+                }
+                done.countDown();
+            }).start();
+        }
+        done.await();
+        tm.close();
+        new File(PATH + ".xid").delete();
+
+        Arrays.sort(latencies);
+        long sum = 0;
+        for(long l : latencies) {
+            sum += l;
+        }
+        System.out.printf("active: %d, threads: %d, begins: %d%n", active, THREADS, latencies.length);
+        System.out.printf("begin avg %.1f us, p50 %.1f us, p99 %.1f us%n", sum / 1000.0 / latencies.length,
+            latencies[latencies.length / 2] / 1000.0, latencies[latencies.length * 99 / 100] / 1000.0);
+    }
+}
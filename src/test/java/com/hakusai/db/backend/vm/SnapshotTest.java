@@ -0,0 +1,47 @@
+package com.hakusai.db.backend.vm;
+
+import org.junit.Test;
+
+public class SnapshotTest {
+    @Test
+    public void testSnapshot() {
+        ActiveXids active = new ActiveXids();
+        for(long xid = 1; xid <= 40; xid ++) {
+            active.add(xid);
+        }
+        for(long xid = 1; xid <= 40; xid += 2) {
+            active.remove(xid);
+        }
+        // 活跃的是 2, 4, ..., 40
+        Snapshot s1 = active.snapshot(41);
+        assert s1.xmin == 2 && s1.xmax == 41;
+        assert !s1.isActive(1) && s1.isActive(2) && !s1.isActive(3) && s1.isActive(40);
+        assert !s1.isActive(41) && !s1.isActive(100);
+        assert s1.isFinishedBefore(1) && s1.isFinishedBefore(39);
+        assert !s1.isFinishedBefore(2) && !s1.isFinishedBefore(41);
+
+        // 之后的变化不影响已经建立的快照
+        active.add(41);
+        active.remove(2);
+        Snapshot s2 = active.snapshot(42);
+        assert s1.isActive(2) && !s1.isActive(41);
+        assert s2.xmin == 4 && !s2.isActive(2) && s2.isActive(41);
+
+        for(long xid = 4; xid <= 41; xid += 2) {
+            active.remove(xid);
+        }
+        active.remove(41);
+        Snapshot s3 = active.snapshot(50);
+        assert s3.xmin == 50 && !s3.isActive(41) && s3.isFinishedBefore(49);
+
+        // 共用同一个数组的快照，各自只看建立时的那一部分
+        active.add(50);
+        Snapshot s4 = active.snapshot(51);
+        active.add(51);
+        Snapshot s5 = active.snapshot(52);
+        active.remove(50);
+        assert s4.isActive(50) && !s4.isActive(51);
+        assert s5.isActive(50) && s5.isActive(51);
+        assert active.snapshot(53).xmin == 51;
+    }
+}
@@ -0,0 +1,86 @@
+package com.hakusai.db.backend.vm;
+
+import java.io.File;
+
+import com.hakusai.db.backend.dm.DataManager;
+import com.hakusai.db.backend.dm.logger.Logger;
+import com.hakusai.db.backend.tm.TransactionManager;
+import com.hakusai.db.backend.tm.TransactionManagerImpl;
+
+/**
+ * 可见性判断的压测：用 TXNS 个事务插入 ROWS（默认 100000）行，其中一半的行再被之后的事务删除，
+ * 然后分别在读提交和可重复读下把所有行读 ROUNDS 遍，输出每秒读取的行数。
+ * 每读一行都要查询 XMIN、XMAX 的事务状态，数据都在缓存中，读取的速度主要取决于查询事务状态的代价。
+ * 插入和删除使用异步提交的事务，避免准备数据时每条日志都等待 fsync。
+ *
+ * 运行方式：mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.hakusai.db.backend.vm.VisibilityScanBenchmark -Dexec.args=100000
+ */
+public class VisibilityScanBenchmark {
+
+    private static final String PATH = "/tmp/visibility_scan_bench";
+    private static final long MEM = 256L << 20;
+    private static final int TXNS = 1000;
+    private static final int ROW_SIZE = 100;
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        cleanup();
+        TransactionManagerImpl tm = TransactionManager.create(PATH);
+        DataManager dm = DataManager.create(PATH, MEM, tm);
+        VersionManager vm = new VersionManagerImpl(tm, dm);
+
+        long[] uids = new long[rows];
+        int perTxn = Math.max(1, rows / TXNS);
+        byte[] data = new byte[ROW_SIZE];
+        for(int i = 0; i < rows; i += perTxn) {
+            long xid = vm.begin(0, true);
+            for(int j = i; j < Math.min(rows, i + perTxn); j ++) {
+                uids[j] = vm.insert(xid, data);
+            }
+            vm.commit(xid);
+        }
+        for(int i = 0; i < rows; i += perTxn * 2) {
+            long xid = vm.begin(0, true);
+            for(int j = i; j < Math.min(rows, i + perTxn); j ++) {
+                vm.delete(xid, uids[j]);
+            }
+            vm.commit(xid);
+        }
+        tm.flushCommits();
+        System.out.printf("rows: %d, transactions: %d%n", rows, rows / perTxn * 3 / 2);
+
+        scan(vm, uids, 0, "read committed");
+        scan(vm, uids, 1, "repeatable read");
+        dm.close();
+        tm.close();
+        cleanup();
+        System.exit(0);
+    }
+
+    private static void scan(VersionManager vm, long[] uids, int level, String name) throws Exception {
+        long xid = vm.begin(level);
+        // 预热，同时把所有行读进缓存
+        int visible = 0;
+        for(long uid : uids) {
+            if(vm.read(xid, uid) != null) {
+                visible ++;
+            }
+        }
+        long begin = System.nanoTime();
+        for(int round = 0; round < ROUNDS; round ++) {
+            for(long uid : uids) {
+                vm.read(xid, uid);
+            }
+        }
+        long elapsed = System.nanoTime() - begin;
+        vm.commit(xid);
+        System.out.printf("%-16s visible %d, %12.0f rows/s%n", name, visible, (double)uids.length * ROUNDS / (elapsed / 1e9));
+    }
+
+    private static void cleanup() {
+        new File(PATH + ".db").delete();
+        new File(PATH + ".xid").delete();
+        Logger.remove(PATH);
+    }
+}